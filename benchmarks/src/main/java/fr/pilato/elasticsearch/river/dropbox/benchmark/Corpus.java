@@ -0,0 +1,149 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.benchmark;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Generated data looking like a real Dropbox account: nested folders, mixed case and
+ * accented names, a few extensions used a lot and file sizes from a few bytes to many MB.
+ * <br>Always built from a seed so runs can be compared.
+ */
+final class Corpus {
+
+	private static final String[] FOLDERS = { "Photos", "Documents", "Projects", "Camera Uploads", "Public",
+		"Clients", "Factures", "été 2013", "Archives", "Shared", "Music", "Backup", "Legal", "Sales" };
+
+	private static final String[] NAMES = { "IMG_", "DSC", "report-", "Contrat ", "notes_", "draft", "Screenshot ",
+		"invoice-", "présentation ", "budget", "song", "scan" };
+
+	/** Extensions with their weight */
+	private static final String[] EXTENSIONS = { "jpg", "jpg", "jpg", "jpg", "png", "pdf", "pdf", "pdf", "docx", "docx",
+		"xlsx", "txt", "txt", "mp3", "pptx", "odt", "zip" };
+
+	private static final String[] MIME_TYPES = { "image/jpeg", "image/jpeg", "image/jpeg", "image/jpeg", "image/png",
+		"application/pdf", "application/pdf", "application/pdf", "application/msword", "application/msword",
+		"application/vnd.ms-excel", "text/plain", "text/plain", "audio/mpeg", "application/vnd.ms-powerpoint",
+		"application/vnd.oasis.opendocument.text", "application/zip" };
+
+	private Corpus() {
+	}
+
+	/**
+	 * @return Dropbox paths (original case)
+	 */
+	static String[] paths(int count, long seed) {
+		Random random = new Random(seed);
+		String[] paths = new String[count];
+		for (int i = 0; i < count; i++) {
+			paths[i] = path(random, i, random.nextInt(EXTENSIONS.length));
+		}
+		return paths;
+	}
+
+	/**
+	 * @return Dropbox dates as sent in metadata
+	 */
+	static String[] dates(int count, long seed) {
+		Random random = new Random(seed);
+		SimpleDateFormat format = dateFormat();
+		String[] dates = new String[count];
+		long now = 1372000000000L;
+		for (int i = 0; i < count; i++) {
+			dates[i] = format.format(new Date(now - (long) (random.nextDouble() * 5 * 365 * 24 * 3600 * 1000L)));
+		}
+		return dates;
+	}
+
+	/**
+	 * File size: median around 100kb, a few files are many MB
+	 */
+	static long size(Random random) {
+		return Math.max(1, (long) Math.exp(11.5 + 1.8 * random.nextGaussian()));
+	}
+
+	/**
+	 * @return random (so not compressible) file content
+	 */
+	static byte[] content(int size, long seed) {
+		byte[] content = new byte[size];
+		new Random(seed).nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * A /delta response page, with a few deleted files and folders
+	 */
+	static String deltaPage(int entries, long seed) {
+		Random random = new Random(seed);
+		SimpleDateFormat format = dateFormat();
+		StringBuilder json = new StringBuilder("{\"reset\": false, \"entries\": [");
+		for (int i = 0; i < entries; i++) {
+			if (i > 0) json.append(", ");
+			int ext = random.nextInt(EXTENSIONS.length);
+			String path = path(random, i, ext);
+			json.append("[\"").append(path.toLowerCase(Locale.ROOT)).append("\", ");
+
+			int kind = random.nextInt(20);
+			if (kind == 0) {
+				json.append("null]");
+			} else if (kind == 1) {
+				String folder = path.substring(0, path.lastIndexOf('/'));
+				json.append("{\"revision\": ").append(i).append(", \"rev\": \"").append(Integer.toHexString(i)).append("0b7a3b9e\"")
+					.append(", \"thumb_exists\": false, \"bytes\": 0, \"modified\": \"")
+					.append(format.format(new Date(1372000000000L - i * 1000L))).append("\"")
+					.append(", \"path\": \"").append(folder.isEmpty() ? "/" : folder).append("\", \"is_dir\": true")
+					.append(", \"icon\": \"folder\", \"root\": \"dropbox\", \"size\": \"0 bytes\"}]");
+			} else {
+				long bytes = size(random);
+				json.append("{\"revision\": ").append(i).append(", \"rev\": \"").append(Integer.toHexString(i)).append("0b7a3b9e\"")
+					.append(", \"thumb_exists\": ").append(ext < 5).append(", \"bytes\": ").append(bytes)
+					.append(", \"modified\": \"").append(format.format(new Date(1372000000000L - i * 1000L))).append("\"")
+					.append(", \"client_mtime\": \"").append(format.format(new Date(1371000000000L - i * 1000L))).append("\"")
+					.append(", \"path\": \"").append(path).append("\", \"is_dir\": false, \"icon\": \"page_white\"")
+					.append(", \"root\": \"dropbox\", \"mime_type\": \"").append(MIME_TYPES[ext]).append("\"")
+					.append(", \"size\": \"").append(bytes / 1024).append(" KB\"}]");
+			}
+		}
+		json.append("], \"cursor\": \"AAGvtIBYmF").append(seed).append("\", \"has_more\": true}");
+		return json.toString();
+	}
+
+	private static String path(Random random, int i, int ext) {
+		StringBuilder path = new StringBuilder();
+		int depth = 1 + random.nextInt(5);
+		for (int d = 0; d < depth; d++) {
+			path.append('/').append(FOLDERS[random.nextInt(FOLDERS.length)]);
+			if (random.nextInt(3) == 0) path.append(' ').append(2005 + random.nextInt(10));
+		}
+		path.append('/').append(NAMES[random.nextInt(NAMES.length)]).append(i).append('.').append(EXTENSIONS[ext]);
+		return path.toString();
+	}
+
+	private static SimpleDateFormat dateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format;
+	}
+}
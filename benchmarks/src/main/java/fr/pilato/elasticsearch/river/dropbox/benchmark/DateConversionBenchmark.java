@@ -0,0 +1,76 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.elasticsearch.river.dropbox.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fr.pilato.elasticsearch.river.dropbox.river.DropBoxRiverUtil;
+
+/**
+ * Cost per date of DropBoxRiverUtil.convertToEsDate(), alone and with download
+ * workers parsing dates at the same time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DateConversionBenchmark {
+
+	private static final int DATES = 1024;
+
+	private String[] dates;
+
+	@Setup
+	public void setup() {
+		dates = Corpus.dates(DATES, 0);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DATES)
+	public void single(Blackhole bh) {
+		for (String date : dates) {
+			bh.consume(DropBoxRiverUtil.convertToEsDate(date));
+		}
+	}
+
+	@Benchmark
+	@Threads(4)
+	@OperationsPerInvocation(DATES)
+	public void workers(Blackhole bh) {
+		for (String date : dates) {
+			bh.consume(DropBoxRiverUtil.convertToEsDate(date));
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.elasticsearch.river.dropbox.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxDeltaListener;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxDeltaParser;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxEntry;
+
+/**
+ * Cost of reading a /delta page: entries built while streaming the JSON against
+ * the whole page loaded as maps, then entries built from maps.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeltaParsingBenchmark {
+
+	/** Dropbox sends at most about 2000 entries per page */
+	@Param({ "100", "2000" })
+	public int entries;
+
+	private byte[] page;
+
+	@Setup
+	public void setup() throws Exception {
+		page = Corpus.deltaPage(entries, 0).getBytes("UTF-8");
+	}
+
+	@Benchmark
+	public Object streaming(final Blackhole bh) throws Exception {
+		return DropboxDeltaParser.parse(new ByteArrayInputStream(page), new DropboxDeltaListener() {
+			@Override
+			public void onEntry(String path, DropboxEntry entry) {
+				bh.consume(path);
+				bh.consume(entry);
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	@Benchmark
+	public Object map(Blackhole bh) throws Exception {
+		Map<String, Object> delta = XContentHelper.convertToMap(page, 0, page.length, false).v2();
+		for (Object entry : (List<Object>) delta.get("entries")) {
+			List<Object> values = (List<Object>) entry;
+			bh.consume(values.get(0));
+			bh.consume(new DropboxEntry((Map<String, Object>) values.get(1)));
+		}
+		return delta.get("cursor");
+	}
+}
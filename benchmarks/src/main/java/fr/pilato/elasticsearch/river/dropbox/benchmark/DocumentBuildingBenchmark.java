@@ -0,0 +1,100 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.elasticsearch.river.dropbox.benchmark;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fr.pilato.elasticsearch.river.dropbox.river.DropBoxRiverUtil;
+import fr.pilato.elasticsearch.river.dropbox.util.JsonBase64InputStream;
+
+/**
+ * Cost of building the document of a downloaded file: content buffered in memory then
+ * Base64 encoded, as DropboxConnector.getFiles() does, against content encoded chunk
+ * by chunk while read, as indexFile() does.
+ * <br>Run with <code>-prof gc</code> to compare allocations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Benchmark)
+public class DocumentBuildingBenchmark {
+
+	@Param({ "16384", "1048576", "16777216" })
+	public int size;
+
+	private byte[] content;
+
+	@Setup
+	public void setup() {
+		content = Corpus.content(size, 0);
+	}
+
+	private XContentBuilder startDocument() throws Exception {
+		return jsonBuilder()
+				.startObject()
+				.field(DropBoxRiverUtil.DOC_FIELD_NAME, "/photos/été 2013/img_0001.jpg")
+				.field(DropBoxRiverUtil.DOC_FIELD_DATE, 1311112538000L)
+				.field(DropBoxRiverUtil.DOC_FIELD_PATH_ENCODED, "112aed83738239dbfe4485f024cd4ce1")
+				.field(DropBoxRiverUtil.DOC_FIELD_ROOT_PATH, "6666cd76f96956469e7be39d750cc7d9")
+				.startObject("file").field("_name", "/photos/été 2013/img_0001.jpg");
+	}
+
+	@Benchmark
+	public int buffered() throws Exception {
+		// Same as DropboxConnector.getFiles(root, path)
+		InputStream is = new ByteArrayInputStream(content);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length);
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			bos.write(buffer, 0, read);
+		}
+
+		XContentBuilder xb = startDocument().field("content", bos.toByteArray()).endObject().endObject();
+		return xb.bytes().length();
+	}
+
+	@Benchmark
+	public int streaming() throws Exception {
+		XContentBuilder xb = startDocument()
+				.rawField("content", new JsonBase64InputStream(new ByteArrayInputStream(content)))
+				.endObject().endObject();
+		return xb.bytes().length();
+	}
+}
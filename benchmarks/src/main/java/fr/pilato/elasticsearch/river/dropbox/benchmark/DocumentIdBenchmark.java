@@ -0,0 +1,86 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fr.pilato.elasticsearch.river.dropbox.river.DocumentIdStrategies;
+import fr.pilato.elasticsearch.river.dropbox.river.DocumentIdStrategy;
+import fr.pilato.elasticsearch.river.dropbox.river.SignTool;
+
+/**
+ * Cost per path of document id strategies against SignTool, which gets a new
+ * MessageDigest and concatenates strings for every call.
+ * <br>Run with <code>-prof gc</code> to compare allocations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DocumentIdBenchmark {
+
+	private static final int PATHS = 1024;
+
+	@Param({ "legacy", "md5", "sha1", "murmur3", "path" })
+	public String strategy;
+
+	private DocumentIdStrategy idStrategy;
+	private String[] paths;
+
+	@Setup
+	public void setup() {
+		idStrategy = DocumentIdStrategies.forName(strategy);
+
+		paths = Corpus.paths(PATHS, 0);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void strategy(Blackhole bh) {
+		for (String path : paths) {
+			bh.consume(idStrategy.id(path));
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void signTool(Blackhole bh) throws Exception {
+		for (String path : paths) {
+			bh.consume(SignTool.sign(path));
+		}
+	}
+}
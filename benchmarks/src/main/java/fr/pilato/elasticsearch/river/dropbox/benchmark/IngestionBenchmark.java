@@ -0,0 +1,367 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.benchmark;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.indexing.IndexingOperationListener;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.index.shard.service.InternalIndexShard;
+import org.elasticsearch.indices.IndicesLifecycle;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.node.internal.InternalNode;
+import org.elasticsearch.river.dropbox.test.utils.FakeDropboxServer;
+
+/**
+ * End to end ingestion benchmark: an embedded node runs a river against a local fake Dropbox
+ * server, and we measure how fast files end up in the index.
+ * <br>Reports time to first document, overall and steady state (from 10% to 90% of the files)
+ * throughput, per file latency (from download start to indexed in the shard) and peak heap, as JSON.
+ * <pre>
+ * java -cp target/benchmarks.jar fr.pilato.elasticsearch.river.dropbox.benchmark.IngestionBenchmark \
+ *      --files 10000 --sizes mixed --concurrency 8 --bulk_size 100 --output results.json
+ * </pre>
+ * Options, with their default value:
+ * <ul>
+ * <li><code>--files 2000</code>: number of files of the Dropbox account
+ * <li><code>--sizes mixed</code>: file sizes, <code>small</code> (around 4kb), <code>mixed</code> (around 100kb,
+ * some MB), <code>large</code> (around 2mb) or a fixed number of bytes
+ * <li><code>--page_size 2000</code>: entries per delta page
+ * <li><code>--latency 0</code>: Dropbox latency in ms, with the same random jitter
+ * <li><code>--error_rate 0</code>: part of Dropbox calls failing
+ * <li><code>--concurrency 4</code>, <code>--bulk_size 100</code>, <code>--bulk_size_bytes 5mb</code>,
+ * <code>--concurrent_requests 1</code>, <code>--flush_interval 5s</code>, <code>--max_memory 50mb</code>,
+ * <code>--async_downloads 0</code>: river settings
+ * <li><code>--shards 1</code>: number of shards of the index
+ * <li><code>--idle 30</code>: seconds without any new document before we stop waiting
+ * <li><code>--output</code>: JSON file, standard output if not set
+ * </ul>
+ */
+public class IngestionBenchmark {
+
+	private static final String RIVER = "bench";
+	private static final String TOKEN = "bench";
+
+	private final Map<String, String> options;
+	private final ConcurrentMap<String, long[]> downloads = new ConcurrentHashMap<String, long[]>();
+
+	/** Indexing time of each document, in indexing order */
+	private long[] indexedAt;
+	private long[] latencies;
+	private long[] sizes;
+	private int indexed = 0;
+
+	private volatile long peakHeap = 0;
+
+	public IngestionBenchmark(Map<String, String> options) {
+		this.options = options;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unknown option " + args[i]);
+			options.put(args[i].substring(2), args[i + 1]);
+		}
+		new IngestionBenchmark(options).run();
+		System.exit(0);
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			value = defaultValue;
+			if (value != null) options.put(name, value);
+		}
+		return value;
+	}
+
+	private int intOption(String name, int defaultValue) {
+		return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+	}
+
+	private static FakeDropboxServer.FileSizes sizes(String profile) {
+		if ("small".equals(profile)) return FakeDropboxServer.logNormal(4 * 1024, 1.0);
+		if ("mixed".equals(profile)) return FakeDropboxServer.logNormal(100 * 1024, 1.5);
+		if ("large".equals(profile)) return FakeDropboxServer.logNormal(2 * 1024 * 1024, 0.5);
+		return FakeDropboxServer.fixed(Long.parseLong(profile));
+	}
+
+	public void run() throws Exception {
+		int files = intOption("files", 2000);
+		long latency = Long.parseLong(option("latency", "0"));
+		FakeDropboxServer.Account account = new FakeDropboxServer.Account(TOKEN)
+				.files(files)
+				.pageSize(intOption("page_size", 2000))
+				.folders(100)
+				.sizes(sizes(option("sizes", "mixed")));
+
+		indexedAt = new long[files];
+		latencies = new long[files];
+		sizes = new long[files];
+
+		FakeDropboxServer server = new FakeDropboxServer()
+				.account(account)
+				.latency(latency, latency)
+				.errorRate(Double.parseDouble(option("error_rate", "0")))
+				.downloadListener(new FakeDropboxServer.DownloadListener() {
+					@Override
+					public void onDownload(String path, long bytes) {
+						downloads.putIfAbsent(path.toLowerCase(Locale.ROOT), new long[] { System.nanoTime(), bytes });
+					}
+				})
+				.start();
+
+		Node node = startNode(intOption("shards", 1));
+		Thread heapSampler = startHeapSampler();
+
+		try {
+			long start = System.nanoTime();
+			registerRiver(node.client(), server.getUrl());
+			waitForDocuments(files, intOption("idle", 30) * 1000L);
+			report(start, files, account, server);
+		} finally {
+			heapSampler.interrupt();
+			node.close();
+			server.stop();
+		}
+	}
+
+	private Node startNode(int shards) throws Exception {
+		File data = new File("./target/ingestion");
+		if (data.exists()) FileSystemUtils.deleteRecursively(data, true);
+
+		ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder()
+				.put("cluster.name", "dropbox-ingestion-benchmark")
+				.put("gateway.type", "none")
+				.put("http.enabled", false)
+				.put("index.number_of_shards", shards)
+				.put("index.number_of_replicas", 0)
+				.put("path.data", "./target/ingestion/data")
+				.put("path.logs", "./target/ingestion/logs")
+				.put("path.work", "./target/ingestion/work");
+		// The shaded jar holds classes of both plugins but not their es-plugin.properties files
+		if (IngestionBenchmark.class.getClassLoader().getResource("es-plugin.properties") == null) {
+			settings.putArray("plugin.types", "fr.pilato.elasticsearch.river.dropbox.plugin.DropboxRiverPlugin",
+					"org.elasticsearch.plugin.mapper.attachments.MapperAttachmentsPlugin");
+		}
+
+		Node node = NodeBuilder.nodeBuilder().local(true).settings(settings).node();
+
+		// We watch every document indexed by the river
+		IndicesService indices = ((InternalNode) node).injector().getInstance(IndicesService.class);
+		indices.indicesLifecycle().addListener(new IndicesLifecycle.Listener() {
+			@Override
+			public void afterIndexShardCreated(IndexShard indexShard) {
+				if (!RIVER.equals(indexShard.shardId().index().name())) return;
+				((InternalIndexShard) indexShard).indexingService().addListener(new IndexingOperationListener() {
+					@Override
+					public void postIndex(Engine.Index index) {
+						onIndexed(index.id());
+					}
+				});
+			}
+		});
+
+		node.client().admin().cluster().prepareHealth().setWaitForYellowStatus().execute().actionGet();
+		return node;
+	}
+
+	private synchronized void onIndexed(String id) {
+		long now = System.nanoTime();
+		long[] download = downloads.get(id);
+		if (download == null || indexed == indexedAt.length) return;
+		indexedAt[indexed] = now;
+		latencies[indexed] = now - download[0];
+		sizes[indexed] = download[1];
+		indexed++;
+		notifyAll();
+	}
+
+	private Thread startHeapSampler() {
+		final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		Thread sampler = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "heap_sampler");
+		sampler.setDaemon(true);
+		sampler.start();
+		return sampler;
+	}
+
+	private void registerRiver(Client client, String baseUrl) throws Exception {
+		XContentBuilder river = jsonBuilder().startObject()
+				.field("type", "dropbox")
+				.startObject("dropbox")
+					.field("appkey", "appkey")
+					.field("appsecret", "appsecret")
+					.field("token", TOKEN)
+					.field("secret", "secret")
+					.field("base_url", baseUrl)
+					.field("update_rate", 24 * 3600 * 1000)
+					.field("concurrency", intOption("concurrency", 4))
+					.field("async_downloads", intOption("async_downloads", 0))
+					// Document ids are the paths: we know which download gave which document
+					.field("id_strategy", "path")
+				.endObject()
+				.startObject("index")
+					.field("index", RIVER)
+					.field("bulk_size", intOption("bulk_size", 100))
+					.field("bulk_size_bytes", option("bulk_size_bytes", "5mb"))
+					.field("concurrent_requests", intOption("concurrent_requests", 1))
+					.field("flush_interval", option("flush_interval", "5s"))
+					.field("max_memory", option("max_memory", "50mb"))
+				.endObject()
+			.endObject();
+		client.prepareIndex("_river", RIVER, "_meta").setSource(river).execute().actionGet();
+	}
+
+	/**
+	 * Wait for all the files, or until nothing was indexed for idle ms
+	 */
+	private synchronized void waitForDocuments(int files, long idle) throws InterruptedException {
+		long last = System.currentTimeMillis();
+		int count = indexed;
+		while (indexed < files) {
+			wait(1000);
+			if (indexed != count) {
+				count = indexed;
+				last = System.currentTimeMillis();
+			} else if (System.currentTimeMillis() - last > idle) {
+				return;
+			}
+		}
+	}
+
+	private synchronized void report(long start, int files, FakeDropboxServer.Account account, FakeDropboxServer server)
+			throws Exception {
+		long end = indexed > 0 ? indexedAt[indexed - 1] : System.nanoTime();
+		long bytes = 0;
+		for (int i = 0; i < indexed; i++) bytes += sizes[i];
+
+		XContentBuilder xb = jsonBuilder().prettyPrint().startObject();
+		xb.startObject("options");
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			xb.field(option.getKey(), option.getValue());
+		}
+		xb.endObject();
+
+		xb.startObject("environment")
+				.field("java", System.getProperty("java.version"))
+				.field("processors", Runtime.getRuntime().availableProcessors())
+				.field("max_heap_bytes", Runtime.getRuntime().maxMemory())
+			.endObject();
+
+		xb.startObject("results")
+				.field("files", files)
+				.field("files_bytes", account.totalSize())
+				.field("indexed", indexed)
+				.field("indexed_bytes", bytes)
+				.field("time_to_first_document_ms", indexed > 0 ? millis(indexedAt[0] - start) : -1)
+				.field("total_time_ms", millis(end - start));
+		throughput(xb, "overall", indexed, bytes, end - start);
+
+		// Steady state: without the first scan page and the last bulks
+		int from = indexed / 10;
+		int to = indexed * 9 / 10;
+		if (to > from) {
+			long steadyBytes = 0;
+			for (int i = from + 1; i <= to; i++) steadyBytes += sizes[i];
+			throughput(xb, "steady_state", to - from, steadyBytes, indexedAt[to] - indexedAt[from]);
+		}
+
+		long[] sorted = Arrays.copyOf(latencies, indexed);
+		Arrays.sort(sorted);
+		xb.startObject("latency_ms")
+				.field("p50", percentile(sorted, 50))
+				.field("p99", percentile(sorted, 99))
+				.field("max", percentile(sorted, 100))
+			.endObject();
+
+		xb.field("peak_heap_bytes", peakHeap);
+		xb.startObject("dropbox")
+				.field("requests", server.getRequests())
+				.field("errors", server.getErrors())
+				.field("downloads", server.getDownloads())
+				.field("bytes_sent", server.getBytesSent())
+			.endObject();
+		xb.endObject().endObject();
+
+		String output = options.get("output");
+		if (output == null) {
+			System.out.println(xb.string());
+		} else {
+			OutputStream os = new FileOutputStream(output);
+			try {
+				os.write(xb.bytes().toBytes());
+			} finally {
+				os.close();
+			}
+		}
+	}
+
+	private static void throughput(XContentBuilder xb, String name, int documents, long bytes, long nanos) throws Exception {
+		double seconds = Math.max(1, nanos) / 1e9;
+		xb.startObject(name)
+				.field("documents", documents)
+				.field("time_ms", millis(nanos))
+				.field("files_per_second", documents / seconds)
+				.field("mb_per_second", bytes / seconds / (1024 * 1024))
+			.endObject();
+	}
+
+	private static double percentile(long[] sorted, int percentile) {
+		if (sorted.length == 0) return -1;
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return millis(sorted[Math.max(0, Math.min(sorted.length - 1, rank))]);
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+}
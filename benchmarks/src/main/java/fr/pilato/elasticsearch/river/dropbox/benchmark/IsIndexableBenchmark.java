@@ -0,0 +1,127 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fr.pilato.elasticsearch.river.dropbox.river.DropBoxRiverFeedDefinition;
+
+/**
+ * Cost per path of include/exclude rules: rules compiled once in the feed
+ * definition against the previous implementation which built a regex for
+ * every rule and every path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IsIndexableBenchmark {
+
+	private static final int PATHS = 1024;
+
+	@Param({ "4", "40" })
+	public int rules;
+
+	private List<String> includes;
+	private List<String> excludes;
+	private DropBoxRiverFeedDefinition definition;
+	private String[] paths;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		includes = new ArrayList<String>();
+		excludes = new ArrayList<String>();
+
+		// A realistic mix: extensions, directories and a few wildcards
+		for (int i = 0; i < rules; i++) {
+			switch (i % 4) {
+			case 0: includes.add("*.ext" + i); break;
+			case 1: excludes.add("/dir" + i + "/*"); break;
+			case 2: excludes.add("*.tmp" + i); break;
+			default: excludes.add("/dir*/draft" + i + "?.ext*"); break;
+			}
+		}
+
+		definition = new DropBoxRiverFeedDefinition("bench", "/", 0, includes, excludes, null, null, null, null);
+
+		paths = new String[PATHS];
+		for (int i = 0; i < PATHS; i++) {
+			paths[i] = "/dir" + random.nextInt(rules * 2) + "/sub" + random.nextInt(10)
+					+ "/draft" + random.nextInt(rules) + "_" + i + ".ext" + random.nextInt(rules);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void compiled(Blackhole bh) {
+		for (String path : paths) {
+			bh.consume(definition.isIndexable(path));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PATHS)
+	public void regex(Blackhole bh) {
+		for (String path : paths) {
+			bh.consume(isIndexableWithRegex(path, includes, excludes));
+		}
+	}
+
+	/**
+	 * Previous implementation of DropBoxRiverUtil.isIndexable()
+	 */
+	static boolean isIndexableWithRegex(String filename, List<String> includes, List<String> excludes) {
+		if (includes.isEmpty() && excludes.isEmpty()) return true;
+
+		for (String exclude : excludes) {
+			String regex = exclude.replace("?", ".?").replace("*", ".*?");
+			if (filename.matches(regex)) return false;
+		}
+
+		if (includes.isEmpty()) return true;
+
+		for (String include : includes) {
+			String regex = include.replace("?", ".?").replace("*", ".*?");
+			if (filename.matches(regex)) return true;
+		}
+
+		return false;
+	}
+}
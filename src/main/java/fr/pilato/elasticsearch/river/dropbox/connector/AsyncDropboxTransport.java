@@ -0,0 +1,37 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import org.elasticsearch.common.util.concurrent.ListenableFuture;
+
+/**
+ * A {@link DropboxTransport} able to send requests without blocking the caller.
+ */
+public interface AsyncDropboxTransport extends DropboxTransport {
+
+	/**
+	 * Send a request without waiting for the response.
+	 * <br>The future completes once the whole response has been read in memory.
+	 * Listeners may run on the transport threads: they must not block.
+	 * @param request Request to send
+	 * @return the response to come. It fails with an {@link java.io.IOException} when Dropbox can not be reached.
+	 */
+	ListenableFuture<DropboxResponse> executeAsync(DropboxRequest request);
+}
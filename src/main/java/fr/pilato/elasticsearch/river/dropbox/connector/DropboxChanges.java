@@ -29,6 +29,16 @@ public class DropboxChanges implements Serializable {
 	private HashMap<String, DropboxFile> files = new HashMap<String, DropboxFile>();
 	
 	private String cursor = null;
+
+	private boolean hasMore = false;
+
+	private boolean reset = false;
+
+	private int entries = 0;
+
+	private long requestTime = 0;
+
+	private long parseTime = 0;
 	
 	/**
 	 * @return the files
@@ -51,6 +61,65 @@ public class DropboxChanges implements Serializable {
 		this.cursor = cursor;
 	}
 	
+	/**
+	 * @return true if Dropbox has more changes to send after this cursor
+	 */
+	public boolean isHasMore() {
+		return hasMore;
+	}
+
+	/**
+	 * @param hasMore the hasMore to set
+	 */
+	public void setHasMore(boolean hasMore) {
+		this.hasMore = hasMore;
+	}
+
+	/**
+	 * @return true if we must forget everything we know before applying these changes
+	 */
+	public boolean isReset() {
+		return reset;
+	}
+
+	/**
+	 * @param reset the reset to set
+	 */
+	public void setReset(boolean reset) {
+		this.reset = reset;
+	}
+
+	/**
+	 * @return the number of entries sent by Dropbox
+	 */
+	public int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return the time spent waiting for Dropbox to answer, in nanoseconds
+	 */
+	public long getRequestTime() {
+		return requestTime;
+	}
+
+	/**
+	 * @return the time spent reading entries, in nanoseconds
+	 */
+	public long getParseTime() {
+		return parseTime;
+	}
+
+	/**
+	 * Add what we know about a page to these changes
+	 * @param page A page of these changes
+	 */
+	public void addPage(DropboxDeltaPage page) {
+		this.entries += page.getEntries();
+		this.requestTime += page.getRequestTime();
+		this.parseTime += page.getParseTime();
+	}
+
 	public void add(DropboxFile file) {
 		files.put(file.getFilename(), file);
 	}
@@ -20,23 +20,25 @@
 package fr.pilato.elasticsearch.river.dropbox.connector;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
+import org.elasticsearch.common.util.concurrent.ListenableFuture;
+import org.elasticsearch.common.util.concurrent.MoreExecutors;
+import org.elasticsearch.common.util.concurrent.SettableFuture;
 import org.elasticsearch.common.xcontent.XContentHelper;
-import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
 import org.scribe.builder.ServiceBuilder;
 import org.scribe.builder.api.DropBoxApi;
-import org.scribe.model.OAuthRequest;
-import org.scribe.model.Response;
 import org.scribe.model.Token;
-import org.scribe.model.Verb;
 import org.scribe.model.Verifier;
 import org.scribe.oauth.OAuthService;
 
@@ -57,12 +59,76 @@ public class DropboxConnector {
 
 	private static final ESLogger logger = Loggers.getLogger(DropboxConnector.class);
 
+	private static final int BUFFER_SIZE = 8192;
+
+	/** Min value Dropbox accepts for /longpoll_delta timeout (in seconds) */
+	public static final int LONGPOLL_MIN_TIMEOUT = 30;
+
+	/** Max value Dropbox accepts for /longpoll_delta timeout (in seconds) */
+	public static final int LONGPOLL_MAX_TIMEOUT = 480;
+
+	public static final String DEFAULT_API_URL = "https://api.dropbox.com";
+
+	public static final String DEFAULT_CONTENT_URL = "https://api-content.dropbox.com";
+
+	public static final String DEFAULT_NOTIFY_URL = "https://api-notify.dropbox.com";
+
+	/** Default connect timeout in ms */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	/** Default time we wait for data in ms */
+	public static final int DEFAULT_READ_TIMEOUT = 60000;
+
+	/** Dropbox may answer a longpoll up to 90 seconds after the timeout we asked for */
+	private static final int LONGPOLL_EXTRA_TIMEOUT = 120000;
+
+	/** Longest wait between two attempts when Dropbox does not send Retry-After, in ms */
+	private static final long MAX_BACKOFF = 60000;
+
+	/**
+	 * Longest Retry-After we honour, in ms. Dropbox asks for seconds or minutes: anything longer is
+	 * more likely a broken proxy than a limit, and would stop every river sharing the throttler.
+	 */
+	private static final long MAX_RETRY_AFTER = 600000;
+
+	/** Default number of times in a row a broken download is resumed */
+	public static final int DEFAULT_DOWNLOAD_RETRIES = 3;
+
+	/** Default wait before resuming a broken download, doubled on each failure in a row, in ms */
+	public static final long DEFAULT_DOWNLOAD_BACKOFF = 1000;
+
+	/**
+	 * Notified when a throttled call is sent again
+	 */
+	public interface RetryListener {
+		/**
+		 * @param request Throttled request
+		 * @param code HTTP status code, -1 when a download broke and is resumed
+		 * @param delay Time we wait before sending it again, in ms
+		 */
+		void onRetry(DropboxRequest request, int code, long delay);
+	}
+
 	private final String appkey;
 	private final String appsecret;
 	private final Token requestToken;
 	private final OAuthService service;
 	private final String authUrl;
 	private Token accessToken;
+	private String apiUrl = DEFAULT_API_URL;
+	private String contentUrl = DEFAULT_CONTENT_URL;
+	private String notifyUrl = DEFAULT_NOTIFY_URL;
+	private DropboxTransport transport = new UrlConnectionTransport();
+	private AsyncDropboxTransport asyncTransport;
+	private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private int readTimeout = DEFAULT_READ_TIMEOUT;
+	private RequestThrottler throttler;
+	private RetryListener retryListener;
+	private int downloadRetries = DEFAULT_DOWNLOAD_RETRIES;
+	private long downloadBackoff = DEFAULT_DOWNLOAD_BACKOFF;
+
+	/** Built once we have an access token */
+	private volatile OAuthSigner signer;
 	
 	/**
 	 * Build a DropBox Connector for your APP and start OAuth : Step 1 and 2 :
@@ -124,10 +190,105 @@ public class DropboxConnector {
 		this.appsecret = appsecret;
 		this.service = getAuthService(this.appkey, this.appsecret);
 		this.accessToken = new Token(token, secret);
+		this.signer = new OAuthSigner(appkey, appsecret, token, secret);
 		this.requestToken = null;
 		this.authUrl = null;
 	}
 
+	/**
+	 * Send all API calls to another server than Dropbox, a local test server for example.
+	 * @param baseUrl Server URL, like <code>http://localhost:8080</code>. null to use Dropbox.
+	 * @return The connector to chain actions
+	 */
+	public DropboxConnector setBaseUrl(String baseUrl) {
+		if (baseUrl == null) {
+			apiUrl = DEFAULT_API_URL;
+			contentUrl = DEFAULT_CONTENT_URL;
+			notifyUrl = DEFAULT_NOTIFY_URL;
+		} else {
+			String url = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+			apiUrl = url;
+			contentUrl = url;
+			notifyUrl = url;
+		}
+		return this;
+	}
+
+	/**
+	 * Send API calls with another transport. Transports can be shared between connectors.
+	 * @param transport Transport to use
+	 * @return The connector to chain actions
+	 */
+	public DropboxConnector setTransport(DropboxTransport transport) {
+		this.transport = transport;
+		return this;
+	}
+
+	/**
+	 * Download files with another transport in {@link #getFileAsync(String, String)}. Other calls
+	 * still use the main transport, so big files are streamed and broken downloads can be resumed.
+	 * @param asyncTransport Transport to use, null to use the main transport when it is asynchronous
+	 * @return The connector to chain actions
+	 */
+	public DropboxConnector setAsyncTransport(AsyncDropboxTransport asyncTransport) {
+		this.asyncTransport = asyncTransport;
+		return this;
+	}
+
+	/**
+	 * Space calls with a throttler. Throttled calls are sent again until the throttler gives up.
+	 * <br>Connectors using the same app key should share the same throttler.
+	 * @param throttler Throttler, null to send calls right away and never retry
+	 * @return The connector to chain actions
+	 */
+	public DropboxConnector setThrottler(RequestThrottler throttler) {
+		this.throttler = throttler;
+		return this;
+	}
+
+	/**
+	 * @param retries Number of times in a row a broken download is resumed, 0 to give up on first failure
+	 * @param backoff Wait before resuming a broken download, doubled on each failure in a row, in ms
+	 * @return The connector to chain actions
+	 */
+	public DropboxConnector setDownloadRetries(int retries, long backoff) {
+		this.downloadRetries = retries;
+		this.downloadBackoff = backoff;
+		return this;
+	}
+
+	/**
+	 * @param retryListener Notified when a throttled call is sent again or a broken download is resumed
+	 * @return The connector to chain actions
+	 */
+	public DropboxConnector setRetryListener(RetryListener retryListener) {
+		this.retryListener = retryListener;
+		return this;
+	}
+
+	/**
+	 * @return true if files can be downloaded with {@link #getFileAsync(String, String)}
+	 */
+	public boolean isAsync() {
+		return getAsyncTransport() != null;
+	}
+
+	private AsyncDropboxTransport getAsyncTransport() {
+		if (asyncTransport != null) return asyncTransport;
+		return transport instanceof AsyncDropboxTransport ? (AsyncDropboxTransport) transport : null;
+	}
+
+	/**
+	 * @param connectTimeout Connect timeout in ms, 0 to wait forever
+	 * @param readTimeout How long we wait for data in ms, 0 to wait forever. Longpoll calls wait longer.
+	 * @return The connector to chain actions
+	 */
+	public DropboxConnector setTimeouts(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
 	/**
 	 * OAuth : Step 3 : After user authorization on DropBox site,
 	 * get an Access Token on APIs
@@ -137,6 +298,7 @@ public class DropboxConnector {
 	public DropboxConnector computeAccessToken() {
 		Verifier verifier = new Verifier("verifier you got from the user");
 		accessToken = service.getAccessToken(requestToken, verifier);
+		signer = new OAuthSigner(appkey, appsecret, accessToken.getToken(), accessToken.getSecret());
 		return this;
 	}
 
@@ -146,75 +308,312 @@ public class DropboxConnector {
 	 * @return DropBox Account Details
 	 */
 	public DropboxAccount getUserInfo() {
-		Response response = getResponse(Verb.GET, "https://api.dropbox.com/1/account/info", (PostOption[]) null);
-		Map<String, Object> map = XContentHelper.convertToMap(response.getBody().getBytes(), 0, response.getBody().length(), false).v2();
-		return new DropboxAccount(map);
+		DropboxResponse response = getResponse("GET", apiUrl + "/1/account/info", (PostOption[]) null);
+		return new DropboxAccount(readMap(response));
 	}
 
+	/**
+	 * Download a file in memory.
+	 * <br>Prefer {@link #getFileStream(String, String)} or {@link #getFiles(String, String, OutputStream)}
+	 * for big files.
+	 * @param root Root, usually "dropbox"
+	 * @param path File path
+	 * @return File content
+	 */
 	public byte[] getFiles(String root, String path) {
-		Response response = getResponse(Verb.GET, "https://api-content.dropbox.com/1/files/"+root+encodePath(path), (PostOption[]) null);
-		return getContent(response);
-	}
-
-    private byte[] getContent(Response response) {
-        ByteArrayOutputStream bos = null;
-        long totalRead = 0;
-        long length = Long.parseLong(response.getHeader("Content-Length"));
-        InputStream is = response.getStream();
-        
-        try {
-            bos = new ByteArrayOutputStream();
-
-            byte[] buffer = new byte[4096];
-            int read;
-            while (true) {
-                read = is.read(buffer);
-                if (read < 0) {
-                    if (length >= 0 && totalRead < length) {
-                        // We've reached the end of the file, but it's unexpected.
-                        throw new RuntimeException("Unexpected end of stream : " + totalRead);
-                    }
-                    // TODO check for partial success, if possible
-                    break;
-                }
-
-                bos.write(buffer, 0, read);
-
-                totalRead += read;
-            }
-
-            bos.flush();
-            return bos.toByteArray();
-        } catch (IOException e) {
-            String message = e.getMessage();
-            if (message != null && message.startsWith("No space")) {
-                // This is a hack, but it seems to be the only way to check
-                // which exception it is.
-                throw new RuntimeException("Not enough space");
-            } else {
-                /*
-                 * If the output stream was closed, we notify the caller
-                 * that only part of the file was copied. This could have
-                 * been because this request is being intentionally
-                 * canceled.
-                 */
-                throw new RuntimeException("Outputstream is closed before end of reading");
-            }
-        } finally {
-            if (bos != null) {
-                try {
-                    bos.close();
-                } catch (IOException e) {}
-            }
-            // This will also abort/finish the request if the download is
-            // canceled early.
-            try {
-                is.close();
-            } catch (IOException e) {}
-        }
-    }
+		DropboxInputStream is = getFileStream(root, path);
+		long length = is.getLength();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(length > 0 && length < Integer.MAX_VALUE ? (int) length : BUFFER_SIZE);
+		copy(is, bos);
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Download a file and push its content to an output stream, chunk by chunk.
+	 * The file is never fully loaded in memory.
+	 * @param root Root, usually "dropbox"
+	 * @param path File path
+	 * @param output Where to write the content. Not closed by this method.
+	 * @return Number of bytes written
+	 */
+	public long getFiles(String root, String path, OutputStream output) {
+		return copy(getFileStream(root, path), output);
+	}
+
+	/**
+	 * Open a stream on a file content.
+	 * <br>Caller must close the stream to release the HTTP connection.
+	 * @param root Root, usually "dropbox"
+	 * @param path File path
+	 * @return File content, read from the network when consumed
+	 * @see #getFileStream(String, String, DropboxEntry)
+	 */
+	public DropboxInputStream getFileStream(String root, String path) {
+		return getFileStream(root, path, null);
+	}
+
+	/**
+	 * Open a stream on a file content. When the connection breaks, we wait and ask for the
+	 * missing bytes only, with an HTTP Range on the same revision.
+	 * <br>Caller must close the stream to release the HTTP connection.
+	 * @param root Root, usually "dropbox"
+	 * @param path File path
+	 * @param meta File metadata, null if unknown. Used when Dropbox does not tell the revision or the length it sends.
+	 * @return File content, read from the network when consumed
+	 */
+	public DropboxInputStream getFileStream(String root, String path, DropboxEntry meta) {
+		String url = contentUrl + "/1/files/" + root + encodePath(path);
+		Download download = new Download(url, meta);
+		ResumableInputStream content = new ResumableInputStream(download, downloadRetries, downloadBackoff);
+		try {
+			content.open();
+		} catch (IOException e) {
+			throw new RuntimeException("Can not reach Dropbox for GET " + url + " : " + e.getMessage(), e);
+		}
+		return new DropboxInputStream(content, download.length());
+	}
+
+	/**
+	 * A file download, resumed from any byte of the revision we got first
+	 */
+	private class Download implements ResumableInputStream.Source {
+		private final String url;
+		private String rev;
+		private long length = -1;
+
+		private Download(String url, DropboxEntry meta) {
+			this.url = url;
+			if (meta != null) {
+				this.rev = meta.rev;
+				if (!meta.isDir) this.length = meta.bytes;
+			}
+		}
+
+		@Override
+		public InputStream open(long offset) throws IOException {
+			if (offset == 0) {
+				DropboxResponse response = send("GET", url, readTimeout, null, (PostOption[]) null);
+				// What Dropbox sends wins over the metadata we got before
+				String served = getRev(response);
+				if (served != null && !served.equals(rev)) {
+					// The file changed since we got its metadata
+					rev = served;
+					length = -1;
+				}
+				long contentLength = getContentLength(response);
+				if (contentLength >= 0) length = contentLength;
+				return response.getStream();
+			}
+
+			// Asking for the revision we started with, the rest can not come from another one
+			String target = rev == null ? url : url + "?rev=" + encodeParameter(rev);
+			DropboxResponse response = send("GET", target, readTimeout, "bytes=" + offset + "-", (PostOption[]) null);
+			try {
+				String served = getRev(response);
+				if (rev != null && served != null && !rev.equals(served)) {
+					throw new IllegalStateException("revision " + served + " instead of " + rev);
+				}
+
+				InputStream stream = response.getStream();
+				if (response.getCode() == 206) {
+					long[] range = getContentRange(response);
+					if (range == null || range[0] != offset || (length >= 0 && range[1] >= 0 && range[1] != length)) {
+						throw new IllegalStateException("range " + response.getHeader("Content-Range") + " instead of " + offset + "-/" + length);
+					}
+				} else {
+					// Range is not supported: we skip what we already have
+					long contentLength = getContentLength(response);
+					if (length >= 0 && contentLength >= 0 && contentLength != length) {
+						throw new IllegalStateException(contentLength + " bytes instead of " + length);
+					}
+					skipFully(stream, offset);
+				}
+				return stream;
+			} catch (IOException e) {
+				response.close();
+				throw e;
+			} catch (RuntimeException e) {
+				response.close();
+				// Callers must still see that Dropbox throttled us
+				if (e instanceof DropboxThrottledException) throw e;
+				throw new RuntimeException("Can not resume download of " + url + " : " + e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public long length() {
+			return length;
+		}
+
+		@Override
+		public void onRetry(long offset, long delay, IOException cause) {
+			if (logger.isDebugEnabled())
+				logger.debug("download of {} broken at {} bytes: {}. Resuming in {} ms.", url, offset, cause.getMessage(), delay);
+			if (retryListener != null) retryListener.onRetry(new DropboxRequest("GET", url), -1, delay);
+		}
+	}
+
+	/**
+	 * @return the revision Dropbox sends in <code>x-dropbox-metadata</code>, null if unknown
+	 */
+	private static String getRev(DropboxResponse response) {
+		String metadata = response.getHeader("x-dropbox-metadata");
+		if (metadata == null) return null;
+		try {
+			byte[] json = metadata.getBytes("UTF-8");
+			Object rev = XContentHelper.convertToMap(json, 0, json.length, false).v2().get("rev");
+			return rev == null ? null : rev.toString();
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the first byte and the total length from <code>Content-Range: bytes first-last/total</code>,
+	 * total being -1 if unknown. null if the header can not be read.
+	 */
+	private static long[] getContentRange(DropboxResponse response) {
+		String range = response.getHeader("Content-Range");
+		if (range == null || !range.startsWith("bytes ")) return null;
+		try {
+			int dash = range.indexOf('-');
+			int slash = range.indexOf('/');
+			if (dash < 0 || slash < dash) return null;
+			String total = range.substring(slash + 1).trim();
+			return new long[] { Long.parseLong(range.substring(6, dash).trim()), "*".equals(total) ? -1 : Long.parseLong(total) };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static void skipFully(InputStream stream, long bytes) throws IOException {
+		byte[] buffer = null;
+		while (bytes > 0) {
+			long skipped = stream.skip(bytes);
+			if (skipped <= 0) {
+				if (buffer == null) buffer = new byte[BUFFER_SIZE];
+				int read = stream.read(buffer, 0, (int) Math.min(buffer.length, bytes));
+				if (read < 0) throw new EOFException("Unexpected end of stream while skipping " + bytes + " bytes");
+				skipped = read;
+			}
+			bytes -= skipped;
+		}
+	}
+
+	/**
+	 * Download a file without blocking the caller. Needs an {@link AsyncDropboxTransport}, see {@link #setAsyncTransport}.
+	 * <br>The transport reads the whole content in memory before the future completes:
+	 * prefer {@link #getFileStream(String, String)} for big files.
+	 * <br>With a throttler, the caller waits for its turn to call Dropbox.
+	 * @param root Root, usually "dropbox"
+	 * @param path File path
+	 * @return File content to come. Listeners may run on the transport threads: they must not block.
+	 */
+	public ListenableFuture<DropboxInputStream> getFileAsync(String root, String path) {
+		if (!isAsync()) {
+			throw new IllegalStateException("Asynchronous downloads need an asynchronous transport");
+		}
+
+		String url = contentUrl + "/1/files/" + root + encodePath(path);
+		SettableFuture<DropboxInputStream> file = SettableFuture.create();
+		// The first call waits in the caller thread, retries must not block the transport threads
+		acquire();
+		sendAsync(url, file, 0);
+		return file;
+	}
+
+	private void sendAsync(final String url, final SettableFuture<DropboxInputStream> file, final int attempt) {
+		final DropboxRequest request;
+		final ListenableFuture<DropboxResponse> response;
+		try {
+			request = buildRequest("GET", url, readTimeout, (PostOption[]) null);
+			response = getAsyncTransport().executeAsync(request);
+		} catch (RuntimeException e) {
+			file.setException(e);
+			return;
+		}
+
+		response.addListener(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					DropboxResponse done = response.get();
+					if (retry(request, done, attempt)) {
+						throttler.execute(new Runnable() {
+							@Override
+							public void run() {
+								sendAsync(url, file, attempt + 1);
+							}
+						});
+						return;
+					}
+					checkResponse(done);
+					file.set(new DropboxInputStream(done.getStream(), getContentLength(done)));
+				} catch (ExecutionException e) {
+					file.setException(new RuntimeException("Can not reach Dropbox for " + request + " : " + e.getCause().getMessage(), e.getCause()));
+				} catch (Exception e) {
+					file.setException(e);
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+
+	private static long getContentLength(DropboxResponse response) {
+		String length = response.getHeader("Content-Length");
+		if (length == null) return -1;
+		try {
+			return Long.parseLong(length);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static long copy(DropboxInputStream is, OutputStream os) {
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = is.read(buffer)) >= 0) {
+				os.write(buffer, 0, read);
+			}
+
+			os.flush();
+			return is.getTotalRead();
+		} catch (EOFException e) {
+			throw new RuntimeException(e.getMessage());
+		} catch (IOException e) {
+			String message = e.getMessage();
+			if (message != null && message.startsWith("No space")) {
+				// This is a hack, but it seems to be the only way to check
+				// which exception it is.
+				throw new RuntimeException("Not enough space");
+			} else {
+				/*
+				 * If the output stream was closed, we notify the caller
+				 * that only part of the file was copied. This could have
+				 * been because this request is being intentionally
+				 * canceled.
+				 */
+				throw new RuntimeException("Outputstream is closed before end of reading");
+			}
+		} finally {
+			// This will also abort/finish the request if the download is
+			// canceled early.
+			try {
+				is.close();
+			} catch (IOException e) {}
+		}
+	}
     
     
+	private static String encodeParameter(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			logger.warn("cannot encode {}", value);
+		}
+		return value;
+	}
+
 	public static String encodePath(String path) {
 		try {
             String target = URLEncoder.encode(path, "UTF-8");
@@ -227,67 +626,162 @@ public class DropboxConnector {
 		return path;
 	}
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * Get all changes since a cursor. We follow has_more until Dropbox has nothing more to send.
+	 * <br>All changes are kept in memory: prefer {@link #getDelta(String, DropboxDeltaListener)}
+	 * to process changes page by page.
+	 * @param cursor Last known cursor, null for a full listing
+	 * @return All the changes and the cursor to use next time
+	 */
 	public DropboxChanges getDelta(String cursor) {
+		return getDelta(cursor, (String) null);
+	}
+
+	/**
+	 * Get all changes under a path since a cursor. We follow has_more until Dropbox has nothing more to send.
+	 * @param cursor Last known cursor for this path, null for a full listing
+	 * @param pathPrefix Only changes under this path are sent by Dropbox, null for the whole account
+	 * @return All the changes and the cursor to use next time
+	 */
+	public DropboxChanges getDelta(String cursor, String pathPrefix) {
 		DropboxChanges changes = new DropboxChanges();
+		DropboxDeltaListener listener = collectInto(changes);
+
+		DropboxDeltaPage page;
+		do {
+			page = getDelta(cursor, pathPrefix, listener);
+			changes.addPage(page);
+			cursor = page.getCursor();
+			if (page.isReset()) changes.setReset(true);
+		} while (page.isHasMore());
 		
-		PostOption option = null;
-		boolean hasMore = true;
+		changes.setCursor(cursor);
+		return changes;
+	}
+
+	/**
+	 * Get only one page of changes. Use {@link DropboxChanges#isHasMore()} and
+	 * {@link DropboxChanges#getCursor()} to get the next page.
+	 * @param cursor Last known cursor, null for a full listing
+	 * @return The changes of this page only
+	 */
+	public DropboxChanges getDeltaPage(String cursor) {
+		return getDeltaPage(cursor, null);
+	}
+
+	/**
+	 * Get only one page of changes under a path.
+	 * @param cursor Last known cursor for this path, null for a full listing
+	 * @param pathPrefix Only changes under this path are sent by Dropbox, null for the whole account
+	 * @return The changes of this page only
+	 */
+	public DropboxChanges getDeltaPage(String cursor, String pathPrefix) {
+		DropboxChanges changes = new DropboxChanges();
+		DropboxDeltaPage page = getDelta(cursor, pathPrefix, collectInto(changes));
+		changes.addPage(page);
+		changes.setCursor(page.getCursor());
+		changes.setHasMore(page.isHasMore());
+		changes.setReset(page.isReset());
+		return changes;
+	}
+
+	/**
+	 * Wait until Dropbox has changes after a cursor or until the timeout expires.
+	 * <br>Dropbox may add up to 90 seconds to the timeout.
+	 * <br>(see <a href="https://www.dropbox.com/developers/core/docs#longpoll-delta">DropBox API</a>)
+	 * @param cursor Cursor we got from the last delta call
+	 * @param timeout Max time to wait in seconds, between {@link #LONGPOLL_MIN_TIMEOUT} and {@link #LONGPOLL_MAX_TIMEOUT}
+	 * @return Whether changes are available and how long we should wait before calling again
+	 */
+	public DropboxDeltaNotification longpollDelta(String cursor, int timeout) {
+		if (cursor == null) throw new IllegalArgumentException("You need a cursor to wait for changes");
+		timeout = Math.max(LONGPOLL_MIN_TIMEOUT, Math.min(LONGPOLL_MAX_TIMEOUT, timeout));
+
+		String url = notifyUrl + "/1/longpoll_delta?cursor=" + encodeParameter(cursor) + "&timeout=" + timeout;
+		DropboxResponse response = getResponse("GET", url, timeout * 1000 + LONGPOLL_EXTRA_TIMEOUT, (PostOption[]) null);
+		return new DropboxDeltaNotification(readMap(response));
+	}
+
+	/**
+	 * Dropbox wants a path prefix starting with a slash and without trailing slash.
+	 * @param pathPrefix Path prefix
+	 * @return the prefix to send, null for the whole account
+	 */
+	public static String normalizePathPrefix(String pathPrefix) {
+		if (pathPrefix == null) return null;
+		String prefix = pathPrefix.trim();
+		while (prefix.endsWith("/")) prefix = prefix.substring(0, prefix.length() - 1);
+		if (prefix.isEmpty()) return null;
+		if (!prefix.startsWith("/")) prefix = "/" + prefix;
+		return prefix;
+	}
+
+	private static DropboxDeltaListener collectInto(final DropboxChanges changes) {
+		return new DropboxDeltaListener() {
+			@Override
+			public void onEntry(String filename, DropboxEntry meta) {
+				// We check if we already have this file
+				DropboxFile dropboxfile = changes.get(filename);
+				if (dropboxfile == null) {
+					changes.add(new DropboxFile(meta, filename));
+				} else {
+					dropboxfile.setMeta(meta);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Get one page of changes. Entries are sent to the listener while the response is read.
+	 * @param cursor Last known cursor, null for a full listing
+	 * @param listener Receive entries one by one
+	 * @return The page cursor and whether Dropbox has more changes to send
+	 */
+	public DropboxDeltaPage getDelta(String cursor, DropboxDeltaListener listener) {
+		return getDelta(cursor, null, listener);
+	}
+
+	/**
+	 * Get one page of changes under a path. Entries of other paths are not even sent by Dropbox.
+	 * <br>A cursor is only valid for the path prefix it was built with.
+	 * @param cursor Last known cursor for this path, null for a full listing
+	 * @param pathPrefix Only changes under this path are sent by Dropbox, null for the whole account
+	 * @param listener Receive entries one by one
+	 * @return The page cursor and whether Dropbox has more changes to send
+	 */
+	public DropboxDeltaPage getDelta(String cursor, String pathPrefix, DropboxDeltaListener listener) {
+		PostOption cursorOption = null;
+		if (cursor != null) cursorOption = new PostOption("cursor", cursor);
+
+		PostOption prefixOption = null;
+		pathPrefix = normalizePathPrefix(pathPrefix);
+		if (pathPrefix != null) prefixOption = new PostOption("path_prefix", pathPrefix);
 		
-		while (hasMore) {
-			if (cursor != null) option = new PostOption("cursor", cursor);
-			
-			Response response = getResponse(Verb.POST, "https://api.dropbox.com/1/delta", option);
+		long start = System.nanoTime();
+		DropboxResponse response = getResponse("POST", apiUrl + "/1/delta", cursorOption, prefixOption);
+		long answered = System.nanoTime();
 
+		try {
+			DropboxDeltaPage page = DropboxDeltaParser.parse(response.getStream(), listener);
+			page.setRequestTime(answered - start);
+			page.setParseTime(System.nanoTime() - answered);
 			if (logger.isDebugEnabled())
-				logger.debug("get delta from {}: {}", cursor, response.getBody());
-
-			Map<String, Object> map = XContentHelper.convertToMap(response.getBody().getBytes(), 0, response.getBody().length(), false).v2();
-			Object oCursor = XContentMapValues.extractValue("cursor", map);
-			Object oHasMore = XContentMapValues.extractValue("has_more", map);
-			
-			hasMore = (oHasMore != null && (Boolean) oHasMore);
-			cursor = (String) oCursor;
-			
-			// We get some entries here
-			Object oEntries = XContentMapValues.extractValue("entries", map);
-			if (oEntries != null && XContentMapValues.isArray(oEntries)) {
-				ArrayList<?> entries = (ArrayList<?>) oEntries;
-				
-				for (Object oEntry : entries) {
-					if (XContentMapValues.isArray(oEntry)) {
-						ArrayList<?> entry = (ArrayList<?>) oEntry;
-						
-						// We should have filename in [0] and metadata in [1]
-						Object oFilename = entry.get(0);
-						Object oFilemeta = null;
-						
-						if (oFilename instanceof String) {
-							oFilemeta = entry.get(1);
-						} else {
-							oFilename = entry.get(1);
-							oFilemeta = entry.get(0);
-						}
-						Map<String, Object> mapMeta = (Map<String, Object>) oFilemeta;
-						String filename = (String) oFilename;
-						
-						DropboxEntry meta = new DropboxEntry(mapMeta);
-
-						// We check if we already have this file
-						DropboxFile dropboxfile = changes.get(filename);
-						if (dropboxfile == null) {
-							dropboxfile = new DropboxFile(meta, filename);
-							changes.add(dropboxfile);
-						} else {
-							dropboxfile.getMeta().update(mapMeta);
-						}
-					} 
-				}
-			}			
+				logger.debug("get delta from {} under {}: {} entries, has_more: {}", cursor, pathPrefix, page.getEntries(), page.isHasMore());
+			return page;
+		} catch (IOException e) {
+			throw new RuntimeException("Can not read Dropbox delta : " + e.getMessage(), e);
+		} finally {
+			response.close();
+		}
+	}
+
+	private static Map<String, Object> readMap(DropboxResponse response) {
+		try {
+			byte[] body = response.getBody().getBytes("UTF-8");
+			return XContentHelper.convertToMap(body, 0, body.length, false).v2();
+		} catch (IOException e) {
+			throw new RuntimeException("Can not read Dropbox response : " + e.getMessage(), e);
 		}
-		
-		changes.setCursor(cursor);
-		return changes;
 	}
 
 		
@@ -309,30 +803,179 @@ public class DropboxConnector {
 		return service;
 	}
 
-	protected Response getResponse(Verb verb, String url, PostOption... options) {
-		OAuthRequest request = new OAuthRequest(verb, url);
-		
+	protected DropboxResponse getResponse(String method, String url, PostOption... options) {
+		return getResponse(method, url, readTimeout, options);
+	}
+
+	/**
+	 * Send a signed request
+	 * @param method GET or POST
+	 * @param url Full URL
+	 * @param readTimeout How long we wait for data in ms
+	 * @param options POST parameters
+	 * @return the response, with a 200 status code
+	 */
+	protected DropboxResponse getResponse(String method, String url, int readTimeout, PostOption... options) {
+		try {
+			return send(method, url, readTimeout, null, options);
+		} catch (IOException e) {
+			throw new RuntimeException("Can not reach Dropbox for " + method + " " + url + " : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Send a signed request, again while Dropbox throttles it
+	 * @param method GET or POST
+	 * @param url Full URL
+	 * @param readTimeout How long we wait for data in ms
+	 * @param range HTTP Range, null for the whole content
+	 * @param options POST parameters
+	 * @return the response, with a 200 or 206 status code
+	 * @throws IOException when Dropbox can not be reached
+	 */
+	private DropboxResponse send(String method, String url, int readTimeout, String range, PostOption... options) throws IOException {
+		for (int attempt = 0; ; attempt++) {
+			// Each attempt is signed again: Dropbox refuses a nonce it already saw
+			DropboxRequest request = buildRequest(method, url, readTimeout, options);
+			if (range != null) request.setHeader("Range", range);
+			acquire();
+
+			DropboxResponse response = transport.execute(request);
+
+			// too much information (don't really want the datafile to be logged)
+			//if (logger.isDebugEnabled())
+			//    logger.debug("getResponse {} {}: {}", method, url, response.getBody());
+
+			if (retry(request, response, attempt)) continue;
+			return checkResponse(response);
+		}
+	}
+
+	/**
+	 * Wait for our turn to call Dropbox
+	 */
+	private void acquire() {
+		if (throttler == null) return;
+		try {
+			throttler.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting to call Dropbox");
+		}
+	}
+
+	/**
+	 * Tell the throttler how Dropbox answered
+	 * @param request Request we sent
+	 * @param response Dropbox response
+	 * @param attempt Number of times the request was already sent again
+	 * @return true if the request must be sent again. The response is closed.
+	 */
+	private boolean retry(DropboxRequest request, DropboxResponse response, int attempt) {
+		if (throttler == null) return false;
+		if (!isThrottled(response.getCode())) {
+			throttler.onSuccess();
+			return false;
+		}
+
+		long delay = retryDelay(response, attempt);
+		throttler.onThrottled(delay);
+		if (attempt >= throttler.getMaxRetries()) return false;
+
+		if (logger.isDebugEnabled())
+			logger.debug("dropbox throttled {} with {}. Retrying in {} ms.", request, response.getCode(), delay);
+		response.close();
+		if (retryListener != null) retryListener.onRetry(request, response.getCode(), delay);
+		return true;
+	}
+
+	private static boolean isThrottled(int code) {
+		return code == 429 || code == 503;
+	}
+
+	/**
+	 * @param response Throttled response
+	 * @param attempt Number of times the request was already sent again
+	 * @return Retry-After if Dropbox sent it (up to {@link #MAX_RETRY_AFTER}), an exponential backoff
+	 * up to {@link #MAX_BACKOFF} otherwise, in ms
+	 */
+	private static long retryDelay(DropboxResponse response, int attempt) {
+		String retryAfter = response.getHeader("Retry-After");
+		if (retryAfter != null) {
+			try {
+				return Math.min(MAX_RETRY_AFTER, Math.max(0, Long.parseLong(retryAfter.trim()) * 1000));
+			} catch (NumberFormatException e) {
+				// An HTTP date: we don't trust our clock that much
+			}
+		}
+		return Math.min(MAX_BACKOFF, 1000L << Math.min(attempt, 16));
+	}
+
+	/**
+	 * Build a signed request
+	 * @param method GET or POST
+	 * @param url Full URL
+	 * @param readTimeout How long we wait for data in ms
+	 * @param options POST parameters
+	 * @return the request to send
+	 */
+	protected DropboxRequest buildRequest(String method, String url, int readTimeout, PostOption... options) {
+		if (signer == null) throw new IllegalStateException("You need an access token to call Dropbox");
+
+		Map<String, String> parameters = new LinkedHashMap<String, String>();
 		if (options != null) {
 			for (PostOption postOption : options) {
 				if (postOption != null) {
-					request.addBodyParameter(postOption.getOption(), postOption.getValue());
+					parameters.put(postOption.getOption(), postOption.getValue());
 				}
 			}
 		}
-		getAuthService(appkey, appsecret).signRequest(accessToken, request);
-		Response response = request.send();
-		
-		if (response.getCode() != 200) {
-			throw new RuntimeException("Dropbox HTTP Error " + response.getCode() + " : " + response.getBody());
+
+		DropboxRequest request = new DropboxRequest(method, url)
+				.setConnectTimeout(connectTimeout)
+				.setReadTimeout(readTimeout)
+				.setHeader("Authorization", signer.sign(method, url, parameters));
+		if (!parameters.isEmpty()) {
+			request.setHeader("Content-Type", "application/x-www-form-urlencoded");
+			request.setBody(formBody(parameters));
+		}
+		return request;
+	}
+
+	/**
+	 * @param response Dropbox response
+	 * @return the response if its status code is 200, or 206 for a range
+	 * @throws DropboxThrottledException if Dropbox told us to slow down
+	 * @throws RuntimeException with the response body otherwise
+	 */
+	private static DropboxResponse checkResponse(DropboxResponse response) {
+		if (response.getCode() != 200 && response.getCode() != 206) {
+			String body;
+			try {
+				body = response.getBody();
+			} catch (IOException e) {
+				body = e.getMessage();
+			}
+			String message = "Dropbox HTTP Error " + response.getCode() + " : " + body;
+			if (isThrottled(response.getCode())) throw new DropboxThrottledException(response.getCode(), message);
+			throw new RuntimeException(message);
 		}
-		
-		// too much information (don't really want the datafile to be logged)
-		//if (logger.isDebugEnabled())
-		//    logger.debug("getResponse {} {}: {}", verb, url, response.getBody());
-		
 		return response;
 	}
 
+	private static byte[] formBody(Map<String, String> parameters) {
+		StringBuilder body = new StringBuilder();
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			if (body.length() > 0) body.append('&');
+			body.append(OAuthSigner.encode(parameter.getKey())).append('=').append(OAuthSigner.encode(parameter.getValue()));
+		}
+		try {
+			return body.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
 	public String getAuthUrl() {
 		return authUrl;
 	}
@@ -0,0 +1,32 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+/**
+ * Receive Dropbox changes one by one while a /delta response is being parsed
+ */
+public interface DropboxDeltaListener {
+
+	/**
+	 * Called for each [path, metadata] entry of a delta page
+	 * @param path Lower cased path as sent by Dropbox
+	 * @param entry Metadata. When Dropbox sends no metadata, the entry is marked as deleted.
+	 */
+	void onEntry(String path, DropboxEntry entry);
+}
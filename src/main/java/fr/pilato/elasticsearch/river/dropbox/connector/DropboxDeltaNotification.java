@@ -0,0 +1,64 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import java.util.Map;
+
+/**
+ * Answer of a /longpoll_delta call
+ */
+public class DropboxDeltaNotification extends DropboxObject {
+	private static final long serialVersionUID = 1L;
+
+	/** True if new changes are available since the cursor. */
+	public final boolean changes;
+
+	/** If set, number of seconds we must wait before calling /longpoll_delta again. */
+	public final long backoff;
+
+	/**
+	 * Creates a notification from a Map.
+	 * 
+	 * @param map
+	 *            a Map that looks like:
+	 * 
+	 *            <pre>
+	 * {"changes": false, "backoff": 60}
+	 * </pre>
+	 */
+	public DropboxDeltaNotification(Map<String, Object> map) {
+		changes = getFromMapAsBoolean(map, "changes");
+		backoff = map.get("backoff") instanceof Number ? ((Number) map.get("backoff")).longValue() : 0;
+	}
+
+	/**
+	 * @return true if new changes are available
+	 */
+	public boolean isChanges() {
+		return changes;
+	}
+
+	/**
+	 * @return number of seconds to wait before the next call, 0 if none
+	 */
+	public long getBackoff() {
+		return backoff;
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+/**
+ * What we know about a /delta page once its entries have been sent to a {@link DropboxDeltaListener}
+ */
+public class DropboxDeltaPage extends DropboxObject {
+	private static final long serialVersionUID = 1L;
+
+	private String cursor;
+	private boolean hasMore;
+	private boolean reset;
+	private int entries;
+	private long requestTime;
+	private long parseTime;
+
+	/**
+	 * @return the cursor to use for the next call
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * @param cursor the cursor to set
+	 */
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+
+	/**
+	 * @return true if Dropbox has more entries to send right now
+	 */
+	public boolean isHasMore() {
+		return hasMore;
+	}
+
+	/**
+	 * @param hasMore the hasMore to set
+	 */
+	public void setHasMore(boolean hasMore) {
+		this.hasMore = hasMore;
+	}
+
+	/**
+	 * @return true if we must forget everything we know before applying this page
+	 */
+	public boolean isReset() {
+		return reset;
+	}
+
+	/**
+	 * @param reset the reset to set
+	 */
+	public void setReset(boolean reset) {
+		this.reset = reset;
+	}
+
+	/**
+	 * @return the number of entries found in this page
+	 */
+	public int getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @param entries the entries to set
+	 */
+	public void setEntries(int entries) {
+		this.entries = entries;
+	}
+
+	/**
+	 * @return the time spent waiting for Dropbox to answer, in nanoseconds
+	 */
+	public long getRequestTime() {
+		return requestTime;
+	}
+
+	/**
+	 * @param requestTime the requestTime to set
+	 */
+	public void setRequestTime(long requestTime) {
+		this.requestTime = requestTime;
+	}
+
+	/**
+	 * @return the time spent reading entries, in nanoseconds
+	 */
+	public long getParseTime() {
+		return parseTime;
+	}
+
+	/**
+	 * @param parseTime the parseTime to set
+	 */
+	public void setParseTime(long parseTime) {
+		this.parseTime = parseTime;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+
+/**
+ * Pull parser for /delta responses.
+ * <br>Entries are decoded one by one and sent to a {@link DropboxDeltaListener}:
+ * we never build the full response as a String or as a Map.
+ * <pre>
+ * {
+ *   "reset": false,
+ *   "cursor": "AAGv...",
+ *   "has_more": false,
+ *   "entries": [
+ *     [ "/test-es/doc.pdf", { "bytes": 5436, "path": "/test-es/doc.pdf", ... } ],
+ *     [ "/test-es/removed.pdf", null ]
+ *   ]
+ * }
+ * </pre>
+ */
+public class DropboxDeltaParser {
+
+	/**
+	 * Parse a /delta JSON response
+	 * @param is JSON content. Closed when done.
+	 * @param listener Will receive every entry
+	 * @return cursor, has_more and reset values
+	 * @throws IOException
+	 */
+	public static DropboxDeltaPage parse(InputStream is, DropboxDeltaListener listener) throws IOException {
+		XContentParser parser = JsonXContent.jsonXContent.createParser(is);
+		try {
+			return parse(parser, listener);
+		} finally {
+			parser.close();
+			is.close();
+		}
+	}
+
+	/**
+	 * Parse a /delta JSON response
+	 * @param parser Parser, not started yet
+	 * @param listener Will receive every entry
+	 * @return cursor, has_more and reset values
+	 * @throws IOException
+	 */
+	public static DropboxDeltaPage parse(XContentParser parser, DropboxDeltaListener listener) throws IOException {
+		DropboxDeltaPage page = new DropboxDeltaPage();
+
+		XContentParser.Token token = parser.nextToken();
+		if (token != XContentParser.Token.START_OBJECT) {
+			throw new IOException("Dropbox delta should be a JSON object but starts with " + token);
+		}
+
+		String currentFieldName = null;
+		while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+			if (token == null) throw new IOException("Unexpected end of Dropbox delta");
+			if (token == XContentParser.Token.FIELD_NAME) {
+				currentFieldName = parser.currentName();
+			} else if (token == XContentParser.Token.START_ARRAY && "entries".equals(currentFieldName)) {
+				page.setEntries(parseEntries(parser, listener));
+			} else if (token.isValue()) {
+				if ("cursor".equals(currentFieldName)) {
+					page.setCursor(parser.text());
+				} else if ("has_more".equals(currentFieldName)) {
+					page.setHasMore(parser.booleanValue());
+				} else if ("reset".equals(currentFieldName)) {
+					page.setReset(parser.booleanValue());
+				}
+			} else if (token == XContentParser.Token.START_OBJECT || token == XContentParser.Token.START_ARRAY) {
+				parser.skipChildren();
+			}
+		}
+
+		return page;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int parseEntries(XContentParser parser, DropboxDeltaListener listener) throws IOException {
+		int entries = 0;
+		XContentParser.Token token;
+		while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+			if (token != XContentParser.Token.START_ARRAY) {
+				parser.skipChildren();
+				continue;
+			}
+
+			// We should have filename in [0] and metadata in [1]
+			String filename = null;
+			DropboxEntry meta = null;
+			while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+				if (token == XContentParser.Token.VALUE_STRING) {
+					filename = parser.text();
+				} else if (token == XContentParser.Token.START_OBJECT) {
+					meta = new DropboxEntry(parser);
+				} else {
+					parser.skipChildren();
+				}
+			}
+
+			if (filename != null) {
+				if (meta == null) {
+					// No metadata means that the file has been removed
+					meta = new DropboxEntry((Map<String, Object>) null);
+				}
+				listener.onEntry(filename, meta);
+				entries++;
+			}
+		}
+		return entries;
+	}
+}
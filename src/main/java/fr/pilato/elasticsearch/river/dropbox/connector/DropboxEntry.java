@@ -19,12 +19,15 @@
 
 package fr.pilato.elasticsearch.river.dropbox.connector;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.elasticsearch.common.xcontent.XContentParser;
+
 public class DropboxEntry extends DropboxObject {
 	private static final long serialVersionUID = 1L;
 
@@ -151,6 +154,16 @@ public class DropboxEntry extends DropboxObject {
 	public DropboxEntry() {
 	}
 
+	/**
+	 * Creates an entry while reading a JSON metadata object.
+	 * @param parser A parser positioned on the START_OBJECT token of the metadata.
+	 *               When done, the parser is positioned on the matching END_OBJECT token.
+	 * @throws IOException
+	 */
+	public DropboxEntry(XContentParser parser) throws IOException {
+		update(parser);
+	}
+
 	@SuppressWarnings("unchecked")
 	public void update(Map<String, Object> map) {
 		if (map == null) {
@@ -187,6 +200,82 @@ public class DropboxEntry extends DropboxObject {
 		}
 	}
 
+
+	/**
+	 * Same as {@link #update(Map)} but reads values directly from a JSON parser
+	 * @param parser A parser positioned on the START_OBJECT token of the metadata
+	 * @throws IOException
+	 */
+	public void update(XContentParser parser) throws IOException {
+		bytes = 0;
+		hash = null;
+		icon = null;
+		isDir = false;
+		modified = null;
+		clientMtime = null;
+		path = null;
+		root = null;
+		size = null;
+		mimeType = null;
+		rev = null;
+		thumbExists = false;
+		isDeleted = false;
+		contents = null;
+
+		String currentFieldName = null;
+		XContentParser.Token token;
+		while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+			if (token == null) throw new IOException("Unexpected end of Dropbox metadata");
+			if (token == XContentParser.Token.FIELD_NAME) {
+				currentFieldName = parser.currentName();
+			} else if (token == XContentParser.Token.START_ARRAY && "contents".equals(currentFieldName)) {
+				contents = new ArrayList<DropboxEntry>();
+				while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+					if (token == XContentParser.Token.START_OBJECT) {
+						contents.add(new DropboxEntry(parser));
+					} else {
+						parser.skipChildren();
+					}
+				}
+			} else if (token == XContentParser.Token.START_OBJECT || token == XContentParser.Token.START_ARRAY) {
+				parser.skipChildren();
+			} else if (token == XContentParser.Token.VALUE_NULL) {
+				// Keep default value
+			} else if ("bytes".equals(currentFieldName)) {
+				if (token == XContentParser.Token.VALUE_NUMBER) {
+					bytes = parser.longValue();
+				} else {
+					// To parse cases where JSON can't represent a Long, so
+					// it's stored as a string
+					bytes = Long.parseLong(parser.text(), 16);
+				}
+			} else if ("hash".equals(currentFieldName)) {
+				hash = parser.text();
+			} else if ("icon".equals(currentFieldName)) {
+				icon = parser.text();
+			} else if ("is_dir".equals(currentFieldName)) {
+				isDir = token == XContentParser.Token.VALUE_BOOLEAN && parser.booleanValue();
+			} else if ("modified".equals(currentFieldName)) {
+				modified = parser.text();
+			} else if ("client_mtime".equals(currentFieldName)) {
+				clientMtime = parser.text();
+			} else if ("path".equals(currentFieldName)) {
+				path = parser.text();
+			} else if ("root".equals(currentFieldName)) {
+				root = parser.text();
+			} else if ("size".equals(currentFieldName)) {
+				size = parser.text();
+			} else if ("mime_type".equals(currentFieldName)) {
+				mimeType = parser.text();
+			} else if ("rev".equals(currentFieldName)) {
+				rev = parser.text();
+			} else if ("thumb_exists".equals(currentFieldName)) {
+				thumbExists = token == XContentParser.Token.VALUE_BOOLEAN && parser.booleanValue();
+			} else if ("is_deleted".equals(currentFieldName)) {
+				isDeleted = token == XContentParser.Token.VALUE_BOOLEAN && parser.booleanValue();
+			}
+		}
+	}
 	
 	/**
 	 * Returns the file name if this is a file (the part after the last slash in
@@ -0,0 +1,113 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Content of a Dropbox file as it comes from the network.
+ * <br>Nothing is buffered: bytes are read from the HTTP response when you read them.
+ * An {@link EOFException} is raised if the stream ends before the announced length.
+ * <br>You must close this stream when done to release the HTTP connection.
+ */
+public class DropboxInputStream extends FilterInputStream {
+
+	private final long length;
+	private long totalRead = 0;
+	private long readTime = 0;
+
+	/**
+	 * @param in The HTTP response stream
+	 * @param length The announced content length, -1 if unknown
+	 */
+	public DropboxInputStream(InputStream in, long length) {
+		super(in);
+		this.length = length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		long start = System.nanoTime();
+		int read = super.read();
+		readTime += System.nanoTime() - start;
+		if (read < 0) {
+			checkEndOfStream();
+		} else {
+			totalRead++;
+		}
+		return read;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		int read = super.read(b, off, len);
+		readTime += System.nanoTime() - start;
+		if (read < 0) {
+			checkEndOfStream();
+		} else {
+			totalRead += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = super.skip(n);
+		totalRead += skipped;
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	private void checkEndOfStream() throws EOFException {
+		if (length >= 0 && totalRead < length) {
+			// We've reached the end of the file, but it's unexpected.
+			throw new EOFException("Unexpected end of stream : " + totalRead);
+		}
+	}
+
+	/**
+	 * @return the announced content length, -1 if unknown
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the number of bytes read so far
+	 */
+	public long getTotalRead() {
+		return totalRead;
+	}
+
+	/**
+	 * @return the time spent waiting for the network in read calls, in nanoseconds
+	 */
+	public long getReadTime() {
+		return readTime;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An HTTP request to Dropbox
+ */
+public class DropboxRequest {
+	private final String method;
+	private final String url;
+	private final Map<String, String> headers = new LinkedHashMap<String, String>();
+	private byte[] body;
+	private int connectTimeout;
+	private int readTimeout;
+
+	/**
+	 * @param method GET or POST
+	 * @param url Full URL, query string included
+	 */
+	public DropboxRequest(String method, String url) {
+		this.method = method;
+		this.url = url;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+
+	public DropboxRequest setHeader(String name, String value) {
+		headers.put(name, value);
+		return this;
+	}
+
+	/**
+	 * @return the form encoded body, null if none
+	 */
+	public byte[] getBody() {
+		return body;
+	}
+
+	public DropboxRequest setBody(byte[] body) {
+		this.body = body;
+		return this;
+	}
+
+	/**
+	 * @return the connect timeout in ms, 0 to wait forever
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public DropboxRequest setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		return this;
+	}
+
+	/**
+	 * @return how long we wait for data in ms, 0 to wait forever
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public DropboxRequest setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return method + " " + url;
+	}
+}
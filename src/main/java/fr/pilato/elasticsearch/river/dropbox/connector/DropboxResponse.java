@@ -0,0 +1,97 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An HTTP response from Dropbox. The body is read from the network when consumed.
+ * <br>Close it, or its stream, to give the connection back to the transport.
+ */
+public class DropboxResponse implements Closeable {
+	private final int code;
+	private final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+	private final InputStream stream;
+
+	/**
+	 * @param code HTTP status code
+	 * @param headers Response headers. Names are case insensitive.
+	 * @param stream Response body
+	 */
+	public DropboxResponse(int code, Map<String, String> headers, InputStream stream) {
+		this.code = code;
+		if (headers != null) this.headers.putAll(headers);
+		this.stream = stream;
+	}
+
+	public int getCode() {
+		return code;
+	}
+
+	/**
+	 * @param name Header name, case insensitive
+	 * @return the header value, null if not sent
+	 */
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+
+	/**
+	 * @return the body, read from the network when consumed
+	 */
+	public InputStream getStream() {
+		return stream;
+	}
+
+	/**
+	 * Read the whole body and close the response
+	 * @return the body as an UTF-8 string
+	 * @throws IOException
+	 */
+	public String getBody() throws IOException {
+		if (stream == null) return "";
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = stream.read(buffer)) >= 0) {
+				bos.write(buffer, 0, read);
+			}
+			return bos.toString("UTF-8");
+		} finally {
+			close();
+		}
+	}
+
+	@Override
+	public void close() {
+		if (stream == null) return;
+		try {
+			stream.close();
+		} catch (IOException e) {
+			// Connection will not be reused
+		}
+	}
+}
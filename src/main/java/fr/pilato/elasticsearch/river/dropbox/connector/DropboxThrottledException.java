@@ -0,0 +1,45 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+/**
+ * Dropbox told us to slow down (HTTP 429 or 503) and we gave up retrying.
+ * <br>The call can be sent again later: nothing is wrong with it.
+ */
+public class DropboxThrottledException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int code;
+
+	/**
+	 * @param code HTTP status code
+	 * @param message Error message
+	 */
+	public DropboxThrottledException(int code, String message) {
+		super(message);
+		this.code = code;
+	}
+
+	public int getCode() {
+		return code;
+	}
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import java.io.IOException;
+
+/**
+ * Send HTTP requests to Dropbox. Requests are already signed by the {@link DropboxConnector}.
+ * <br>Implementations must be thread safe, as one transport is shared by every connector of a river,
+ * and have a public no-arg constructor to be used with the <code>transport</code> setting.
+ * See {@link DropboxTransports} for built-in transports.
+ */
+public interface DropboxTransport {
+
+	/**
+	 * Send a request and wait for the response headers
+	 * @param request Request to send
+	 * @return the response. Caller must close it to give the connection back.
+	 * @throws IOException when Dropbox can not be reached
+	 */
+	DropboxResponse execute(DropboxRequest request) throws IOException;
+
+	/**
+	 * Release connections
+	 */
+	void close();
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+/**
+ * Built-in {@link DropboxTransport}s
+ */
+public class DropboxTransports {
+
+	public static final String DEFAULT = "url_connection";
+
+	public static final String NIO = "nio";
+
+	private DropboxTransports() {
+	}
+
+	/**
+	 * Build a transport
+	 * @param name Built-in transport name or class name of a {@link DropboxTransport}. null for the default one.
+	 * @return a new transport
+	 */
+	public static DropboxTransport forName(String name) {
+		if (name == null || DEFAULT.equals(name)) return new UrlConnectionTransport();
+		if (NIO.equals(name)) return new NioTransport();
+
+		try {
+			Class<?> clazz = Class.forName(name, true, DropboxTransports.class.getClassLoader());
+			return (DropboxTransport) clazz.newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Unknown transport [" + name + "]", e);
+		}
+	}
+}
@@ -0,0 +1,1026 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLParameters;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.util.concurrent.ListenableFuture;
+import org.elasticsearch.common.util.concurrent.SettableFuture;
+
+/**
+ * Non-blocking transport: a few event loop threads drive every connection with a {@link Selector},
+ * so hundreds of requests can be in flight without a thread each.
+ * <br>Responses are read in memory before their future completes: this transport is meant for
+ * many small files, big ones are better streamed by a blocking transport.
+ * <br>Each event loop keeps its own keep-alive connections. A host gets at most <code>maxConnections</code>
+ * connections for the whole transport; requests wait in their event loop for a free connection.
+ * <br>Host names are resolved by a few resolver threads, as DNS lookups block.
+ * <br>HTTPS needs Java 7 or later, as we check that the certificate matches the host name.
+ */
+public class NioTransport implements AsyncDropboxTransport {
+
+	private static final ESLogger logger = Loggers.getLogger(NioTransport.class);
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 256;
+
+	private static final int BUFFER_SIZE = 16384;
+
+	/** Idle connections are closed after this time in ms */
+	private static final long KEEP_ALIVE = 30000;
+
+	/** How often event loops look for timeouts in ms */
+	private static final long TICK = 250;
+
+	/** A status or header line can not be longer than that */
+	private static final int MAX_LINE = 65536;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	/** Max number of host names resolved at the same time */
+	private static final int RESOLVER_THREADS = 4;
+
+	/** SSLParameters.setEndpointIdentificationAlgorithm() only exists since Java 7 */
+	private static final Method SET_ENDPOINT_IDENTIFICATION;
+	static {
+		Method method;
+		try {
+			method = SSLParameters.class.getMethod("setEndpointIdentificationAlgorithm", String.class);
+		} catch (NoSuchMethodException e) {
+			method = null;
+		}
+		SET_ENDPOINT_IDENTIFICATION = method;
+	}
+
+	private final EventLoop[] loops;
+	private final Thread[] threads;
+	private final ThreadPoolExecutor resolver;
+	/** TLS settings, null for the ones of the JVM */
+	private final SSLContext sslContext;
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile boolean closed = false;
+
+	/**
+	 * One event loop per 2 processors, up to 4, and {@link #DEFAULT_MAX_CONNECTIONS} connections per host
+	 */
+	public NioTransport() {
+		this(Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors() / 2)), DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * @param threads Number of event loops
+	 * @param maxConnections Max number of connections per host
+	 */
+	public NioTransport(int threads, int maxConnections) {
+		this(threads, maxConnections, null);
+	}
+
+	/**
+	 * @param threads Number of event loops
+	 * @param maxConnections Max number of connections per host
+	 * @param sslContext Keys and trusted certificates for HTTPS, null for the default ones of the JVM
+	 */
+	public NioTransport(int threads, int maxConnections, SSLContext sslContext) {
+		this.sslContext = sslContext;
+		threads = Math.max(1, threads);
+		resolver = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, KEEP_ALIVE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "dropbox_nio_resolver[" + count.getAndIncrement() + "]");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		resolver.allowCoreThreadTimeOut(true);
+		loops = new EventLoop[threads];
+		this.threads = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			try {
+				loops[i] = new EventLoop(Math.max(1, maxConnections / threads));
+			} catch (IOException e) {
+				close();
+				throw new IllegalStateException("Can not open a selector : " + e.getMessage(), e);
+			}
+			this.threads[i] = new Thread(loops[i], "dropbox_nio[" + i + "]");
+			this.threads[i].setDaemon(true);
+			this.threads[i].start();
+		}
+	}
+
+	@Override
+	public DropboxResponse execute(DropboxRequest request) throws IOException {
+		ListenableFuture<DropboxResponse> response = executeAsync(request);
+		try {
+			return response.get();
+		} catch (InterruptedException e) {
+			response.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + request);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	@Override
+	public ListenableFuture<DropboxResponse> executeAsync(DropboxRequest request) {
+		SettableFuture<DropboxResponse> future = SettableFuture.create();
+		if (closed) {
+			future.setException(new IOException("Transport is closed"));
+			return future;
+		}
+
+		Exchange exchange;
+		try {
+			exchange = new Exchange(request, future);
+		} catch (IOException e) {
+			future.setException(e);
+			return future;
+		}
+
+		loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length].submit(exchange);
+		return future;
+	}
+
+	/**
+	 * Fail pending requests, close connections and wait a bit for the event loops to stop
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		resolver.shutdownNow();
+		for (EventLoop loop : loops) {
+			if (loop != null) loop.selector.wakeup();
+		}
+		for (Thread thread : threads) {
+			if (thread == null || thread == Thread.currentThread()) continue;
+			try {
+				thread.join(1000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * A request and the future of its response
+	 */
+	private static class Exchange {
+		private final DropboxRequest request;
+		private final SettableFuture<DropboxResponse> future;
+		private final String host;
+		private final int port;
+		private final boolean secure;
+		private final ByteBuffer bytes;
+
+		/** True once sent again on a new connection */
+		private boolean retried = false;
+
+		Exchange(DropboxRequest request, SettableFuture<DropboxResponse> future) throws IOException {
+			this.request = request;
+			this.future = future;
+			URL url = new URL(request.getUrl());
+			if ("https".equalsIgnoreCase(url.getProtocol())) {
+				secure = true;
+			} else if ("http".equalsIgnoreCase(url.getProtocol())) {
+				secure = false;
+			} else {
+				throw new IOException("Unsupported protocol for " + request);
+			}
+			this.host = url.getHost();
+			this.port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+			this.bytes = encode(request, url);
+		}
+
+		/**
+		 * @return the key of the connections this request can use
+		 */
+		String key() {
+			return (secure ? "https://" : "http://") + host + ":" + port;
+		}
+
+		void fail(Throwable t) {
+			future.setException(t);
+		}
+
+		private static ByteBuffer encode(DropboxRequest request, URL url) throws UnsupportedEncodingException {
+			String path = url.getFile().isEmpty() ? "/" : url.getFile();
+			StringBuilder head = new StringBuilder();
+			head.append(request.getMethod()).append(' ').append(path).append(" HTTP/1.1\r\n");
+			head.append("Host: ").append(url.getHost());
+			if (url.getPort() >= 0) head.append(':').append(url.getPort());
+			head.append("\r\n");
+			for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+				head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+			}
+			byte[] body = request.getBody();
+			if (body != null || "POST".equals(request.getMethod())) {
+				head.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n");
+			}
+			head.append("\r\n");
+
+			byte[] headBytes = head.toString().getBytes("ISO-8859-1");
+			ByteBuffer bytes = ByteBuffer.allocate(headBytes.length + (body == null ? 0 : body.length));
+			bytes.put(headBytes);
+			if (body != null) bytes.put(body);
+			bytes.flip();
+			return bytes;
+		}
+	}
+
+	/**
+	 * Connections of an event loop to a host
+	 */
+	private static class Host {
+		private final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+		private final ArrayDeque<Exchange> waiting = new ArrayDeque<Exchange>();
+		private int open = 0;
+	}
+
+	/**
+	 * Runs the connections of some hosts. Everything but {@link #submit(Exchange)} happens on the loop thread.
+	 */
+	private class EventLoop implements Runnable {
+		private final Selector selector;
+		private final int maxConnections;
+		private final Queue<Exchange> incoming = new ConcurrentLinkedQueue<Exchange>();
+		/** Work sent back to the loop thread by other threads */
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final Map<String, Host> hosts = new HashMap<String, Host>();
+		private final Set<Connection> connections = new LinkedHashSet<Connection>();
+		private long lastCheck = System.nanoTime();
+
+		EventLoop(int maxConnections) throws IOException {
+			this.selector = Selector.open();
+			this.maxConnections = maxConnections;
+		}
+
+		void submit(Exchange exchange) {
+			incoming.add(exchange);
+			selector.wakeup();
+			// The loop may have stopped before seeing this request
+			if (closed) failIncoming();
+		}
+
+		/**
+		 * Run a task on the loop thread. Tasks are dropped once the loop is closed.
+		 */
+		void execute(Runnable task) {
+			if (closed) return;
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * Resolve a host name on a resolver thread, then connect on the loop thread
+		 */
+		void resolve(final Connection connection) {
+			try {
+				resolver.execute(new Runnable() {
+					@Override
+					public void run() {
+						InetSocketAddress address;
+						try {
+							address = new InetSocketAddress(InetAddress.getByName(connection.hostname), connection.port);
+						} catch (final UnknownHostException e) {
+							execute(new Runnable() {
+								@Override
+								public void run() {
+									connection.fail(e);
+								}
+							});
+							return;
+						}
+						final InetSocketAddress resolved = address;
+						execute(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									connection.connect(resolved);
+								} catch (Exception e) {
+									connection.fail(e);
+								}
+							}
+						});
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				connection.fail(new IOException("Transport is closed"));
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!closed) {
+				try {
+					selector.select(TICK);
+
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					Exchange exchange;
+					while ((exchange = incoming.poll()) != null) {
+						dispatch(exchange);
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection connection = (Connection) key.attachment();
+						try {
+							if (key.isValid()) connection.handle(key);
+						} catch (Exception e) {
+							connection.fail(e);
+						}
+					}
+
+					checkTimeouts();
+				} catch (Exception e) {
+					logger.warn("Error in dropbox event loop : {}", e, e.getMessage());
+				}
+			}
+			shutdown();
+		}
+
+		/**
+		 * Send a request on an idle connection, or a new one. Otherwise, it waits for a connection.
+		 */
+		void dispatch(Exchange exchange) {
+			if (exchange.future.isCancelled()) return;
+			if (closed) {
+				exchange.fail(new IOException("Transport is closed"));
+				return;
+			}
+
+			String key = exchange.key();
+			Host host = hosts.get(key);
+			if (host == null) {
+				host = new Host();
+				hosts.put(key, host);
+			}
+
+			// Most recently used connections are the most likely to be still open
+			Connection connection = host.idle.pollLast();
+			if (connection != null) {
+				connection.start(exchange);
+			} else if (host.open < maxConnections) {
+				open(host, exchange);
+			} else {
+				host.waiting.add(exchange);
+			}
+		}
+
+		private void open(Host host, Exchange exchange) {
+			Connection connection;
+			try {
+				connection = new Connection(this, host, exchange);
+			} catch (Exception e) {
+				exchange.fail(e);
+				return;
+			}
+			connection.resolve();
+		}
+
+		/**
+		 * A connection is free again: it goes to the next waiting request or becomes idle
+		 */
+		void release(Connection connection) {
+			Exchange exchange;
+			while ((exchange = connection.host.waiting.poll()) != null) {
+				if (!exchange.future.isCancelled()) {
+					connection.start(exchange);
+					return;
+				}
+			}
+			connection.idle();
+			connection.host.idle.add(connection);
+		}
+
+		/**
+		 * A connection has been closed: waiting requests can open new ones
+		 */
+		void closed(Connection connection) {
+			connections.remove(connection);
+			Host host = connection.host;
+			host.idle.remove(connection);
+			host.open--;
+			while (!closed && host.open < maxConnections && !host.waiting.isEmpty()) {
+				open(host, host.waiting.poll());
+			}
+		}
+
+		boolean isClosed() {
+			return closed;
+		}
+
+		SSLContext sslContext() {
+			return sslContext;
+		}
+
+		private void checkTimeouts() {
+			long now = System.nanoTime();
+			if (now - lastCheck < TimeUnit.MILLISECONDS.toNanos(TICK)) return;
+			lastCheck = now;
+
+			for (Connection connection : new ArrayList<Connection>(connections)) {
+				connection.checkTimeout(now);
+			}
+		}
+
+		private void failIncoming() {
+			Exchange exchange;
+			while ((exchange = incoming.poll()) != null) {
+				exchange.fail(new IOException("Transport is closed"));
+			}
+		}
+
+		private void shutdown() {
+			for (Connection connection : new ArrayList<Connection>(connections)) {
+				connection.fail(new IOException("Transport is closed"));
+			}
+			for (Host host : hosts.values()) {
+				for (Exchange exchange : host.waiting) {
+					exchange.fail(new IOException("Transport is closed"));
+				}
+				host.waiting.clear();
+			}
+			failIncoming();
+			tasks.clear();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// We are closing anyway
+			}
+		}
+	}
+
+	/**
+	 * A connection to a host, plain or TLS. One request at a time.
+	 */
+	private static class Connection {
+		private final EventLoop loop;
+		private final Host host;
+		private final String hostname;
+		private final int port;
+		private final boolean secure;
+		private final SocketChannel channel;
+		private final SelectionKey key;
+
+		private SSLEngine engine;
+		/** Encrypted bytes */
+		private ByteBuffer netIn;
+		private ByteBuffer netOut;
+		/** Plain bytes read from the server */
+		private ByteBuffer appIn;
+
+		private Exchange exchange;
+		/** Request bytes to send */
+		private ByteBuffer out;
+		private ResponseParser parser;
+
+		private boolean connected = false;
+		private boolean closed = false;
+		/** True once a response has been read: the server may have closed it while idle */
+		private boolean reused = false;
+		/** When the current operation times out, 0 for never. Idle since, when idle. */
+		private long deadline;
+		private long idleSince;
+
+		Connection(EventLoop loop, Host host, Exchange exchange) throws IOException {
+			this.loop = loop;
+			this.host = host;
+			this.hostname = exchange.host;
+			this.port = exchange.port;
+			this.secure = exchange.secure;
+			this.exchange = exchange;
+			this.channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				key = channel.register(loop.selector, 0, this);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			host.open++;
+			loop.connections.add(this);
+		}
+
+		/**
+		 * The connect timeout starts now: it covers the DNS lookup too
+		 */
+		void resolve() {
+			deadline = timeout(exchange.request.getConnectTimeout());
+			loop.resolve(this);
+		}
+
+		void connect(InetSocketAddress address) throws IOException {
+			// Timed out or transport closed while resolving
+			if (closed) return;
+			if (channel.connect(address)) {
+				connected();
+				io();
+			} else {
+				key.interestOps(SelectionKey.OP_CONNECT);
+			}
+		}
+
+		/**
+		 * Send a request on a connected connection. The selector tells us when we can write it.
+		 */
+		void start(Exchange exchange) {
+			this.exchange = exchange;
+			this.out = exchange.bytes.duplicate();
+			this.parser = new ResponseParser("HEAD".equals(exchange.request.getMethod()));
+			this.deadline = timeout(exchange.request.getReadTimeout());
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		void idle() {
+			idleSince = System.nanoTime();
+			deadline = 0;
+		}
+
+		void handle(SelectionKey key) throws IOException {
+			if (key.isConnectable()) {
+				if (!channel.finishConnect()) return;
+				connected();
+			}
+			io();
+		}
+
+		/**
+		 * TLS handshake starts with the first request
+		 */
+
+		private void connected() throws IOException {
+			connected = true;
+			if (secure) {
+				engine = createEngine(loop.sslContext(), hostname, port);
+				engine.beginHandshake();
+				netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+				appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+			} else {
+				appIn = ByteBuffer.allocate(BUFFER_SIZE);
+			}
+			start(exchange);
+		}
+
+		/**
+		 * Move bytes as far as the socket lets us, then wait for the selector
+		 */
+		private void io() throws IOException {
+			if (engine == null) {
+				plainIo();
+			} else {
+				tlsIo();
+			}
+			if (closed) return;
+
+			int ops = SelectionKey.OP_READ;
+			if (engine == null ? out != null && out.hasRemaining() : netOut.position() > 0) ops |= SelectionKey.OP_WRITE;
+			key.interestOps(ops);
+		}
+
+		private void plainIo() throws IOException {
+			if (out != null && out.hasRemaining()) {
+				if (channel.write(out) > 0) touch();
+			}
+			while (!closed) {
+				int read = channel.read(appIn);
+				if (read < 0) {
+					eof();
+					return;
+				}
+				if (read == 0) return;
+				appIn.flip();
+				received(appIn);
+				appIn.clear();
+			}
+		}
+
+		private void tlsIo() throws IOException {
+			while (!closed) {
+				// Encrypted bytes are sent first
+				if (netOut.position() > 0) {
+					netOut.flip();
+					if (channel.write(netOut) > 0) touch();
+					netOut.compact();
+					if (netOut.position() > 0) return;
+				}
+
+				HandshakeStatus status = engine.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					Runnable task;
+					while ((task = engine.getDelegatedTask()) != null) {
+						task.run();
+					}
+					continue;
+				}
+
+				boolean handshaking = status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+				if (status == HandshakeStatus.NEED_WRAP || (!handshaking && out != null && out.hasRemaining())) {
+					SSLEngineResult result = engine.wrap(out == null ? EMPTY : out, netOut);
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) throw new EOFException("TLS session closed by " + hostname);
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && netOut.position() == 0) {
+						throw new IOException("TLS packet too large");
+					}
+					continue;
+				}
+
+				// Bytes we already have are decrypted before reading more
+				netIn.flip();
+				SSLEngineResult result = engine.unwrap(netIn, appIn);
+				netIn.compact();
+				if (appIn.position() > 0) {
+					appIn.flip();
+					received(appIn);
+					appIn.clear();
+					if (closed) return;
+				}
+
+				switch (result.getStatus()) {
+				case CLOSED:
+					eof();
+					return;
+				case BUFFER_OVERFLOW:
+					throw new IOException("TLS record too large");
+				default:
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW
+							|| (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+						int read = channel.read(netIn);
+						if (read < 0) {
+							eof();
+							return;
+						}
+						if (read == 0) return;
+						touch();
+					}
+				}
+			}
+		}
+
+		private void received(ByteBuffer data) throws IOException {
+			if (parser == null) {
+				// Idle connections are not supposed to receive anything
+				close();
+				return;
+			}
+			touch();
+			if (parser.feed(data)) {
+				// Anything after the response would be a protocol error
+				complete(parser.isKeepAlive() && !data.hasRemaining());
+			}
+		}
+
+		private void eof() throws IOException {
+			if (parser != null && parser.eof()) {
+				complete(false);
+			} else if (exchange == null) {
+				close();
+			} else {
+				throw new EOFException("Connection closed by " + hostname);
+			}
+		}
+
+		private void complete(boolean keepAlive) {
+			Exchange done = exchange;
+			DropboxResponse response = parser.response();
+			exchange = null;
+			out = null;
+			parser = null;
+			reused = true;
+
+			if (keepAlive) {
+				loop.release(this);
+			} else {
+				close();
+			}
+			done.future.set(response);
+		}
+
+		/**
+		 * Close the connection and fail its request. A request sent on a kept alive connection
+		 * the server closed before answering is sent again on a new connection.
+		 */
+		void fail(Throwable t) {
+			Exchange failed = exchange;
+			boolean retry = failed != null && reused && !failed.retried && !loop.isClosed()
+					&& (parser == null || !parser.isReceived());
+			exchange = null;
+			close();
+			if (failed == null) return;
+			if (retry) {
+				if (logger.isDebugEnabled()) logger.debug("{} closed by {}, sending it again", failed.request, hostname);
+				failed.retried = true;
+				loop.dispatch(failed);
+			} else {
+				failed.fail(t);
+			}
+		}
+
+		void checkTimeout(long now) {
+			if (closed) return;
+			if (exchange == null) {
+				if (now - idleSince > TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE)) close();
+			} else if (deadline != 0 && now - deadline > 0) {
+				fail(new SocketTimeoutException((connected ? "Read timed out for " : "Connect timed out for ") + exchange.request));
+			}
+		}
+
+		private void touch() {
+			if (exchange != null) {
+				deadline = timeout(connected ? exchange.request.getReadTimeout() : exchange.request.getConnectTimeout());
+			}
+		}
+
+		private static long timeout(int millis) {
+			if (millis <= 0) return 0;
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+			return deadline == 0 ? 1 : deadline;
+		}
+
+		private void close() {
+			if (closed) return;
+			closed = true;
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing more we can do
+			}
+			loop.closed(this);
+		}
+	}
+
+	/**
+	 * Check that the certificate of the server matches its host name
+	 */
+	private static SSLEngine createEngine(SSLContext context, String host, int port) throws IOException {
+		if (SET_ENDPOINT_IDENTIFICATION == null) {
+			throw new IOException("HTTPS with the nio transport needs Java 7 or later to check the certificate of " + host);
+		}
+		try {
+			SSLEngine engine = (context == null ? SSLContext.getDefault() : context).createSSLEngine(host, port);
+			engine.setUseClientMode(true);
+			SSLParameters parameters = engine.getSSLParameters();
+			SET_ENDPOINT_IDENTIFICATION.invoke(parameters, "HTTPS");
+			engine.setSSLParameters(parameters);
+			return engine;
+		} catch (Exception e) {
+			throw new IOException("Can not build a TLS engine for " + host + " : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Read an HTTP/1.1 response as it comes: bodies with a length, chunked or ending with the connection.
+	 */
+	private static class ResponseParser {
+		private static final int STATUS = 0;
+		private static final int HEADERS = 1;
+		private static final int BODY = 2;
+		private static final int CHUNK_SIZE = 3;
+		private static final int CHUNK_DATA = 4;
+		private static final int CHUNK_END = 5;
+		private static final int TRAILERS = 6;
+		private static final int UNTIL_CLOSE = 7;
+		private static final int DONE = 8;
+
+		private final boolean head;
+		private final StringBuilder line = new StringBuilder();
+		private final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		private int state = STATUS;
+		private int code;
+		private boolean http10;
+		private boolean received = false;
+
+		/** Bytes left in the body or the current chunk */
+		private long remaining;
+		private byte[] body = new byte[0];
+		private int length = 0;
+
+		/**
+		 * @param head True for a HEAD request: the response has no body
+		 */
+		ResponseParser(boolean head) {
+			this.head = head;
+		}
+
+		/**
+		 * @param data Bytes from the server
+		 * @return true once the response is complete
+		 * @throws IOException if this is not HTTP
+		 */
+		boolean feed(ByteBuffer data) throws IOException {
+			if (data.hasRemaining()) received = true;
+			while (data.hasRemaining() && state != DONE) {
+				switch (state) {
+				case BODY:
+				case CHUNK_DATA:
+					int read = (int) Math.min(remaining, data.remaining());
+					append(data, read);
+					remaining -= read;
+					if (remaining == 0) state = state == BODY ? DONE : CHUNK_END;
+					break;
+				case UNTIL_CLOSE:
+					append(data, data.remaining());
+					break;
+				default:
+					if (readLine(data)) {
+						String value = line.toString();
+						line.setLength(0);
+						onLine(value);
+					}
+				}
+			}
+			return state == DONE;
+		}
+
+		/**
+		 * The server closed the connection
+		 * @return true if this ends the response
+		 */
+		boolean eof() {
+			if (state != UNTIL_CLOSE) return false;
+			state = DONE;
+			return true;
+		}
+
+		boolean isReceived() {
+			return received;
+		}
+
+		boolean isKeepAlive() {
+			return state == DONE && !http10 && !"close".equalsIgnoreCase(headers.get("Connection"));
+		}
+
+		DropboxResponse response() {
+			return new DropboxResponse(code, headers, new ByteArrayInputStream(body, 0, length));
+		}
+
+		private boolean readLine(ByteBuffer data) throws IOException {
+			while (data.hasRemaining()) {
+				char c = (char) (data.get() & 0xff);
+				if (c == '\n') return true;
+				if (c != '\r') line.append(c);
+				if (line.length() > MAX_LINE) throw new IOException("HTTP line too long");
+			}
+			return false;
+		}
+
+		private void onLine(String value) throws IOException {
+			switch (state) {
+			case STATUS:
+				String[] status = value.split(" ", 3);
+				if (status.length < 2 || !status[0].startsWith("HTTP/")) throw new IOException("Not an HTTP response : " + value);
+				http10 = "HTTP/1.0".equals(status[0]);
+				try {
+					code = Integer.parseInt(status[1]);
+				} catch (NumberFormatException e) {
+					throw new IOException("Not an HTTP response : " + value);
+				}
+				state = HEADERS;
+				break;
+			case HEADERS:
+				if (value.isEmpty()) {
+					endOfHeaders();
+				} else {
+					int colon = value.indexOf(':');
+					if (colon <= 0) throw new IOException("Malformed HTTP header : " + value);
+					String name = value.substring(0, colon).trim();
+					if (!headers.containsKey(name)) headers.put(name, value.substring(colon + 1).trim());
+				}
+				break;
+			case CHUNK_SIZE:
+				int extension = value.indexOf(';');
+				try {
+					remaining = Long.parseLong((extension < 0 ? value : value.substring(0, extension)).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed chunk size : " + value);
+				}
+				if (remaining == 0) {
+					state = TRAILERS;
+				} else {
+					ensureCapacity(remaining);
+					state = CHUNK_DATA;
+				}
+				break;
+			case CHUNK_END:
+				if (!value.isEmpty()) throw new IOException("Malformed chunk end");
+				state = CHUNK_SIZE;
+				break;
+			case TRAILERS:
+				if (value.isEmpty()) state = DONE;
+				break;
+			}
+		}
+
+		private void endOfHeaders() throws IOException {
+			if (code >= 100 && code < 200) {
+				// 100 Continue and friends come before the real response
+				headers.clear();
+				state = STATUS;
+				return;
+			}
+			if (head || code == 204 || code == 304) {
+				state = DONE;
+				return;
+			}
+
+			String encoding = headers.get("Transfer-Encoding");
+			String contentLength = headers.get("Content-Length");
+			if (encoding != null && encoding.toLowerCase().contains("chunked")) {
+				state = CHUNK_SIZE;
+			} else if (contentLength != null) {
+				try {
+					remaining = Long.parseLong(contentLength);
+				} catch (NumberFormatException e) {
+					throw new IOException("Malformed Content-Length : " + contentLength);
+				}
+				ensureCapacity(remaining);
+				state = remaining == 0 ? DONE : BODY;
+			} else {
+				state = UNTIL_CLOSE;
+			}
+		}
+
+		private void ensureCapacity(long more) throws IOException {
+			long needed = length + more;
+			if (needed > Integer.MAX_VALUE - 8) throw new IOException("Response too large to be read in memory");
+			if (needed > body.length) {
+				byte[] larger = new byte[(int) Math.max(needed, Math.min(Integer.MAX_VALUE - 8, body.length * 2L))];
+				System.arraycopy(body, 0, larger, 0, length);
+				body = larger;
+			}
+		}
+
+		private void append(ByteBuffer data, int count) throws IOException {
+			ensureCapacity(count);
+			data.get(body, length, count);
+			length += count;
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.elasticsearch.common.Base64;
+
+/**
+ * Sign requests with OAuth 1.0 HMAC-SHA1, as scribe does for the Dropbox API, without building
+ * a new service for each request.
+ * <br>The key is computed once and each thread keeps its own {@link Mac}.
+ */
+public class OAuthSigner {
+
+	private static final String HMAC_SHA1 = "HmacSHA1";
+
+	private static final Comparator<String[]> PARAMETER_ORDER = new Comparator<String[]>() {
+		@Override
+		public int compare(String[] p1, String[] p2) {
+			int names = p1[0].compareTo(p2[0]);
+			return names != 0 ? names : p1[1].compareTo(p2[1]);
+		}
+	};
+
+	private final String consumerKey;
+	private final String token;
+	private final SecretKeySpec key;
+	private final Random random = new Random();
+
+	private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				Mac mac = Mac.getInstance(HMAC_SHA1);
+				mac.init(key);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("Can not sign Dropbox requests", e);
+			}
+		}
+	};
+
+	/**
+	 * @param consumerKey Your app key
+	 * @param consumerSecret Your app secret
+	 * @param token Dropbox access token
+	 * @param tokenSecret Dropbox access secret
+	 */
+	public OAuthSigner(String consumerKey, String consumerSecret, String token, String tokenSecret) {
+		this.consumerKey = consumerKey;
+		this.token = token;
+		try {
+			this.key = new SecretKeySpec((encode(consumerSecret) + "&" + encode(tokenSecret)).getBytes("UTF-8"), HMAC_SHA1);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Sign a request
+	 * @param method GET or POST
+	 * @param url Full URL, query string included
+	 * @param formParameters POST parameters, null if none
+	 * @return the <code>Authorization</code> header value
+	 */
+	public String sign(String method, String url, Map<String, String> formParameters) {
+		long timestamp = System.currentTimeMillis() / 1000;
+		return sign(method, url, formParameters, timestamp, String.valueOf(timestamp + random.nextInt()));
+	}
+
+	/**
+	 * Sign a request with a given timestamp and nonce
+	 * @param method GET or POST
+	 * @param url Full URL, query string included
+	 * @param formParameters POST parameters, null if none
+	 * @param timestamp Timestamp in seconds
+	 * @param nonce Unique value for this request
+	 * @return the <code>Authorization</code> header value
+	 */
+	public String sign(String method, String url, Map<String, String> formParameters, long timestamp, String nonce) {
+		// Encoded names and values
+		List<String[]> oauth = new ArrayList<String[]>();
+		oauth.add(new String[] { "oauth_consumer_key", encode(consumerKey) });
+		oauth.add(new String[] { "oauth_nonce", encode(nonce) });
+		oauth.add(new String[] { "oauth_signature_method", "HMAC-SHA1" });
+		oauth.add(new String[] { "oauth_timestamp", String.valueOf(timestamp) });
+		oauth.add(new String[] { "oauth_token", encode(token) });
+		oauth.add(new String[] { "oauth_version", "1.0" });
+
+		// Every parameter is signed, sorted by name then value
+		List<String[]> parameters = new ArrayList<String[]>(oauth);
+		int query = url.indexOf('?');
+		if (query >= 0) {
+			for (String parameter : url.substring(query + 1).split("&")) {
+				if (parameter.isEmpty()) continue;
+				int equals = parameter.indexOf('=');
+				String name = equals < 0 ? parameter : parameter.substring(0, equals);
+				String value = equals < 0 ? "" : parameter.substring(equals + 1);
+				parameters.add(new String[] { encode(decode(name)), encode(decode(value)) });
+			}
+		}
+		if (formParameters != null) {
+			for (Map.Entry<String, String> parameter : formParameters.entrySet()) {
+				parameters.add(new String[] { encode(parameter.getKey()), encode(parameter.getValue()) });
+			}
+		}
+		Collections.sort(parameters, PARAMETER_ORDER);
+
+		StringBuilder normalized = new StringBuilder();
+		for (String[] parameter : parameters) {
+			if (normalized.length() > 0) normalized.append('&');
+			normalized.append(parameter[0]).append('=').append(parameter[1]);
+		}
+
+		String baseString = method.toUpperCase() + "&" + encode(baseUrl(url)) + "&" + encode(normalized.toString());
+
+		String signature;
+		try {
+			signature = Base64.encodeBytes(macs.get().doFinal(baseString.getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+		StringBuilder header = new StringBuilder("OAuth ");
+		for (String[] parameter : oauth) {
+			header.append(parameter[0]).append("=\"").append(parameter[1]).append("\", ");
+		}
+		header.append("oauth_signature=\"").append(encode(signature)).append('"');
+		return header.toString();
+	}
+
+	/**
+	 * @return the URL without query string nor default port
+	 */
+	private static String baseUrl(String url) {
+		try {
+			URL parsed = new URL(url);
+			String scheme = parsed.getProtocol().toLowerCase();
+			int port = parsed.getPort();
+			boolean defaultPort = port == -1 || ("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443);
+			return scheme + "://" + parsed.getHost().toLowerCase() + (defaultPort ? "" : ":" + port) + parsed.getPath();
+		} catch (MalformedURLException e) {
+			throw new IllegalArgumentException("Invalid url " + url, e);
+		}
+	}
+
+	/**
+	 * Percent encoding as OAuth wants it (RFC 3986)
+	 */
+	public static String encode(String value) {
+		if (value == null) return "";
+		try {
+			return URLEncoder.encode(value, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
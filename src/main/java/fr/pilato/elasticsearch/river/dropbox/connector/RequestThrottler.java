@@ -0,0 +1,202 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket spacing the calls an application sends to Dropbox.
+ * <br>Dropbox limits calls per application: connectors using the same app key should share
+ * the same throttler. When Dropbox answers that we go too fast, nobody calls again before
+ * <code>Retry-After</code> and the rate is cut by half. Each successful call then raises the rate
+ * a little, so we keep close to the highest rate Dropbox accepts.
+ */
+public class RequestThrottler {
+
+	/** Default max number of calls per second */
+	public static final double DEFAULT_MAX_RATE = 500;
+
+	/** Default min number of calls per second, whatever Dropbox says */
+	public static final double DEFAULT_MIN_RATE = 1;
+
+	/** Default number of times a throttled call is sent again */
+	public static final int DEFAULT_MAX_RETRIES = 5;
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/** Rate is raised by this part of itself for each successful call */
+	private static final double INCREASE = 0.1;
+
+	private static ScheduledExecutorService timer;
+
+	private final double maxRate;
+	private final double minRate;
+	private final int maxRetries;
+
+	private double rate;
+	/** Permits saved while nobody called, one second worth at most */
+	private double stored = 0;
+	/** When the next permit is free */
+	private long next = System.nanoTime();
+	/** Last time the rate was cut */
+	private long lastCut = System.nanoTime() - SECOND;
+
+	/** Calls of the current and of the last one second windows */
+	private long windowStart = System.nanoTime();
+	private int windowCalls = 0;
+	private int lastWindowCalls = -1;
+
+	private long throttled = 0;
+
+	public RequestThrottler() {
+		this(DEFAULT_MAX_RATE, DEFAULT_MIN_RATE, DEFAULT_MAX_RETRIES);
+	}
+
+	/**
+	 * @param maxRate Max number of calls per second
+	 * @param minRate Min number of calls per second
+	 * @param maxRetries Number of times a throttled call is sent again
+	 */
+	public RequestThrottler(double maxRate, double minRate, int maxRetries) {
+		if (maxRate <= 0 || minRate <= 0) throw new IllegalArgumentException("Rates must be positive");
+		this.maxRate = maxRate;
+		this.minRate = Math.min(minRate, maxRate);
+		this.maxRetries = Math.max(0, maxRetries);
+		this.rate = maxRate;
+	}
+
+	/**
+	 * Wait for our turn to call Dropbox
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException {
+		long wait = reserve();
+		if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+	}
+
+	/**
+	 * Run a task when it is our turn to call Dropbox, without blocking the caller.
+	 * <br>Delayed tasks run on a timer thread shared by all throttlers: they must not block.
+	 * @param task Task calling Dropbox
+	 */
+	public void execute(Runnable task) {
+		long wait = reserve();
+		if (wait <= 0) {
+			task.run();
+		} else {
+			timer().schedule(task, wait, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Take the next permit
+	 * @return how long the caller must wait before calling, in nanoseconds
+	 */
+	public synchronized long reserve() {
+		long now = System.nanoTime();
+		long interval = (long) (SECOND / rate);
+		if (now > next) {
+			stored = Math.min(rate, stored + (double) (now - next) / interval);
+			next = now;
+		}
+
+		long wait = next - now;
+		double fromStored = Math.min(1, stored);
+		stored -= fromStored;
+		next += (long) ((1 - fromStored) * interval);
+		count(now + wait);
+		return wait;
+	}
+
+	/**
+	 * Dropbox told us to slow down
+	 * @param retryAfter Nobody calls again before this delay, in ms
+	 */
+	public synchronized void onThrottled(long retryAfter) {
+		long now = System.nanoTime();
+		throttled++;
+		stored = 0;
+		next = Math.max(next, now + TimeUnit.MILLISECONDS.toNanos(retryAfter));
+
+		// Calls sent before we knew are throttled too: we cut once per second only
+		if (now - lastCut >= SECOND) {
+			double observed = lastWindowCalls >= 0 ? lastWindowCalls : rate;
+			rate = Math.max(minRate, Math.min(rate, observed) / 2);
+			lastCut = now;
+		}
+	}
+
+	/**
+	 * Dropbox accepted a call
+	 */
+	public synchronized void onSuccess() {
+		if (rate < maxRate) rate = Math.min(maxRate, rate + INCREASE);
+	}
+
+	private void count(long time) {
+		if (time - windowStart >= SECOND) {
+			// Calls of the last window only if it just ended
+			lastWindowCalls = time - windowStart < 2 * SECOND ? windowCalls : 0;
+			windowStart = time;
+			windowCalls = 0;
+		}
+		windowCalls++;
+	}
+
+	/**
+	 * @return the number of calls per second we currently allow
+	 */
+	public synchronized double getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return how many times Dropbox told us to slow down
+	 */
+	public synchronized long getThrottled() {
+		return throttled;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public double getMaxRate() {
+		return maxRate;
+	}
+
+	private static synchronized ScheduledExecutorService timer() {
+		if (timer == null) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "dropbox_throttler");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return timer;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Content of a file which survives broken connections: when the stream breaks, the rest of the
+ * content is asked again from the first byte we did not get, so bytes already read are never sent twice.
+ * <br>We give up after <code>maxRetries</code> failures in a row. Any new byte starts counting again.
+ */
+class ResumableInputStream extends InputStream {
+
+	/** Longest wait between two attempts, in ms */
+	private static final long MAX_BACKOFF = 30000;
+
+	/**
+	 * Where the content comes from
+	 */
+	interface Source {
+		/**
+		 * @param offset First byte we want
+		 * @return the content from this byte
+		 * @throws IOException when the content can not be read now. We try again later.
+		 */
+		InputStream open(long offset) throws IOException;
+
+		/**
+		 * @return the content length once opened, -1 if unknown
+		 */
+		long length();
+
+		/**
+		 * Called before we wait for the next attempt
+		 * @param offset First byte we will ask for
+		 * @param delay Time we wait, in ms
+		 * @param cause Why the last attempt failed
+		 */
+		void onRetry(long offset, long delay, IOException cause);
+	}
+
+	private final Source source;
+	private final int maxRetries;
+	private final long backoff;
+
+	private InputStream in;
+	private long position = 0;
+	private int failures = 0;
+
+	/**
+	 * @param source Where the content comes from
+	 * @param maxRetries Number of failures in a row we accept
+	 * @param backoff Wait after the first failure, doubled on each failure in a row, in ms
+	 */
+	ResumableInputStream(Source source, int maxRetries, long backoff) {
+		this.source = source;
+		this.maxRetries = Math.max(0, maxRetries);
+		this.backoff = Math.max(0, backoff);
+	}
+
+	/**
+	 * Open the content if not already done, trying again while it can not be read
+	 * @throws IOException when we gave up
+	 */
+	void open() throws IOException {
+		while (in == null) {
+			try {
+				in = source.open(position);
+			} catch (IOException e) {
+				backoff(e);
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int read;
+		while ((read = read(b, 0, 1)) == 0);
+		return read < 0 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		while (true) {
+			open();
+			try {
+				int read = in.read(b, off, len);
+				if (read < 0) {
+					long length = source.length();
+					if (length < 0 || position >= length) return -1;
+					throw new EOFException("Unexpected end of stream : " + position);
+				}
+				position += read;
+				failures = 0;
+				return read;
+			} catch (IOException e) {
+				closeQuietly();
+				backoff(e);
+			}
+		}
+	}
+
+	private void backoff(IOException cause) throws IOException {
+		if (failures >= maxRetries) throw cause;
+		long delay = Math.min(MAX_BACKOFF, backoff << Math.min(failures, 16));
+		failures++;
+		source.onRetry(position, delay, cause);
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while resuming download at " + position);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (in != null) in.close();
+	}
+
+	private void closeQuietly() {
+		try {
+			if (in != null) in.close();
+		} catch (IOException e) {
+			// The connection is broken anyway
+		} finally {
+			in = null;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.connector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport based on {@link HttpURLConnection}.
+ * <br>The JVM keeps connections alive and reuses them, TLS sessions included, as long as
+ * every response is read to the end or closed. This is what {@link DropboxResponse} takes care of.
+ * The number of idle connections kept per host is set with the <code>http.maxConnections</code>
+ * system property (5 by default).
+ */
+public class UrlConnectionTransport implements DropboxTransport {
+
+	@Override
+	public DropboxResponse execute(DropboxRequest request) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+		connection.setRequestMethod(request.getMethod());
+		connection.setConnectTimeout(request.getConnectTimeout());
+		connection.setReadTimeout(request.getReadTimeout());
+		connection.setUseCaches(false);
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			connection.setRequestProperty(header.getKey(), header.getValue());
+		}
+
+		byte[] body = request.getBody();
+		if (body != null) {
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(body.length);
+			OutputStream os = connection.getOutputStream();
+			try {
+				os.write(body);
+			} finally {
+				os.close();
+			}
+		}
+
+		// Errors have a body too: reading it gives the connection back to the pool
+		int code = connection.getResponseCode();
+		InputStream stream = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		if (stream == null) stream = new ByteArrayInputStream(new byte[0]);
+		return new DropboxResponse(code, headers(connection), stream);
+	}
+
+	private static Map<String, String> headers(HttpURLConnection connection) {
+		Map<String, String> headers = new HashMap<String, String>();
+		for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+			// The status line comes without name
+			if (header.getKey() == null || header.getValue().isEmpty()) continue;
+			headers.put(header.getKey(), header.getValue().get(0));
+		}
+		return headers;
+	}
+
+	@Override
+	public void close() {
+		// Idle connections are closed by the JVM
+	}
+}
@@ -21,13 +21,18 @@ package fr.pilato.elasticsearch.river.dropbox.plugin;
 
 import fr.pilato.elasticsearch.river.dropbox.rest.DropboxHelpAction;
 import fr.pilato.elasticsearch.river.dropbox.rest.DropboxOAuthAction;
+import fr.pilato.elasticsearch.river.dropbox.rest.DropboxStatsAction;
 import fr.pilato.elasticsearch.river.dropbox.river.DropboxRiverModule;
+import fr.pilato.elasticsearch.river.dropbox.river.RiverMetricsModule;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
 import org.elasticsearch.river.RiversModule;
 
+import java.util.ArrayList;
+import java.util.Collection;
+
 /**
  * @author dadoonet (David Pilato)
  */
@@ -44,6 +49,12 @@ public class DropboxRiverPlugin extends AbstractPlugin {
         return "River Dropbox Plugin";
     }
 
+    @Override public Collection<Class<? extends Module>> modules() {
+        Collection<Class<? extends Module>> modules = new ArrayList<Class<? extends Module>>();
+        modules.add(RiverMetricsModule.class);
+        return modules;
+    }
+
     @Override public void processModule(Module module) {
         if (module instanceof RiversModule) {
             ((RiversModule) module).registerRiver("dropbox", DropboxRiverModule.class);
@@ -52,6 +63,7 @@ public class DropboxRiverPlugin extends AbstractPlugin {
         if (module instanceof RestModule) {
             ((RestModule) module).addRestAction(DropboxHelpAction.class);
             ((RestModule) module).addRestAction(DropboxOAuthAction.class);
+            ((RestModule) module).addRestAction(DropboxStatsAction.class);
         }
     }
 }
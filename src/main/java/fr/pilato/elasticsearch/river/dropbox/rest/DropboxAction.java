@@ -35,7 +35,7 @@ public abstract class DropboxAction extends BaseRestHandler {
 	}
 
 	protected void onFailure(RestChannel channel, RestRequest request,
-			IOException e) {
+			Throwable e) {
 		try {
 			channel.sendResponse(new XContentThrowableRestResponse(request, e));
 		} catch (IOException e1) {
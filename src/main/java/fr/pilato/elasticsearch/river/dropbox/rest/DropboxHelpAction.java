@@ -63,6 +63,11 @@ public class DropboxHelpAction extends DropboxAction {
 							.field(new XContentBuilderString("endpoint"), "/_dropbox/oauth/{appkey}/{appsecret}/{oauth_token}/{oauth_secret}")
 							.field(new XContentBuilderString("comment"), "Return the OAuth token/secret for user")
 						.endObject()
+						.startObject()
+							.field(new XContentBuilderString("method"), "GET")
+							.field(new XContentBuilderString("endpoint"), "/_dropbox/{river}/_stats")
+							.field(new XContentBuilderString("comment"), "Return where the river spends its time")
+						.endObject()
 					.endArray()
 				.endObject();
 			channel.sendResponse(new XContentRestResponse(request, RestStatus.OK, builder));
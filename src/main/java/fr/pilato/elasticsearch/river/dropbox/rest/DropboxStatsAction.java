@@ -0,0 +1,81 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.rest;
+
+import fr.pilato.elasticsearch.river.dropbox.river.RiverMetricsService;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.*;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.action.support.RestXContentBuilder;
+
+import java.io.IOException;
+
+public class DropboxStatsAction extends DropboxAction {
+
+	private final RiverMetricsService metricsService;
+
+	@Inject public DropboxStatsAction(Settings settings, Client client, RestController controller,
+			RiverMetricsService metricsService) {
+		super(settings, client);
+		this.metricsService = metricsService;
+
+		// Define Dropbox REST Endpoints
+		controller.registerHandler(Method.GET, "/_dropbox/{river}/_stats", this);
+	}
+
+	@Override
+	public void handleRequest(final RestRequest request, final RestChannel channel) {
+		if (logger.isDebugEnabled()) logger.debug("REST DropboxStatsAction called");
+
+		final String river = request.param("river");
+		metricsService.stats(river, new ActionListener<BytesReference>() {
+			@Override
+			public void onResponse(BytesReference stats) {
+				try {
+					XContentBuilder builder = RestXContentBuilder.restContentBuilder(request);
+					if (stats == null) {
+						builder.startObject()
+							.field("error", "dropbox river [" + river + "] is not running")
+							.field("status", RestStatus.NOT_FOUND.getStatus())
+							.endObject();
+						channel.sendResponse(new XContentRestResponse(request, RestStatus.NOT_FOUND, builder));
+					} else {
+						// Keep fields order so pretty printing works as with any other response
+						builder.map(XContentHelper.convertToMap(stats, true).v2());
+						channel.sendResponse(new XContentRestResponse(request, RestStatus.OK, builder));
+					}
+				} catch (IOException e) {
+					onFailure(e);
+				}
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				DropboxStatsAction.this.onFailure(channel, request, e);
+			}
+		});
+	}
+}
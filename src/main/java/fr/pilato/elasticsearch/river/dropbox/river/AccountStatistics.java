@@ -0,0 +1,285 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.river;
+
+import fr.pilato.elasticsearch.river.dropbox.util.StripedCounter;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics of a Dropbox account: what we did since the account was first synchronized (lifetime)
+ * and during each synchronization (cycle).
+ * <br>Workers update them concurrently, so counters are striped and never locked.
+ */
+public class AccountStatistics implements ToXContent {
+
+	/**
+	 * What we count
+	 */
+	public static enum Counter {
+		/** Files indexed */
+		FILES("files"),
+		/** Bytes downloaded for indexed files */
+		BYTES("bytes"),
+		/** Files removed from the index */
+		DELETED("deleted"),
+		/** Files matching no feed */
+		SKIPPED("skipped"),
+		/** Files already indexed with the same revision */
+		UNCHANGED("unchanged"),
+		/** Dropbox calls we had to send again */
+		RETRIES("retries"),
+		/** Files we could not download or index */
+		FAILURES("failures"),
+		/** Bulk actions acknowledged by elasticsearch */
+		BULK_SUCCEEDED("bulk_succeeded"),
+		/** Bulk actions rejected by elasticsearch */
+		BULK_FAILED("bulk_failed");
+
+		private final String name;
+
+		private Counter(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Counter values at some point in time
+	 */
+	public static class Snapshot implements ToXContent {
+		private final long cycle;
+		private final long start;
+		private final long end;
+		private final long[] values;
+
+		Snapshot(long cycle, long start, long end, long[] values) {
+			this.cycle = cycle;
+			this.start = start;
+			this.end = end;
+			this.values = values;
+		}
+
+		/**
+		 * @return the cycle number, or the number of cycles for the lifetime
+		 */
+		public long getCycle() {
+			return cycle;
+		}
+
+		/**
+		 * @return when counting started, in ms
+		 */
+		public long getStart() {
+			return start;
+		}
+
+		/**
+		 * @return when the snapshot was taken, in ms
+		 */
+		public long getEnd() {
+			return end;
+		}
+
+		public long get(Counter counter) {
+			return values[counter.ordinal()];
+		}
+
+		/**
+		 * @return counter values by name
+		 */
+		public Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			for (Counter counter : Counter.values()) {
+				map.put(counter.getName(), get(counter));
+			}
+			return map;
+		}
+
+		@Override
+		public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+			builder.field("cycle", cycle);
+			builder.field("start", start);
+			builder.field("end", end);
+			long duration = Math.max(0, end - start);
+			builder.field("duration_in_millis", duration);
+			for (Counter counter : Counter.values()) {
+				builder.field(counter.getName(), get(counter));
+			}
+			double seconds = Math.max(duration, 1) / 1000.0;
+			builder.field("files_per_second", get(Counter.FILES) / seconds);
+			builder.field("bytes_per_second", get(Counter.BYTES) / seconds);
+			return builder;
+		}
+	}
+
+	private static class Counters {
+		private final long cycle;
+		private final long start;
+		private final StripedCounter[] counters = new StripedCounter[Counter.values().length];
+
+		private Counters(long cycle, long start) {
+			this.cycle = cycle;
+			this.start = start;
+			for (int i = 0; i < counters.length; i++) {
+				counters[i] = new StripedCounter();
+			}
+		}
+
+		private long[] values() {
+			long[] values = new long[counters.length];
+			for (int i = 0; i < counters.length; i++) {
+				values[i] = counters[i].sum();
+			}
+			return values;
+		}
+	}
+
+	private final String account;
+	private final Counters lifetime = new Counters(0, System.currentTimeMillis());
+
+	/** Lifetime values of previous runs of the river */
+	private volatile long[] restored = new long[Counter.values().length];
+	private volatile long lifetimeStart = lifetime.start;
+
+	private volatile long cycles = 0;
+	private volatile Counters current = new Counters(0, lifetime.start);
+	private volatile Snapshot lastCycle;
+
+	public AccountStatistics(String account) {
+		this.account = account;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	/**
+	 * Add to a counter of the current cycle and of the lifetime
+	 * @param counter What we count
+	 * @param value Value to add
+	 */
+	public void add(Counter counter, long value) {
+		current.counters[counter.ordinal()].add(value);
+		lifetime.counters[counter.ordinal()].add(value);
+	}
+
+	public void increment(Counter counter) {
+		add(counter, 1);
+	}
+
+	/**
+	 * Start counting a new cycle
+	 * @return the cycle number
+	 */
+	public synchronized long startCycle() {
+		current = new Counters(++cycles, System.currentTimeMillis());
+		return cycles;
+	}
+
+	/**
+	 * End the current cycle
+	 * @return the cycle statistics
+	 */
+	public synchronized Snapshot endCycle() {
+		Counters cycle = current;
+		lastCycle = new Snapshot(cycle.cycle, cycle.start, System.currentTimeMillis(), cycle.values());
+		return lastCycle;
+	}
+
+	/**
+	 * @return the statistics of the running cycle, or of the last one between two cycles
+	 */
+	public Snapshot cycle() {
+		Counters cycle = current;
+		return new Snapshot(cycle.cycle, cycle.start, System.currentTimeMillis(), cycle.values());
+	}
+
+	/**
+	 * @return the statistics of the last ended cycle, null if none
+	 */
+	public Snapshot lastCycle() {
+		return lastCycle;
+	}
+
+	/**
+	 * @return the statistics since the account was first synchronized
+	 */
+	public Snapshot lifetime() {
+		long[] values = lifetime.values();
+		long[] base = restored;
+		for (int i = 0; i < values.length; i++) {
+			values[i] += base[i];
+		}
+		return new Snapshot(cycles, lifetimeStart, System.currentTimeMillis(), values);
+	}
+
+	/**
+	 * Continue from the lifetime statistics saved by a previous run
+	 * @param saved Lifetime statistics as written by {@link #toLifetimeMap()}
+	 */
+	public synchronized void restore(Map<String, Object> saved) {
+		long[] base = new long[Counter.values().length];
+		for (Counter counter : Counter.values()) {
+			base[counter.ordinal()] = XContentMapValues.nodeLongValue(saved.get(counter.getName()), 0);
+		}
+		restored = base;
+		cycles = Math.max(cycles, XContentMapValues.nodeLongValue(saved.get("cycle"), 0));
+		lifetimeStart = Math.min(lifetimeStart, XContentMapValues.nodeLongValue(saved.get("start"), lifetimeStart));
+	}
+
+	/**
+	 * @return lifetime statistics to save
+	 */
+	public Map<String, Object> toLifetimeMap() {
+		Snapshot snapshot = lifetime();
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("cycle", snapshot.getCycle());
+		map.put("start", snapshot.getStart());
+		map.putAll(snapshot.toMap());
+		return map;
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.field("account", account);
+		builder.startObject("lifetime");
+		lifetime().toXContent(builder, params);
+		builder.endObject();
+		builder.startObject("cycle");
+		cycle().toXContent(builder, params);
+		builder.endObject();
+		Snapshot last = lastCycle;
+		if (last != null) {
+			builder.startObject("last_cycle");
+			last.toXContent(builder, params);
+			builder.endObject();
+		}
+		return builder;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.river;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Track Dropbox delta pages until every document of a page is acknowledged by elasticsearch.
+ * <br>Pages are opened in delta order. Each download or bulk action of a page is counted with
+ * {@link Page#add()} and {@link Page#done()}. Once a page is sealed (all its changes were dispatched)
+ * and nothing is pending, the page and all the previous ones are acknowledged: its cursor becomes
+ * the checkpoint, the cursor to restart from.
+ * <br>A page with some work to do again is {@link Page#fail() failed}: the checkpoint never goes
+ * beyond the pages before it, so the next scan reads it again.
+ */
+public class CheckpointTracker {
+
+	/**
+	 * Called when the checkpoint moves forward. Use {@link CheckpointTracker#getCheckpoint()}
+	 * to read it: calls may come from many threads and out of order.
+	 */
+	public interface Listener {
+		void onCheckpoint();
+	}
+
+	private final Listener listener;
+	private final LinkedList<Page> pages = new LinkedList<Page>();
+	private String checkpoint;
+	/** A failed page was acknowledged: the checkpoint does not move anymore */
+	private boolean stuck = false;
+
+	/**
+	 * @param checkpoint Cursor we start from
+	 * @param listener Notified when the checkpoint moves forward
+	 */
+	public CheckpointTracker(String checkpoint, Listener listener) {
+		this.checkpoint = checkpoint;
+		this.listener = listener;
+	}
+
+	/**
+	 * Start tracking the next page
+	 * @param cursor Cursor we get after this page
+	 * @return the page
+	 */
+	public synchronized Page open(String cursor) {
+		Page page = new Page(cursor);
+		pages.add(page);
+		return page;
+	}
+
+	/**
+	 * Stop tracking a page and the ones after it, for example when a page can not be dispatched.
+	 * The checkpoint will never go beyond previous pages.
+	 * @param page First page to forget
+	 */
+	public void abandon(Page page) {
+		synchronized (this) {
+			boolean found = false;
+			for (Iterator<Page> it = pages.iterator(); it.hasNext();) {
+				Page current = it.next();
+				if (current == page) found = true;
+				if (found) it.remove();
+			}
+		}
+		advance();
+	}
+
+	/**
+	 * @return the last cursor whose pages are fully acknowledged
+	 */
+	public synchronized String getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * @return true if a failed page stopped the checkpoint
+	 */
+	public synchronized boolean isStuck() {
+		return stuck;
+	}
+
+	/**
+	 * @return the number of pages not fully acknowledged yet
+	 */
+	public synchronized int getPendingPages() {
+		return pages.size();
+	}
+
+	/**
+	 * Wait until every page is acknowledged
+	 * @param timeout Max time to wait in ms
+	 * @return true if nothing is pending anymore
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitAll(long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (!pages.isEmpty()) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) return false;
+			wait(remaining);
+		}
+		return true;
+	}
+
+	private void advance() {
+		boolean removed = false;
+		boolean moved = false;
+		synchronized (this) {
+			while (!pages.isEmpty()) {
+				Page head = pages.getFirst();
+				if (!head.sealed || head.pending > 0) break;
+				pages.removeFirst();
+				removed = true;
+				if (head.failed) stuck = true;
+				if (!stuck) {
+					checkpoint = head.cursor;
+					moved = true;
+				}
+			}
+			if (pages.isEmpty() || removed) notifyAll();
+		}
+		if (moved && listener != null) listener.onCheckpoint();
+	}
+
+	/**
+	 * A delta page and the work it is still waiting for
+	 */
+	public class Page {
+		private final String cursor;
+		private int pending = 0;
+		private boolean sealed = false;
+		private boolean failed = false;
+
+		private Page(String cursor) {
+			this.cursor = cursor;
+		}
+
+		/**
+		 * Some work for this page has started
+		 */
+		public void add() {
+			synchronized (CheckpointTracker.this) {
+				pending++;
+			}
+		}
+
+		/**
+		 * Some work for this page is done, whatever its result
+		 */
+		public void done() {
+			synchronized (CheckpointTracker.this) {
+				pending--;
+			}
+			advance();
+		}
+
+		/**
+		 * Some work of this page must be done again: the checkpoint stays before this page.
+		 * Call it before {@link #done()}.
+		 */
+		public void fail() {
+			synchronized (CheckpointTracker.this) {
+				failed = true;
+			}
+		}
+
+		/**
+		 * Every change of this page has been dispatched
+		 */
+		public void seal() {
+			synchronized (CheckpointTracker.this) {
+				sealed = true;
+			}
+			advance();
+		}
+
+		public String getCursor() {
+			return cursor;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.river;
+
+import java.nio.charset.Charset;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import fr.pilato.elasticsearch.river.dropbox.util.MurmurHash3;
+
+/**
+ * Built-in {@link DocumentIdStrategy} implementations:
+ * <ul>
+ * <li><code>legacy</code>: MD5 without the leading zero of each byte, as the river always did (default)
+ * <li><code>md5</code>: MD5, 32 hex chars
+ * <li><code>sha1</code>: SHA-1, 40 hex chars
+ * <li><code>murmur3</code>: MurmurHash3 128 bits, 32 hex chars. Fastest hash, not a cryptographic one.
+ * <li><code>path</code>: the Dropbox path itself
+ * </ul>
+ * Hashes reuse per thread digests and buffers: the id string is the only object created.
+ */
+public class DocumentIdStrategies {
+
+	public static final String DEFAULT = "legacy";
+
+	public static final DocumentIdStrategy LEGACY = new DigestStrategy("MD5", true);
+	public static final DocumentIdStrategy MD5 = new DigestStrategy("MD5", false);
+	public static final DocumentIdStrategy SHA1 = new DigestStrategy("SHA-1", false);
+	public static final DocumentIdStrategy MURMUR3 = new Murmur3Strategy();
+	public static final DocumentIdStrategy PATH = new PathStrategy();
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final boolean DEFAULT_CHARSET_IS_UTF8 = UTF8.equals(Charset.defaultCharset());
+
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private DocumentIdStrategies() {
+	}
+
+	/**
+	 * Find a strategy
+	 * @param name Built-in strategy name or class name of a {@link DocumentIdStrategy}. null for the default one.
+	 * @return the strategy
+	 */
+	public static DocumentIdStrategy forName(String name) {
+		if (name == null || DEFAULT.equals(name)) return LEGACY;
+		if ("md5".equals(name)) return MD5;
+		if ("sha1".equals(name)) return SHA1;
+		if ("murmur3".equals(name)) return MURMUR3;
+		if ("path".equals(name)) return PATH;
+
+		try {
+			Class<?> clazz = Class.forName(name, true, DocumentIdStrategies.class.getClassLoader());
+			return (DocumentIdStrategy) clazz.newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Unknown id_strategy [" + name + "]", e);
+		}
+	}
+
+	/**
+	 * Per thread buffers
+	 */
+	private static class Scratch {
+		private byte[] bytes = new byte[256];
+		private final byte[] hash = new byte[20];
+		private char[] chars = new char[64];
+		private final long[] halves = new long[2];
+		private MessageDigest md5;
+		private MessageDigest sha1;
+
+		private MessageDigest digest(String algorithm) throws NoSuchAlgorithmException {
+			if ("MD5".equals(algorithm)) {
+				if (md5 == null) md5 = MessageDigest.getInstance(algorithm);
+				return md5;
+			}
+			if (sha1 == null) sha1 = MessageDigest.getInstance(algorithm);
+			return sha1;
+		}
+
+		/**
+		 * Encode a string in UTF-8 into bytes
+		 * @return the number of bytes
+		 */
+		private int utf8(String s) {
+			int length = s.length();
+			if (bytes.length < length * 3) bytes = new byte[length * 3];
+
+			int pos = 0;
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					bytes[pos++] = (byte) c;
+				} else if (c < 0x800) {
+					bytes[pos++] = (byte) (0xc0 | (c >> 6));
+					bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					bytes[pos++] = (byte) (0xf0 | (cp >> 18));
+					bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					bytes[pos++] = (byte) (0x80 | (cp & 0x3f));
+				} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+					// Same as String.getBytes()
+					bytes[pos++] = '?';
+				} else {
+					bytes[pos++] = (byte) (0xe0 | (c >> 12));
+					bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			return pos;
+		}
+
+		/**
+		 * @param dropLeadingZeros true to write 0x0a as "a" instead of "0a"
+		 */
+		private String hex(byte[] data, int length, boolean dropLeadingZeros) {
+			if (chars.length < length * 2) chars = new char[length * 2];
+			int pos = 0;
+			for (int i = 0; i < length; i++) {
+				int v = data[i] & 0xff;
+				if (!dropLeadingZeros || v > 0x0f) chars[pos++] = HEX[v >>> 4];
+				chars[pos++] = HEX[v & 0x0f];
+			}
+			return new String(chars, 0, pos);
+		}
+
+		private String hex(long[] values) {
+			int pos = 0;
+			for (long value : values) {
+				for (int shift = 60; shift >= 0; shift -= 4) {
+					chars[pos++] = HEX[(int) (value >>> shift) & 0x0f];
+				}
+			}
+			return new String(chars, 0, pos);
+		}
+	}
+
+	private static class DigestStrategy implements DocumentIdStrategy {
+		private final String algorithm;
+		private final boolean legacy;
+
+		private DigestStrategy(String algorithm, boolean legacy) {
+			this.algorithm = algorithm;
+			this.legacy = legacy;
+		}
+
+		@Override
+		public String id(String path) {
+			Scratch s = scratch.get();
+			try {
+				MessageDigest digest = s.digest(algorithm);
+				if (legacy && !DEFAULT_CHARSET_IS_UTF8) {
+					// Old ids were computed with the platform charset
+					digest.update(path.getBytes());
+				} else {
+					digest.update(s.bytes, 0, s.utf8(path));
+				}
+				int length = digest.digest(s.hash, 0, s.hash.length);
+				return s.hex(s.hash, length, legacy);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(algorithm + " is not available", e);
+			} catch (DigestException e) {
+				throw new IllegalStateException("Can not compute " + algorithm + " of " + path, e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return legacy ? DEFAULT : algorithm.replace("-", "").toLowerCase();
+		}
+	}
+
+	private static class Murmur3Strategy implements DocumentIdStrategy {
+		@Override
+		public String id(String path) {
+			Scratch s = scratch.get();
+			MurmurHash3.hash128(s.bytes, 0, s.utf8(path), 0, s.halves);
+			return s.hex(s.halves);
+		}
+
+		@Override
+		public String toString() {
+			return "murmur3";
+		}
+	}
+
+	private static class PathStrategy implements DocumentIdStrategy {
+		@Override
+		public String id(String path) {
+			return path;
+		}
+
+		@Override
+		public String toString() {
+			return "path";
+		}
+	}
+}
@@ -22,6 +22,9 @@ package fr.pilato.elasticsearch.river.dropbox.river;
 import java.util.ArrayList;
 import java.util.List;
 
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxConnector;
+import fr.pilato.elasticsearch.river.dropbox.util.GlobMatcher;
+
 /**
  * Define a DropBox Feed with toke, secret, source (aka short name), url and updateRate attributes
  * @author dadoonet (David Pilato)
@@ -32,10 +35,19 @@ public class DropBoxRiverFeedDefinition {
 	private int updateRate;
 	private List<String> includes;
 	private List<String> excludes;
+	private GlobMatcher includesMatcher;
+	private GlobMatcher excludesMatcher;
+	private String indexName;
+	private String typeName;
+	private String rootPathId;
 	private String appkey;
 	private String appsecret;
 	private String token;
 	private String secret;
+	private int concurrency = 1;
+	private boolean longpoll = false;
+	private int longpollTimeout = 30;
+	private String baseUrl;
 	
 	
 	public DropBoxRiverFeedDefinition() {
@@ -55,6 +67,7 @@ public class DropBoxRiverFeedDefinition {
 		assert( includes != null);
 		this.includes = includes;
 		this.excludes = excludes;
+		compileRules();
 		this.feedname = feedname;
 		this.url = url;
 		this.updateRate = updateRate;
@@ -80,6 +93,13 @@ public class DropBoxRiverFeedDefinition {
 		this.url = url;
 	}
 
+	/**
+	 * @return the path prefix we send to Dropbox so it only sends changes under url, null for the whole account
+	 */
+	public String getPathPrefix() {
+		return DropboxConnector.normalizePathPrefix(url);
+	}
+
 	public int getUpdateRate() {
 		return updateRate;
 	}
@@ -94,6 +114,7 @@ public class DropBoxRiverFeedDefinition {
 	
 	public void setExcludes(List<String> excludes) {
 		this.excludes = excludes;
+		compileRules();
 	}
 	
 	public List<String> getIncludes() {
@@ -102,14 +123,66 @@ public class DropBoxRiverFeedDefinition {
 	
 	public void setIncludes(List<String> includes) {
 		this.includes = includes;
+		compileRules();
 	}
 	
 	public void addInclude(String include) {
 		this.includes.add(include);
+		compileRules();
 	}
 
 	public void addExclude(String exclude) {
 		this.excludes.add(exclude);
+		compileRules();
+	}
+
+	/**
+	 * @return Index where this feed documents go, null for the river index
+	 */
+	public String getIndexName() {
+		return indexName;
+	}
+
+	public void setIndexName(String indexName) {
+		this.indexName = indexName;
+	}
+
+	/**
+	 * @return Type of this feed documents, null for the river type
+	 */
+	public String getTypeName() {
+		return typeName;
+	}
+
+	public void setTypeName(String typeName) {
+		this.typeName = typeName;
+	}
+
+	/**
+	 * @return Signature of url, stored in every document of this feed
+	 */
+	public String getRootPathId() {
+		return rootPathId;
+	}
+
+	public void setRootPathId(String rootPathId) {
+		this.rootPathId = rootPathId;
+	}
+
+	/**
+	 * @param filename File path
+	 * @return true if the file matches includes and excludes rules
+	 */
+	public boolean isIndexable(String filename) {
+		return DropBoxRiverUtil.isIndexable(filename, includesMatcher, excludesMatcher);
+	}
+
+	/**
+	 * Rules are compiled once here and not for every file we scan
+	 */
+	private void compileRules() {
+		this.includesMatcher = new GlobMatcher(includes);
+		this.excludesMatcher = new GlobMatcher(excludes);
 	}
 	
 	public String getSecret() {
@@ -143,4 +216,48 @@ public class DropBoxRiverFeedDefinition {
 	public void setAppsecret(String appsecret) {
 		this.appsecret = appsecret;
 	}
+
+	/**
+	 * @return Number of files we download and index in parallel
+	 */
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * @return true if we wait for Dropbox change notifications instead of sleeping updateRate ms
+	 */
+	public boolean isLongpoll() {
+		return longpoll;
+	}
+
+	public void setLongpoll(boolean longpoll) {
+		this.longpoll = longpoll;
+	}
+
+	/**
+	 * @return Max time in seconds we wait for a change notification before asking again
+	 */
+	public int getLongpollTimeout() {
+		return longpollTimeout;
+	}
+
+	public void setLongpollTimeout(int longpollTimeout) {
+		this.longpollTimeout = longpollTimeout;
+	}
+
+	/**
+	 * @return Base URL of Dropbox API servers, null for Dropbox itself
+	 */
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+
+	public void setBaseUrl(String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
 }
@@ -21,13 +21,20 @@ package fr.pilato.elasticsearch.river.dropbox.river;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
 
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxConnector;
+import fr.pilato.elasticsearch.river.dropbox.util.GlobMatcher;
+
 public class DropBoxRiverUtil {
 	public static final String INDEX_TYPE_DOC = "doc";
 	public static final String INDEX_TYPE_FOLDER = "folder";
@@ -38,11 +45,21 @@ public class DropBoxRiverUtil {
 	public static final String DOC_FIELD_PATH_ENCODED = "pathEncoded";
 	public static final String DOC_FIELD_VIRTUAL_PATH = "virtualpath";
 	public static final String DOC_FIELD_ROOT_PATH = "rootpath";
+	public static final String DOC_FIELD_REV = "rev";
+	public static final String DOC_FIELD_BYTES = "bytes";
 	
 	public static final String DIR_FIELD_NAME = "name";
 	public static final String DIR_FIELD_PATH_ENCODED = "pathEncoded";
 	public static final String DIR_FIELD_VIRTUAL_PATH = "virtualpath";
 	public static final String DIR_FIELD_ROOT_PATH = "rootpath";
+
+	/** SimpleDateFormat is not thread safe and files are indexed by many workers: each one gets its own */
+	private static final ThreadLocal<DateFormat> dropboxDateFormat = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return new SimpleDateFormat("EEE, dd MMM yyyy kk:mm:ss ZZZZZ", Locale.US);
+		}
+	};
 	
 	public static XContentBuilder buildFsFileMapping(String type) throws Exception {
 		XContentBuilder xbMapping = jsonBuilder().prettyPrint().startObject()
@@ -52,6 +69,8 @@ public class DropBoxRiverUtil {
 			.startObject(DOC_FIELD_ROOT_PATH).field("type", "string").field("analyzer","keyword").endObject()
 			.startObject(DOC_FIELD_VIRTUAL_PATH).field("type", "string").field("analyzer","keyword").endObject()
 			.startObject(DOC_FIELD_DATE).field("type", "date").endObject()
+			.startObject(DOC_FIELD_REV).field("type", "string").field("analyzer","keyword").field("store", "yes").endObject()
+			.startObject(DOC_FIELD_BYTES).field("type", "long").field("store", "yes").endObject()
 			.startObject("file").field("type", "attachment")
 			.startObject("fields").startObject("title")
 			.field("store", "yes").endObject().startObject("file")
@@ -61,6 +80,18 @@ public class DropBoxRiverUtil {
 		return xbMapping;
 	}
 
+	/**
+	 * Fields read back to skip unchanged files. They are stored so we never load the file content.
+	 */
+	public static XContentBuilder buildFsFileRevisionMapping(String type) throws Exception {
+		XContentBuilder xbMapping = jsonBuilder().prettyPrint().startObject()
+			.startObject(type).startObject("properties")
+			.startObject(DOC_FIELD_REV).field("type", "string").field("analyzer","keyword").field("store", "yes").endObject()
+			.startObject(DOC_FIELD_BYTES).field("type", "long").field("store", "yes").endObject()
+			.endObject().endObject().endObject();
+		return xbMapping;
+	}
+
 	public static XContentBuilder buildFsFolderMapping(String type) throws Exception {
 		XContentBuilder xbMapping = jsonBuilder().prettyPrint().startObject()
 				.startObject(type).startObject("properties")
@@ -126,30 +157,82 @@ public class DropBoxRiverUtil {
 	}
 
 	/**
-	 * We check if we can index the file or if we should ignore it
+	 * We check if a file is under a Dropbox directory. Dropbox paths are case insensitive
+	 * and delta entries are sent lower cased.
+	 * @param filename The filename to check
+	 * @param path The Dropbox directory
+	 * @return true if filename is path or one of its children
+	 */
+	public static boolean isInPath(String filename, String path) {
+		if (filename == null) return false;
+		String prefix = DropboxConnector.normalizePathPrefix(path);
+		if (prefix == null) return true;
+		if (!filename.regionMatches(true, 0, prefix, 0, prefix.length())) return false;
+		return filename.length() == prefix.length() || filename.charAt(prefix.length()) == '/';
+	}
+
+	/**
+	 * Find the deepest Dropbox directory holding all paths. Dropbox paths are case insensitive.
+	 * @param paths Dropbox directories
+	 * @return the common directory, "/" if they have nothing in common
+	 */
+	public static String commonPath(List<String> paths) {
+		String common = null;
+		for (String path : paths) {
+			String prefix = DropboxConnector.normalizePathPrefix(path);
+			if (prefix == null) return "/";
+			if (common == null) {
+				common = prefix;
+				continue;
+			}
+			// Shorten common until it is path or one of its parents
+			while (!isInPath(prefix, common)) {
+				common = common.substring(0, common.lastIndexOf('/'));
+				if (common.isEmpty()) return "/";
+			}
+		}
+		return common == null ? "/" : common;
+	}
+
+	/**
+	 * We check if we can index the file or if we should ignore it.
+	 * <br>Rules are compiled on each call: use {@link #isIndexable(String, GlobMatcher, GlobMatcher)}
+	 * with compiled rules when checking many files.
 	 * @param filename The filename to scan
 	 * @param includes include rules, may be empty not null
 	 * @param excludes exclude rules, may be empty not null
 	 * @return
 	 */
 	public static boolean isIndexable(String filename, List<String> includes, List<String> excludes) {
-		// No rules ? Fine, we index everything
-		if (includes.isEmpty() && excludes.isEmpty()) return true;
+		return isIndexable(filename, new GlobMatcher(includes), new GlobMatcher(excludes));
+	}
 
+	/**
+	 * We check if we can index the file or if we should ignore it
+	 * @param filename The filename to scan
+	 * @param includes compiled include rules
+	 * @param excludes compiled exclude rules
+	 * @return
+	 */
+	public static boolean isIndexable(String filename, GlobMatcher includes, GlobMatcher excludes) {
 		// Exclude rules : we know that whatever includes rules are, we should exclude matching files
-		for (String exclude : excludes) {
-			String regex = exclude.replace("?", ".?").replace("*", ".*?");
-			if(filename.matches(regex)) return false;
-		}
-		
+		if (excludes.matches(filename)) return false;
+
 		// Include rules : we should add document if it match include rules
-		if (includes.isEmpty()) return true;
-		
-		for (String include : includes) {
-			String regex = include.replace("?", ".?").replace("*", ".*?");
-			if(filename.matches(regex)) return true;
+		return includes.isEmpty() || includes.matches(filename);
+	}
+
+	/**
+	 * Convert a Dropbox date (<code>Tue, 19 Jul 2011 21:55:38 +0000</code>) to milliseconds
+	 * @param date Dropbox date
+	 * @return the date in ms or null if it can not be parsed
+	 */
+	public static Long convertToEsDate(String date) {
+		if (date == null) return null;
+		try {
+			return dropboxDateFormat.get().parse(date).getTime();
+		} catch (ParseException e) {
+			return null;
 		}
-		
-		return false;
 	}
 }
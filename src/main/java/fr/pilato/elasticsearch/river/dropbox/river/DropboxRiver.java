@@ -19,39 +19,77 @@
 
 package fr.pilato.elasticsearch.river.dropbox.river;
 
+import fr.pilato.elasticsearch.river.dropbox.connector.AsyncDropboxTransport;
 import fr.pilato.elasticsearch.river.dropbox.connector.DropboxAccount;
 import fr.pilato.elasticsearch.river.dropbox.connector.DropboxChanges;
 import fr.pilato.elasticsearch.river.dropbox.connector.DropboxConnector;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxDeltaNotification;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxEntry;
 import fr.pilato.elasticsearch.river.dropbox.connector.DropboxFile;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxInputStream;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxRequest;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxThrottledException;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxTransport;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxTransports;
+import fr.pilato.elasticsearch.river.dropbox.river.AccountStatistics.Counter;
+import fr.pilato.elasticsearch.river.dropbox.river.RiverMetrics.Phase;
+import fr.pilato.elasticsearch.river.dropbox.util.FairWorkerPool;
+import fr.pilato.elasticsearch.river.dropbox.util.JsonBase64InputStream;
 import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.block.ClusterBlockException;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
-import org.elasticsearch.common.Base64;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.ListenableFuture;
+import org.elasticsearch.common.util.concurrent.MoreExecutors;
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.get.GetField;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
 import org.elasticsearch.river.AbstractRiverComponent;
 import org.elasticsearch.river.River;
 import org.elasticsearch.river.RiverName;
 import org.elasticsearch.river.RiverSettings;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
-import java.util.Locale;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
@@ -60,7 +98,23 @@ import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
  */
 public class DropboxRiver extends AbstractRiverComponent implements River {
 
-	private static final DateFormat dropboxDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy kk:mm:ss ZZZZZ", Locale.US);
+	private static final ByteSizeValue DEFAULT_BULK_SIZE_BYTES = new ByteSizeValue(5, ByteSizeUnit.MB);
+
+	private static final ByteSizeValue DEFAULT_MAX_MEMORY = new ByteSizeValue(50, ByteSizeUnit.MB);
+
+	private static final int DEFAULT_SYNC_THREADS = 4;
+
+	private static final int DEFAULT_STATS_HISTORY = 100;
+
+	/** Bigger files are streamed by a worker even with async_downloads */
+	private static final ByteSizeValue ASYNC_MAX_FILE_SIZE = new ByteSizeValue(1, ByteSizeUnit.MB);
+
+	/** Max number of files we check in one multi-get before downloading them */
+	private static final int CHECK_BATCH_SIZE = 1000;
+
+	/** Bulk item failures which go away when the cluster is less busy or its shards are back */
+	private static final String[] RETRYABLE_BULK_FAILURES = { "EsRejectedExecutionException", "UnavailableShardsException",
+		"NoShardAvailableActionException", "ClusterBlockException", "NodeClosedException" };
 
 	private final Client client;
 
@@ -68,31 +122,82 @@ public class DropboxRiver extends AbstractRiverComponent implements River {
 
 	private final String typeName;
 
-	private final long bulkSize;
+	private final int bulkSize;
+
+	private final int concurrentRequests;
+
+	private final TimeValue flushInterval;
+
+	private final ByteSizeValue bulkSizeBytes;
+
+	private final MemoryBudget memoryBudget;
+
+	private final int syncThreads;
 
-	private volatile Thread feedThread;
+	private final int statsHistory;
+
+	private final DropboxTransport transport;
+
+	/** Downloads small files when async_downloads is set, null otherwise */
+	private final AsyncDropboxTransport asyncTransport;
+
+	private final int connectTimeout;
+
+	private final int readTimeout;
+
+	/** Max number of files downloaded by the asynchronous transport at the same time, 0 when disabled */
+	private final int asyncDownloads;
+
+	/** True to skip files already indexed with the same revision */
+	private final boolean skipUnchanged;
+
+	private volatile ScheduledExecutorService syncExecutor;
+
+	private volatile FairWorkerPool workerPool;
+
+	private volatile ExecutorService checkpointExecutor;
+
+	private volatile BulkProcessor bulkProcessor;
 
 	private volatile boolean closed = false;
 
 	private final DropBoxRiverFeedDefinition fsDefinition;
 
-	private final DropboxConnector dropbox;
+	private final List<DropBoxParser> parsers;
+
+	private final RiverStateStore stateStore;
+
+	private final DocumentIdStrategy idStrategy;
+
+	private final RiverMetricsService metricsService;
+
+	private final RiverMetrics metrics;
+
+	private final RequestThrottlerService throttlers;
+
+	/** App keys whose throttler we got from {@link #throttlers} */
+	private final List<String> throttledApps = new ArrayList<String>();
 	
 	@SuppressWarnings({ "unchecked" })
 	@Inject
-	public DropboxRiver(RiverName riverName, RiverSettings settings, Client client)
-			throws MalformedURLException {
+	public DropboxRiver(RiverName riverName, RiverSettings settings, Client client,
+			RiverMetricsService metricsService, RequestThrottlerService throttlers) throws MalformedURLException {
 		super(riverName, settings);
 		this.client = client;
+		this.stateStore = new RiverStateStore(client, riverName.name());
+		this.metricsService = metricsService;
+		this.throttlers = throttlers;
 
+		Map<String, Object> feed;
+		String transportName;
 		if (settings.settings().containsKey("dropbox")) {
-			Map<String, Object> feed = (Map<String, Object>) settings
+			feed = (Map<String, Object>) settings
 					.settings().get("dropbox");
 
 			String feedname = XContentMapValues.nodeStringValue(
 					feed.get("name"), null);
 			String url = XContentMapValues.nodeStringValue(feed.get("url"),
-					null);
+					"/");
 
 			int updateRate = XContentMapValues.nodeIntegerValue(
 					feed.get("update_rate"), 15 * 60 * 1000);
@@ -104,21 +209,55 @@ public class DropboxRiver extends AbstractRiverComponent implements River {
 			String appsecret = XContentMapValues.nodeStringValue(feed.get("appsecret"),	null);
 			String token = XContentMapValues.nodeStringValue(feed.get("token"),	null);
 			String secret = XContentMapValues.nodeStringValue(feed.get("secret"),	null);
+
+			int concurrency = XContentMapValues.nodeIntegerValue(feed.get("concurrency"), 1);
+			boolean longpoll = XContentMapValues.nodeBooleanValue(feed.get("longpoll"), false);
+			int longpollTimeout = XContentMapValues.nodeIntegerValue(feed.get("longpoll_timeout"), DropboxConnector.LONGPOLL_MIN_TIMEOUT);
+			String baseUrl = XContentMapValues.nodeStringValue(feed.get("base_url"), null);
+
+			idStrategy = DocumentIdStrategies.forName(XContentMapValues.nodeStringValue(feed.get("id_strategy"), null));
+
+			transportName = XContentMapValues.nodeStringValue(feed.get("transport"), null);
+			asyncDownloads = Math.max(0, XContentMapValues.nodeIntegerValue(feed.get("async_downloads"), 0));
+			skipUnchanged = XContentMapValues.nodeBooleanValue(feed.get("skip_unchanged"), true);
+			connectTimeout = (int) XContentMapValues.nodeTimeValue(feed.get("connect_timeout"),
+					TimeValue.timeValueMillis(DropboxConnector.DEFAULT_CONNECT_TIMEOUT)).millis();
+			readTimeout = (int) XContentMapValues.nodeTimeValue(feed.get("read_timeout"),
+					TimeValue.timeValueMillis(DropboxConnector.DEFAULT_READ_TIMEOUT)).millis();
 			
 			fsDefinition = new DropBoxRiverFeedDefinition(feedname, url,
 						updateRate, Arrays.asList(includes), Arrays.asList(excludes),
 						appkey, appsecret, token, secret);
+			fsDefinition.setConcurrency(Math.max(1, concurrency));
+			fsDefinition.setLongpoll(longpoll);
+			fsDefinition.setLongpollTimeout(longpollTimeout);
+			fsDefinition.setBaseUrl(baseUrl);
 		} else {
 			logger.error(
 					"You didn't define the dropbox settings. Exiting... See https://github.com/dadoonet/dropboxriver");
 			indexName = null;
 			typeName = null;
 			bulkSize = 100;
+			concurrentRequests = 1;
+			flushInterval = TimeValue.timeValueSeconds(5);
+			bulkSizeBytes = null;
+			memoryBudget = null;
+			syncThreads = 0;
+			statsHistory = 0;
+			metrics = metricsService.register(riverName.name());
+			transport = null;
+			asyncTransport = null;
+			asyncDownloads = 0;
+			skipUnchanged = false;
+			connectTimeout = 0;
+			readTimeout = 0;
+			idStrategy = null;
 			fsDefinition = null;
-			dropbox = null;
+			parsers = Collections.emptyList();
 			return;
 		}
 
+		ByteSizeValue maxMemory;
 		if (settings.settings().containsKey("index")) {
 			Map<String, Object> indexSettings = (Map<String, Object>) settings
 					.settings().get("index");
@@ -126,66 +265,247 @@ public class DropboxRiver extends AbstractRiverComponent implements River {
 					indexSettings.get("index"), riverName.name());
 			typeName = XContentMapValues.nodeStringValue(
 					indexSettings.get("type"), DropBoxRiverUtil.INDEX_TYPE_DOC);
-			bulkSize = XContentMapValues.nodeLongValue(
+			bulkSize = XContentMapValues.nodeIntegerValue(
 					indexSettings.get("bulk_size"), 100);
+			concurrentRequests = XContentMapValues.nodeIntegerValue(
+					indexSettings.get("concurrent_requests"), 1);
+			flushInterval = XContentMapValues.nodeTimeValue(
+					indexSettings.get("flush_interval"), TimeValue.timeValueSeconds(5));
+			bulkSizeBytes = ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+					indexSettings.get("bulk_size_bytes"), null), DEFAULT_BULK_SIZE_BYTES);
+			maxMemory = ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+					indexSettings.get("max_memory"), null), DEFAULT_MAX_MEMORY);
 		} else {
 			indexName = riverName.name();
 			typeName = DropBoxRiverUtil.INDEX_TYPE_DOC;
 			bulkSize = 100;
+			concurrentRequests = 1;
+			flushInterval = TimeValue.timeValueSeconds(5);
+			bulkSizeBytes = DEFAULT_BULK_SIZE_BYTES;
+			maxMemory = DEFAULT_MAX_MEMORY;
 		}
+
+		// A bulk must always fit in memory, otherwise we would only flush on flush_interval
+		if (maxMemory.bytes() > 0 && maxMemory.bytes() < bulkSizeBytes.bytes()) {
+			logger.warn("max_memory [{}] is lower than bulk_size_bytes [{}]. Using [{}].", maxMemory, bulkSizeBytes, bulkSizeBytes);
+			maxMemory = bulkSizeBytes;
+		}
+		memoryBudget = new MemoryBudget(maxMemory.bytes());
+
+		// From here, what we get is released by close(), or right away if the river can not be built
+		metrics = metricsService.register(riverName.name());
+		try {
+			// Every account of the river shares the same transports
+			transport = DropboxTransports.forName(transportName);
+			// Only small files are downloaded asynchronously: API calls and big files keep the main transport
+			if (asyncDownloads == 0) {
+				asyncTransport = null;
+			} else if (transport instanceof AsyncDropboxTransport) {
+				asyncTransport = (AsyncDropboxTransport) transport;
+			} else {
+				asyncTransport = (AsyncDropboxTransport) DropboxTransports.forName(DropboxTransports.NIO);
+			}
+
+			// Many accounts can share the same river: each one gets its own cursor
+			parsers = new ArrayList<DropBoxParser>();
+			if (XContentMapValues.isArray(feed.get("accounts"))) {
+				int i = 0;
+				for (Object accountSettings : (List<Object>) feed.get("accounts")) {
+					Map<String, Object> account = (Map<String, Object>) accountSettings;
+					String name = XContentMapValues.nodeStringValue(account.get("name"), "account" + i++);
+					parsers.add(buildParser(name, account, "_cursor_" + name, "_statistics_" + name));
+				}
+			} else {
+				parsers.add(buildParser(riverName.name(), feed, "_cursor", "_statistics"));
+			}
+
+			// With longpoll, each account keeps a sync thread while waiting for changes
+			int defaultSyncThreads = fsDefinition.isLongpoll() ? parsers.size() : Math.min(parsers.size(), DEFAULT_SYNC_THREADS);
+			syncThreads = Math.max(1, XContentMapValues.nodeIntegerValue(feed.get("sync_threads"), defaultSyncThreads));
+
+			// Statistics of the last cycles are kept in _river
+			statsHistory = Math.max(0, XContentMapValues.nodeIntegerValue(feed.get("stats_history"), DEFAULT_STATS_HISTORY));
+		} catch (RuntimeException e) {
+			release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Build the parser of a Dropbox account. Missing account settings come from the river.
+	 * @param name Account name
+	 * @param accountSettings Account settings
+	 * @param cursorField Where we save the account cursor
+	 * @param statisticsField Where we save the account cycles statistics
+	 * @return the account parser
+	 */
+	@SuppressWarnings("unchecked")
+	private DropBoxParser buildParser(String name, Map<String, Object> accountSettings, String cursorField,
+			String statisticsField) {
+		String url = XContentMapValues.nodeStringValue(accountSettings.get("url"), fsDefinition.getUrl());
+		String[] includes = DropBoxRiverUtil.buildArrayFromSettings(accountSettings, "includes");
+		String[] excludes = DropBoxRiverUtil.buildArrayFromSettings(accountSettings, "excludes");
+
+		DropBoxRiverFeedDefinition account = new DropBoxRiverFeedDefinition(
+				XContentMapValues.nodeStringValue(accountSettings.get("name"), fsDefinition.getFeedname()), url,
+				XContentMapValues.nodeIntegerValue(accountSettings.get("update_rate"), fsDefinition.getUpdateRate()),
+				Arrays.asList(includes), Arrays.asList(excludes),
+				XContentMapValues.nodeStringValue(accountSettings.get("appkey"), fsDefinition.getAppkey()),
+				XContentMapValues.nodeStringValue(accountSettings.get("appsecret"), fsDefinition.getAppsecret()),
+				XContentMapValues.nodeStringValue(accountSettings.get("token"), fsDefinition.getToken()),
+				XContentMapValues.nodeStringValue(accountSettings.get("secret"), fsDefinition.getSecret()));
+		account.setConcurrency(fsDefinition.getConcurrency());
+		account.setLongpoll(XContentMapValues.nodeBooleanValue(accountSettings.get("longpoll"), fsDefinition.isLongpoll()));
+		account.setLongpollTimeout(XContentMapValues.nodeIntegerValue(accountSettings.get("longpoll_timeout"), fsDefinition.getLongpollTimeout()));
+		account.setBaseUrl(XContentMapValues.nodeStringValue(accountSettings.get("base_url"), fsDefinition.getBaseUrl()));
+
+		// Many feeds can share the same account: changes are fetched once and dispatched to every feed
+		List<DropBoxRiverFeedDefinition> feeds = new ArrayList<DropBoxRiverFeedDefinition>();
+		if (XContentMapValues.isArray(accountSettings.get("feeds"))) {
+			List<String> urls = new ArrayList<String>();
+			for (Object feedSettings : (List<Object>) accountSettings.get("feeds")) {
+				DropBoxRiverFeedDefinition feedDefinition = buildFeed((Map<String, Object>) feedSettings, account);
+				feeds.add(feedDefinition);
+				urls.add(feedDefinition.getUrl());
+			}
+			account.setUrl(DropBoxRiverUtil.commonPath(urls));
+		} else {
+			feeds.add(account);
+		}
+		for (DropBoxRiverFeedDefinition feedDefinition : feeds) {
+			feedDefinition.setRootPathId(idStrategy.id(feedDefinition.getUrl()));
+		}
+
+		// We need to connect to DropBox. Dropbox limits calls per app key, whatever the river.
+		throttledApps.add(account.getAppkey());
+		DropboxConnector dropbox = new DropboxConnector(account.getAppkey(), account.getAppsecret(),
+				account.getToken(), account.getSecret())
+				.setBaseUrl(account.getBaseUrl())
+				.setTransport(transport)
+				.setAsyncTransport(asyncTransport)
+				.setThrottler(throttlers.acquire(account.getAppkey()))
+				.setTimeouts(connectTimeout, readTimeout);
+		DropboxAccount dropboxAccount = dropbox.getUserInfo();
 		
-		// We need to connect to DropBox
-		dropbox = new DropboxConnector(fsDefinition.getAppkey(), fsDefinition.getAppsecret(),
-				fsDefinition.getToken(), fsDefinition.getSecret());
-		DropboxAccount account = dropbox.getUserInfo();
-		
-		if (account == null) {
+		if (dropboxAccount == null) {
 			logger.error("Can not connect to your dropbox account. Please check your settings and ensure that " +
-					"your app {} is authorized to access to your dropbox account.", fsDefinition.getAppkey());
+					"your app {} is authorized to access to your dropbox account.", account.getAppkey());
 		} else {
-			logger.info("Starting river on {} dropbox account. Scanning {}.", account.email, fsDefinition.getUrl());
+			logger.info("Starting river on {} dropbox account. Scanning {}.", dropboxAccount.email, account.getUrl());
 		}
-		
+
+		return new DropBoxParser(name, account, feeds, dropbox, cursorField, statisticsField);
+	}
+
+	/**
+	 * Build a feed from the <code>feeds</code> array. Account and scan settings come from the account.
+	 * @param feedSettings Feed settings
+	 * @param account Account definition
+	 * @return the feed definition
+	 */
+	private static DropBoxRiverFeedDefinition buildFeed(Map<String, Object> feedSettings, DropBoxRiverFeedDefinition account) {
+		String feedname = XContentMapValues.nodeStringValue(feedSettings.get("name"), account.getFeedname());
+		String url = XContentMapValues.nodeStringValue(feedSettings.get("url"), "/");
+		String[] includes = DropBoxRiverUtil.buildArrayFromSettings(feedSettings, "includes");
+		String[] excludes = DropBoxRiverUtil.buildArrayFromSettings(feedSettings, "excludes");
+
+		DropBoxRiverFeedDefinition feedDefinition = new DropBoxRiverFeedDefinition(feedname, url,
+				account.getUpdateRate(), Arrays.asList(includes), Arrays.asList(excludes),
+				account.getAppkey(), account.getAppsecret(), account.getToken(), account.getSecret());
+		feedDefinition.setIndexName(XContentMapValues.nodeStringValue(feedSettings.get("index"), null));
+		feedDefinition.setTypeName(XContentMapValues.nodeStringValue(feedSettings.get("type"), null));
+		return feedDefinition;
+	}
+
+	/**
+	 * @return the index where feed documents go
+	 */
+	private String indexOf(DropBoxRiverFeedDefinition feed) {
+		return feed.getIndexName() != null ? feed.getIndexName() : indexName;
+	}
+
+	/**
+	 * @return the type of feed documents
+	 */
+	private String typeOf(DropBoxRiverFeedDefinition feed) {
+		return feed.getTypeName() != null ? feed.getTypeName() : typeName;
 	}
 
 	@Override
 	public void start() {
+		// Settings were missing: the constructor already told why
+		if (fsDefinition == null || parsers.isEmpty()) return;
+
 		if (logger.isInfoEnabled())
 			logger.info("Starting dropbox river scanning");
-		try {
-			client.admin().indices().prepareCreate(indexName).execute()
-					.actionGet();
-		} catch (Exception e) {
-			if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException) {
-				// that's fine
-			} else if (ExceptionsHelper.unwrapCause(e) instanceof ClusterBlockException) {
-				// ok, not recovered yet..., lets start indexing and hope we
-				// recover by the first bulk
-				// TODO: a smarter logic can be to register for cluster event
-				// listener here, and only start sampling when the block is
-				// removed...
-			} else {
-				logger.warn("failed to create index [{}], disabling river...",
-						e, indexName);
-				return;
+
+		// Each feed may have its own index and type
+		Set<String> indices = new HashSet<String>();
+		Set<String> mappings = new HashSet<String>();
+		for (DropBoxParser parser : parsers) {
+			for (DropBoxRiverFeedDefinition feed : parser.feeds) {
+				String index = indexOf(feed);
+				String type = typeOf(feed);
+
+				if (indices.add(index)) {
+					try {
+						client.admin().indices().prepareCreate(index).execute()
+								.actionGet();
+					} catch (Exception e) {
+						if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException) {
+							// that's fine
+						} else if (ExceptionsHelper.unwrapCause(e) instanceof ClusterBlockException) {
+							// ok, not recovered yet..., lets start indexing and hope we
+							// recover by the first bulk
+							// TODO: a smarter logic can be to register for cluster event
+							// listener here, and only start sampling when the block is
+							// removed...
+						} else {
+							logger.warn("failed to create index [{}], disabling river...",
+									e, index);
+							return;
+						}
+					}
+				}
+
+				if (mappings.add(index + "/" + type)) {
+					try {
+						// If needed, we create the new mapping for files
+						pushMapping(index, type, DropBoxRiverUtil.buildFsFileMapping(type));
+						// Mappings created by older versions miss the fields read by skip_unchanged
+						if (skipUnchanged) mergeMapping(index, type, DropBoxRiverUtil.buildFsFileRevisionMapping(type));
+					} catch (Exception e) {
+						logger.warn("failed to create mapping for [{}/{}], disabling river...",
+								e, index, type);
+						return;
+					}
+				}
 			}
 		}
-		
-		try {
-			// If needed, we create the new mapping for files
-			pushMapping(indexName, typeName, DropBoxRiverUtil.buildFsFileMapping(typeName));			
-		} catch (Exception e) {
-			logger.warn("failed to create mapping for [{}/{}], disabling river...",
-					e, indexName, typeName);
-			return;
-		}
 
-		// We create as many Threads as there are feeds
-		feedThread = EsExecutors.daemonThreadFactory(
-				settings.globalSettings(), "dropbox_slurper")
-				.newThread(
-						new DropBoxParser());
-		feedThread.start();
+		// Documents are sent asynchronously: downloads keep going while bulks are running
+		bulkProcessor = BulkProcessor.builder(client, new BulkListener())
+				.setName(riverName.name())
+				.setBulkActions(bulkSize)
+				.setBulkSize(bulkSizeBytes)
+				.setConcurrentRequests(concurrentRequests)
+				.setFlushInterval(flushInterval)
+				.build();
+
+		// Delta pages and files of every account are fetched by a shared pool of workers
+		workerPool = new FairWorkerPool(fsDefinition.getConcurrency(),
+				EsExecutors.daemonThreadFactory(settings.globalSettings(), "dropbox_worker"));
+
+		// Checkpoints are written one after the other so an old cursor never overwrites a newer one
+		checkpointExecutor = Executors.newSingleThreadExecutor(
+				EsExecutors.daemonThreadFactory(settings.globalSettings(), "dropbox_checkpoint"));
+
+		// Accounts are synchronized by a few threads, each account being scheduled every update_rate
+		syncExecutor = Executors.newScheduledThreadPool(syncThreads,
+				EsExecutors.daemonThreadFactory(settings.globalSettings(), "dropbox_slurper"));
+		for (DropBoxParser parser : parsers) {
+			syncExecutor.execute(parser);
+		}
 	}
 
 	@Override
@@ -194,10 +514,45 @@ public class DropboxRiver extends AbstractRiverComponent implements River {
 			logger.info("Closing fs river");
 		closed = true;
 
-		// We have to close the Thread
-		if (feedThread != null) {
-			feedThread.interrupt();
+		// We have to close the Threads
+		if (syncExecutor != null) {
+			syncExecutor.shutdownNow();
+		}
+
+		if (workerPool != null) {
+			workerPool.shutdownNow();
+		}
+
+		// Remaining documents are sent to elasticsearch
+		if (bulkProcessor != null) {
+			bulkProcessor.close();
+		}
+
+		// Pending checkpoints are still written
+		if (checkpointExecutor != null) {
+			checkpointExecutor.shutdown();
+		}
+
+		release();
+	}
+
+	/**
+	 * Close the transports and give back what we got from node services
+	 */
+	private void release() {
+		if (transport != null) {
+			transport.close();
+		}
+		if (asyncTransport != null && asyncTransport != transport) {
+			asyncTransport.close();
+		}
+
+		for (String appkey : throttledApps) {
+			throttlers.release(appkey);
 		}
+		throttledApps.clear();
+
+		metricsService.unregister(metrics);
 	}
 
     /**
@@ -255,80 +610,365 @@ public class DropboxRiver extends AbstractRiverComponent implements River {
 		if (logger.isTraceEnabled()) logger.trace("/pushMapping("+index+","+type+")");
 	}
 
+	/**
+	 * Add fields to an existing mapping. Fields already mapped another way are left as they are.
+	 */
+	private void mergeMapping(String index, String type, XContentBuilder xcontent) {
+		try {
+			client.admin().indices().preparePutMapping(index).setType(type).setSource(xcontent).execute().actionGet();
+		} catch (Exception e) {
+			logger.warn("can not update mapping for [{}/{}] : {}. Reindex your files to store [{}] and [{}].",
+					index, type, e.getMessage(), DropBoxRiverUtil.DOC_FIELD_REV, DropBoxRiverUtil.DOC_FIELD_BYTES);
+		}
+	}
+
 	
 	
 	
+	/**
+	 * What a bulk action belongs to: the account and the delta page which sent it and the memory it holds
+	 */
+	private static class BulkPayload {
+		private final DropBoxParser parser;
+		private final CheckpointTracker.Page page;
+		private final long reserved;
+
+		private BulkPayload(DropBoxParser parser, CheckpointTracker.Page page, long reserved) {
+			this.parser = parser;
+			this.page = page;
+			this.reserved = reserved;
+		}
+	}
+
+	/**
+	 * Feed account statistics with bulk results
+	 */
+	private class BulkListener implements BulkProcessor.Listener {
+		/**
+		 * When running bulks started, in nanoseconds
+		 */
+		private final ConcurrentMap<Long, Long> startTimes = ConcurrentCollections.newConcurrentMap();
+
+		@Override
+		public void beforeBulk(long executionId, BulkRequest request) {
+			if (logger.isDebugEnabled())
+				logger.debug("Going to execute new bulk composed of {} actions", request.numberOfActions());
+			startTimes.put(executionId, System.nanoTime());
+		}
+
+		@Override
+		public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+			if (logger.isDebugEnabled())
+				logger.debug("Executed bulk composed of {} actions", request.numberOfActions());
+
+			if (response.hasFailures()) {
+				logger.warn("Failed to execute " + response.buildFailureMessage());
+			}
+
+			int failures = 0;
+			for (BulkItemResponse item : response.getItems()) {
+				if (item.isFailed()) failures++;
+				done(request, item.getItemId(), item.isFailed(), item.isFailed() && isRetryable(item.getFailureMessage()));
+			}
+			record(executionId, request, failures);
+		}
+
+		@Override
+		public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+			logger.warn("Error executing bulk", failure);
+			for (int i = 0; i < request.numberOfActions(); i++) {
+				done(request, i, true, true);
+			}
+			record(executionId, request, request.numberOfActions());
+		}
+
+		private void record(long executionId, BulkRequest request, int failures) {
+			Long start = startTimes.remove(executionId);
+			long time = start == null ? 0 : System.nanoTime() - start;
+			RiverMetrics.PhaseMetrics bulk = metrics.phase(Phase.BULK);
+			bulk.record(request.numberOfActions(), request.estimatedSizeInBytes(), time);
+			if (failures > 0) bulk.failed(failures);
+		}
+
+		/**
+		 * Documents are now out of our hands: give their memory back and tell their account
+		 */
+		private void done(BulkRequest request, int itemId, boolean failed, boolean retry) {
+			if (request.payloads() == null) return;
+			Object payload = request.payloads().get(itemId);
+			if (payload instanceof BulkPayload) {
+				BulkPayload bulkPayload = (BulkPayload) payload;
+				memoryBudget.release(bulkPayload.reserved);
+				bulkPayload.parser.onBulkItem(bulkPayload.page, failed, retry);
+			}
+		}
+	}
+
+	/**
+	 * Elasticsearch only gives us the message of a failed bulk item
+	 * @param failure Failure message of a bulk item
+	 * @return true if the cluster could not take the document now, false if it will never accept it
+	 */
+	private static boolean isRetryable(String failure) {
+		if (failure == null) return false;
+		for (String exception : RETRYABLE_BULK_FAILURES) {
+			if (failure.contains(exception)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param e Why a file could not be indexed
+	 * @return true if Dropbox throttled us or could not be read, even after resuming the download
+	 */
+	private static boolean isDownloadFailure(Throwable e) {
+		if (e instanceof DropboxThrottledException || e instanceof IOException) return true;
+		// Connectors wrap what the transport could not read
+		return e instanceof RuntimeException && e.getCause() instanceof IOException;
+	}
+
+	/**
+	 * @param item What elasticsearch knows about a file
+	 * @param meta What Dropbox knows about it
+	 * @return true if the file is indexed with the same revision and size
+	 */
+	private static boolean isUnchanged(MultiGetItemResponse item, DropboxEntry meta) {
+		if (item.isFailed() || !item.getResponse().isExists() || meta.rev == null) return false;
+		GetField rev = item.getResponse().getField(DropBoxRiverUtil.DOC_FIELD_REV);
+		GetField bytes = item.getResponse().getField(DropBoxRiverUtil.DOC_FIELD_BYTES);
+		return rev != null && meta.rev.equals(rev.getValue())
+				&& bytes != null && bytes.getValue() instanceof Number && ((Number) bytes.getValue()).longValue() == meta.bytes;
+	}
+
+	/**
+	 * A file to index in a feed
+	 */
+	private static class Candidate {
+		private final DropBoxRiverFeedDefinition feed;
+		private final DropboxFile file;
+
+		private Candidate(DropBoxRiverFeedDefinition feed, DropboxFile file) {
+			this.feed = feed;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Synchronize a Dropbox account. Each run is a full scan of the account changes,
+	 * then the parser schedules itself for the next run.
+	 */
 	private class DropBoxParser implements Runnable {
 		
-		private BulkRequestBuilder bulk;
-		private ScanStatistic stats;
+		private final String name;
+		private final DropBoxRiverFeedDefinition fsDefinition;
+		private final List<DropBoxRiverFeedDefinition> feeds;
+		private final DropboxConnector dropbox;
+		private final String cursorField;
+		private final String statisticsField;
+
+		private final AccountStatistics statistics;
+
+		/**
+		 * True once lifetime statistics saved by a previous run have been read
+		 */
+		private boolean restored = false;
+
+		/**
+		 * Delta pages waiting for their documents to be acknowledged
+		 */
+		private volatile CheckpointTracker checkpoints;
+
+		/**
+		 * True while a checkpoint write is waiting for the checkpoint thread
+		 */
+		private final AtomicBoolean checkpointScheduled = new AtomicBoolean(false);
+		private volatile Future<?> checkpointWrite;
+
+		/**
+		 * Bounds the number of files waiting for a download worker, or being downloaded
+		 * by the asynchronous transport, so the parser does not run too far ahead of the downloads.
+		 */
+		private final Semaphore downloadPermits;
+
+		public DropBoxParser(String name, DropBoxRiverFeedDefinition fsDefinition, List<DropBoxRiverFeedDefinition> feeds,
+				DropboxConnector dropbox, String cursorField, String statisticsField) {
+			this.name = name;
+			this.fsDefinition = fsDefinition;
+			this.feeds = feeds;
+			this.dropbox = dropbox;
+			this.cursorField = cursorField;
+			this.statisticsField = statisticsField;
+			this.statistics = metrics.account(name);
+			this.downloadPermits = new Semaphore(asyncDownloads > 0 ? asyncDownloads : fsDefinition.getConcurrency() * 2);
+			dropbox.setRetryListener(new DropboxConnector.RetryListener() {
+				@Override
+				public void onRetry(DropboxRequest request, int code, long delay) {
+					statistics.increment(Counter.RETRIES);
+				}
+			});
 
-		public DropBoxParser() {
 			if (logger.isInfoEnabled())
 				logger.info("creating dropbox river [{}] for [{}] every [{}] ms",
-						fsDefinition.getFeedname(), fsDefinition.getUrl(), fsDefinition.getUpdateRate());
+						name, fsDefinition.getUrl(), fsDefinition.getUpdateRate());
 		}
 
 		@Override
 		public void run() {
-			while (true) {
-				if (closed) {
-					return;
-				}
+			if (closed) {
+				return;
+			}
 
-				try {
-					stats = new ScanStatistic(fsDefinition.getUrl());
+			long delay = fsDefinition.getUpdateRate();
+			String cursor = null;
+			if (!restored) restoreStatistics();
+			statistics.startCycle();
+			try {
+				cursor = getCursorFromRiver(cursorField);
 
-					String rootPathId = SignTool.sign(fsDefinition.getUrl());
-					stats.setRootPathId(rootPathId);
+				// Cursor is saved as soon as every document of a page is acknowledged
+				checkpoints = new CheckpointTracker(cursor, new CheckpointTracker.Listener() {
+					@Override
+					public void onCheckpoint() {
+						scheduleCheckpoint();
+					}
+				});
+				cursor = scan(cursor);
+			} catch (Exception e) {
+				cursor = null;
+				logger.warn("Error while indexing content from {} for {}", fsDefinition.getUrl(), name);
+				if (logger.isDebugEnabled())
+					logger.debug("Exception for {} is {}", fsDefinition.getUrl(), e);
+			}
+			saveCycle(statistics.endCycle());
 
-					bulk = client.prepareBulk();
+			// Dropbox holds longpoll calls at least 30s: polling /delta is faster with a lower update_rate
+			if (fsDefinition.isLongpoll() && cursor != null && delay >= DropboxConnector.LONGPOLL_MIN_TIMEOUT * 1000L) {
+				waitForChanges(cursor);
+				delay = 0;
+			}
 
-					String lastupdateField = "_cursor";
-					String cursor = getCursorFromRiver(lastupdateField);
+			schedule(delay);
+		}
 
-					cursor = scan(fsDefinition.getUrl(), cursor);
+		/**
+		 * Lifetime statistics continue from what the previous run saved with the cursor
+		 */
+		@SuppressWarnings("unchecked")
+		private void restoreStatistics() {
+			try {
+				Object lifetime = stateStore.get(cursorField).get("lifetime");
+				if (lifetime instanceof Map) statistics.restore((Map<String, Object>) lifetime);
+				restored = true;
+			} catch (Exception e) {
+				logger.warn("Can not read statistics of {}: {}", name, e.getMessage());
+			}
+		}
 
-					updateFsRiver(lastupdateField, cursor);
+		/**
+		 * Keep the statistics of a cycle in _river. We keep stats_history cycles, the older ones are overwritten.
+		 * @param cycle Cycle statistics
+		 */
+		private void saveCycle(AccountStatistics.Snapshot cycle) {
+			if (logger.isDebugEnabled())
+				logger.debug("cycle {} of {}: {} files, {} bytes, {} deleted, {} skipped, {} failures in {} ms", cycle.getCycle(), name,
+						cycle.get(Counter.FILES), cycle.get(Counter.BYTES), cycle.get(Counter.DELETED),
+						cycle.get(Counter.SKIPPED), cycle.get(Counter.FAILURES), cycle.getEnd() - cycle.getStart());
+			if (statsHistory <= 0 || closed) return;
 
-					// If some bulkActions remains, we should commit them
-					commitBulk();
+			try {
+				XContentBuilder xb = jsonBuilder().startObject().startObject("statistics");
+				xb.field("account", name);
+				cycle.toXContent(xb, ToXContent.EMPTY_PARAMS);
+				xb.endObject().endObject();
+				client.prepareIndex("_river", riverName.name(), statisticsField + "_" + (cycle.getCycle() % statsHistory))
+						.setSource(xb).execute().actionGet();
+			} catch (Exception e) {
+				logger.warn("Can not save statistics of {}: {}", name, e.getMessage());
+			}
+		}
 
-				} catch (Exception e) {
-					logger.warn("Error while indexing content from {}", fsDefinition.getUrl());
-					if (logger.isDebugEnabled())
-						logger.debug("Exception for {} is {}", fsDefinition.getUrl(), e);
-				}
+		/**
+		 * Run again later
+		 * @param delay in ms
+		 */
+		private void schedule(long delay) {
+			if (closed) return;
+			try {
+				if (logger.isDebugEnabled())
+					logger.debug("Fs river is going to sleep for {} ms for {}", delay, name);
+				syncExecutor.schedule(this, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// We are closing the river
+			}
+		}
 
-				try {
+		private void sleep(long duration) {
+			try {
+				if (logger.isDebugEnabled())
+					logger.debug("Fs river is going to sleep for {} ms", duration);
+				Thread.sleep(duration);
+			} catch (InterruptedException e1) {
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		/**
+		 * Block until Dropbox tells us that something changed after this cursor.
+		 * We never wait more than updateRate ms so a scan is done at least every updateRate ms.
+		 * If Dropbox can not notify us, we simply wait until updateRate is reached.
+		 * @param cursor Last cursor
+		 */
+		private void waitForChanges(String cursor) {
+			long deadline = System.currentTimeMillis() + fsDefinition.getUpdateRate();
+
+			try {
+				while (!closed) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) return;
+
+					int timeout = (int) Math.min(fsDefinition.getLongpollTimeout(), remaining / 1000);
 					if (logger.isDebugEnabled())
-						logger.debug("Fs river is going to sleep for {} ms",
-								fsDefinition.getUpdateRate());
-					Thread.sleep(fsDefinition.getUpdateRate());
-				} catch (InterruptedException e1) {
+						logger.debug("waiting up to {} seconds for dropbox changes", timeout);
+
+					DropboxDeltaNotification notification = dropbox.longpollDelta(cursor, timeout);
+					if (notification.isChanges()) {
+						if (logger.isDebugEnabled()) logger.debug("dropbox has new changes for us");
+						return;
+					}
+
+					if (notification.getBackoff() > 0) {
+						long backoff = Math.min(notification.getBackoff() * 1000, deadline - System.currentTimeMillis());
+						if (backoff > 0) Thread.sleep(backoff);
+					}
 				}
+			} catch (InterruptedException e) {
+				// We are closing the river
+			} catch (Exception e) {
+				logger.warn("Can not wait for dropbox changes: {}. Falling back to update_rate.", e.getMessage());
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining > 0) sleep(remaining);
 			}
 		}
 
-		@SuppressWarnings("unchecked")
 		private String getCursorFromRiver(String lastupdateField) {
 			String cursor = null;
 			try {
-				// Do something
-				client.admin().indices().prepareRefresh("_river").execute()
-						.actionGet();
-				GetResponse lastSeqGetResponse = client
-						.prepareGet("_river", riverName().name(),
-								lastupdateField).execute().actionGet();
-				if (lastSeqGetResponse.isExists()) {
-					Map<String, Object> fsState = (Map<String, Object>) lastSeqGetResponse
-							.getSourceAsMap().get("dropbox");
-
-					if (fsState != null) {
-						Object lastupdate = fsState.get("cursor");
-						if (lastupdate != null) {
-							cursor = lastupdate.toString();
-						}
+				// Realtime GET of the version only, unless someone changed it: no need to refresh _river
+				RiverStateStore.State state = stateStore.revalidate(lastupdateField);
+				if (state.exists()) {
+					cursor = state.getCursor();
+
+					// A cursor is only valid for the path prefix it was built with
+					String pathPrefix = state.getPathPrefix();
+					String currentPrefix = fsDefinition.getPathPrefix();
+					boolean samePrefix = currentPrefix == null ? pathPrefix == null : currentPrefix.equals(pathPrefix);
+					if (cursor != null && !samePrefix) {
+						logger.info("dropbox url changed from [{}] to [{}]. Starting a new scan.", pathPrefix, currentPrefix);
+						cursor = null;
 					}
 				} else {
 					// First call
@@ -337,6 +977,7 @@ public class DropboxRiver extends AbstractRiverComponent implements River {
 				}
 			} catch (Exception e) {
 				logger.warn("failed to get _cursor, throttling....", e);
+				stateStore.invalidate(lastupdateField);
 			}
 
 			if (logger.isDebugEnabled())
@@ -352,148 +993,485 @@ public class DropboxRiver extends AbstractRiverComponent implements River {
 				logger.debug("updating cursor: {}", cursor);
 
 			// We store the lastupdate date and some stats
-			XContentBuilder xb = jsonBuilder()
-				.startObject()
-					.startObject("dropbox")
-						.field("feedname", fsDefinition.getFeedname())
-						.field("cursor", cursor)
-						.field("docadded", stats.getNbDocScan())
-						.field("docdeleted", stats.getNbDocDeleted())
-					.endObject()
-				.endObject();
-			esIndex("_river", riverName.name(), lastupdateField, xb);
+			Map<String, Object> state = new LinkedHashMap<String, Object>();
+			state.put("feedname", fsDefinition.getFeedname());
+			state.put("cursor", cursor);
+			state.put("path_prefix", fsDefinition.getPathPrefix());
+			AccountStatistics.Snapshot cycle = statistics.cycle();
+			state.put("docadded", cycle.get(Counter.FILES));
+			state.put("docdeleted", cycle.get(Counter.DELETED));
+			state.put("bulksucceeded", cycle.get(Counter.BULK_SUCCEEDED));
+			state.put("bulkfailed", cycle.get(Counter.BULK_FAILED));
+			state.put("lifetime", statistics.toLifetimeMap());
+
+			if (!stateStore.put(lastupdateField, state)) {
+				logger.warn("{} has been modified in _river for {}. It will be read again on next scan.", lastupdateField, name);
+			}
 		}
 
 		/**
-		 * Commit to ES if something is in queue
+		 * Called by the bulk listener for every action of this account
+		 * @param page Delta page of the action
+		 * @param failed true if elasticsearch rejected the action
+		 * @param retry true if elasticsearch may accept the action later
+		 */
+		private void onBulkItem(CheckpointTracker.Page page, boolean failed, boolean retry) {
+			statistics.increment(failed ? Counter.BULK_FAILED : Counter.BULK_SUCCEEDED);
+			if (page == null) return;
+			// Documents rejected for now are not lost: the checkpoint stays before their page.
+			// Documents which can never be indexed are acknowledged, or we would read their page forever.
+			if (retry) page.fail();
+			page.done();
+		}
+
+		/**
+		 * Write the checkpoint in background. Many checkpoints coming together are written once.
+		 */
+		private void scheduleCheckpoint() {
+			if (!checkpointScheduled.compareAndSet(false, true)) return;
+			final CheckpointTracker tracker = checkpoints;
+			try {
+				checkpointWrite = checkpointExecutor.submit(new Runnable() {
+					@Override
+					public void run() {
+						// Checkpoints coming from now will be written by a new task
+						checkpointScheduled.set(false);
+						try {
+							updateFsRiver(cursorField, tracker.getCheckpoint());
+						} catch (Exception e) {
+							logger.warn("Can not save cursor for {}: {}", name, e.getMessage());
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// We are closing the river
+				checkpointScheduled.set(false);
+			}
+		}
+
+		/**
+		 * Wait until every dispatched page is acknowledged and its cursor saved.
+		 * <br>Remaining actions are sent at least every flush_interval.
 		 * 
 		 * @throws Exception
 		 */
-		private void commitBulk() throws Exception {
-			if (bulk != null && bulk.numberOfActions() > 0) {
-				if (logger.isDebugEnabled()) logger.debug("ES Bulk Commit is needed");
-				BulkResponse response = bulk.execute().actionGet();
-				if (response.hasFailures()) {
-					logger.warn("Failed to execute "
-							+ response.buildFailureMessage());
-				}
+		private void awaitCheckpoints() throws Exception {
+			while (!checkpoints.awaitAll(1000)) {
+				if (closed) throw new InterruptedException("River is closing");
+				if (logger.isTraceEnabled()) logger.trace("waiting for {} delta pages", checkpoints.getPendingPages());
 			}
+			Future<?> write = checkpointWrite;
+			if (write != null) write.get();
 		}
 
 		/**
-		 * Commit to ES if we have too much in bulk
+		 * Read Dropbox changes page by page. While a page is indexed, the next ones are fetched and indexed too:
+		 * we never wait for elasticsearch between two pages.
+		 * The page cursor is saved once all its documents have been acknowledged by elasticsearch.
 		 * 
+		 * @param cursor Last saved cursor
+		 * @return The last cursor, null if some files must be read again by the next scan
 		 * @throws Exception
 		 */
-		private void commitBulkIfNeeded() throws Exception {
-			if (bulk != null && bulk.numberOfActions() > 0 && bulk.numberOfActions() >= bulkSize) {
-				if (logger.isDebugEnabled()) logger.debug("ES Bulk Commit is needed");
-				
-				BulkResponse response = bulk.execute().actionGet();
-				if (response.hasFailures()) {
-					logger.warn("Failed to execute "
-							+ response.buildFailureMessage());
+		private String scan(String cursor) throws Exception {
+			Future<DropboxChanges> nextPage = fetchDeltaPage(cursor);
+
+			while (nextPage != null) {
+				CheckpointTracker.Page checkpoint = null;
+				try {
+					DropboxChanges page = nextPage.get();
+
+					// We fetch the next page while indexing this one
+					nextPage = page.isHasMore() ? fetchDeltaPage(page.getCursor()) : null;
+
+					checkpoint = checkpoints.open(page.getCursor());
+					scanPage(page, checkpoint);
+					checkpoint.seal();
+					cursor = page.getCursor();
+				} catch (Exception e) {
+					if (nextPage != null) nextPage.cancel(true);
+					// Previous pages can still be saved
+					if (checkpoint != null) checkpoints.abandon(checkpoint);
+					awaitCheckpoints();
+					throw e;
 				}
-				
-				// Reinit a new bulk
-				bulk = client.prepareBulk();
 			}
+
+			// Next scan starts from the saved cursor
+			awaitCheckpoints();
+
+			if (checkpoints.isStuck()) {
+				logger.warn("Some files of {} could not be downloaded or indexed. They will be read again on next scan.", name);
+				return null;
+			}
+			return cursor;
 		}
 
-		private String scan(String path, String cursor) throws Exception {
+		/**
+		 * Ask for a delta page in background
+		 * @param cursor
+		 * @return the page to come
+		 */
+		private Future<DropboxChanges> fetchDeltaPage(final String cursor) {
+			return workerPool.submit(this, new Callable<DropboxChanges>() {
+				@Override
+				public DropboxChanges call() throws Exception {
+					DropboxChanges changes;
+					try {
+						changes = dropbox.getDeltaPage(cursor, fsDefinition.getPathPrefix());
+					} catch (RuntimeException e) {
+						metrics.phase(Phase.DELTA).failed(1);
+						throw e;
+					}
+					metrics.phase(Phase.DELTA).record(0, 0, changes.getRequestTime());
+					metrics.phase(Phase.PARSE).record(changes.getEntries(), 0, changes.getParseTime());
+					return changes;
+				}
+			});
+		}
 
-			DropboxChanges changes = dropbox.getDelta(cursor);
+		/**
+		 * Dispatch the changes of a page to every feed they match. We don't wait for downloads:
+		 * the page checkpoint knows when all of them are indexed.
+		 * @param changes Changes of this page
+		 * @param checkpoint Checkpoint of this page
+		 * @throws Exception
+		 */
+		private void scanPage(DropboxChanges changes, CheckpointTracker.Page checkpoint) throws Exception {
+			Set<String> targets = new HashSet<String>();
+			List<DropBoxRiverFeedDefinition> matches = new ArrayList<DropBoxRiverFeedDefinition>();
+			List<Candidate> candidates = new ArrayList<Candidate>();
+			long filterTime = 0;
 
 			for (DropboxFile dropboxFile : changes.getFiles()) {
-				if (dropboxFile.getFilename().startsWith(path)) {
-					if (dropboxFile.getMeta() != null
-							&& !dropboxFile.getMeta().isDir) {
-						if (dropboxFile.getMeta().isDeleted) {
-							if (DropBoxRiverUtil.isIndexable(
-									dropboxFile.getFilename(),
-									fsDefinition.getIncludes(),
-									fsDefinition.getExcludes())) {
-								esDelete(indexName, typeName,
-										SignTool.sign(dropboxFile.getFilename()));
-								stats.removeFile();
-							}
-						} else {
-							if (DropBoxRiverUtil.isIndexable(
-									dropboxFile.getFilename(),
-									fsDefinition.getIncludes(),
-									fsDefinition.getExcludes())) {
-								indexFile(stats, dropboxFile);
-								stats.addFile();
-							}
-						}
-					}					
+				if (dropboxFile.getMeta() == null || dropboxFile.getMeta().isDir) continue;
+
+				String filename = dropboxFile.getFilename();
+				long start = System.nanoTime();
+				targets.clear();
+				matches.clear();
+				for (DropBoxRiverFeedDefinition feed : feeds) {
+					if (!DropBoxRiverUtil.isInPath(filename, feed.getUrl()) || !feed.isIndexable(filename)) continue;
+
+					// Feeds sharing the same index and type get the document only once
+					if (targets.add(indexOf(feed) + "/" + typeOf(feed))) matches.add(feed);
+				}
+				filterTime += System.nanoTime() - start;
+
+				if (matches.isEmpty()) statistics.increment(Counter.SKIPPED);
+				for (DropBoxRiverFeedDefinition feed : matches) {
+					if (dropboxFile.getMeta().isDeleted) {
+						esDelete(indexOf(feed), typeOf(feed), idStrategy.id(filename), checkpoint);
+						statistics.increment(Counter.DELETED);
+					} else {
+						candidates.add(new Candidate(feed, dropboxFile));
+					}
 				}
 			}
 
-			return changes.getCursor();
+			metrics.phase(Phase.FILTER).record(changes.getFiles().size(), 0, filterTime);
+
+			if (skipUnchanged) candidates = changedFiles(candidates);
+			for (Candidate candidate : candidates) {
+				submitIndexFile(candidate.feed, candidate.file, checkpoint);
+			}
+		}
+
+		/**
+		 * Ask elasticsearch which files are already indexed with the same revision, one multi-get per batch.
+		 * When elasticsearch can not tell, files are downloaded.
+		 * @param candidates Files to index
+		 * @return the files we have to download
+		 */
+		private List<Candidate> changedFiles(List<Candidate> candidates) {
+			List<Candidate> changed = new ArrayList<Candidate>(candidates.size());
+			for (int from = 0; from < candidates.size(); from += CHECK_BATCH_SIZE) {
+				List<Candidate> batch = candidates.subList(from, Math.min(candidates.size(), from + CHECK_BATCH_SIZE));
+				long start = System.nanoTime();
+				MultiGetItemResponse[] items;
+				try {
+					MultiGetRequestBuilder request = client.prepareMultiGet();
+					for (Candidate candidate : batch) {
+						request.add(new MultiGetRequest.Item(indexOf(candidate.feed), typeOf(candidate.feed),
+								idStrategy.id(candidate.file.getFilename()))
+								.fields(DropBoxRiverUtil.DOC_FIELD_REV, DropBoxRiverUtil.DOC_FIELD_BYTES));
+					}
+					items = request.execute().actionGet().getResponses();
+				} catch (Exception e) {
+					metrics.phase(Phase.CHECK).failed(1);
+					logger.warn("Can not check which files of {} are already indexed: {}", name, e.getMessage());
+					changed.addAll(batch);
+					continue;
+				}
+
+				for (int i = 0; i < batch.size(); i++) {
+					if (isUnchanged(items[i], batch.get(i).file.getMeta())) {
+						statistics.increment(Counter.UNCHANGED);
+					} else {
+						changed.add(batch.get(i));
+					}
+				}
+				metrics.phase(Phase.CHECK).record(batch.size(), 0, System.nanoTime() - start);
+			}
+			return changed;
+		}
+
+		/**
+		 * Send a file to the download workers. Blocks when too many files are
+		 * already waiting for a worker.
+		 * 
+		 * @param feed
+		 * @param dropboxFile
+		 * @param checkpoint Checkpoint of the file delta page
+		 * @throws InterruptedException
+		 */
+		private void submitIndexFile(final DropBoxRiverFeedDefinition feed,
+				final DropboxFile dropboxFile, final CheckpointTracker.Page checkpoint) throws InterruptedException {
+			if (asyncDownloads > 0 && dropboxFile.getMeta().bytes <= ASYNC_MAX_FILE_SIZE.bytes()) {
+				downloadAsync(feed, dropboxFile, checkpoint);
+				return;
+			}
+
+			downloadPermits.acquire();
+			checkpoint.add();
+			try {
+				workerPool.submit(this, new Runnable() {
+					@Override
+					public void run() {
+						try {
+							indexFile(feed, dropboxFile, checkpoint);
+						} catch (Exception e) {
+							logger.warn("Can not index " + dropboxFile.getFilename() + " : " + e.getMessage());
+						} finally {
+							downloadPermits.release();
+							checkpoint.done();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				downloadPermits.release();
+				checkpoint.done();
+				throw e;
+			}
+		}
+
+		/**
+		 * Start the download of a file with the asynchronous transport. Once downloaded,
+		 * the file is encoded and sent to the bulk by a worker: event loops only move bytes.
+		 * <br>Blocks when async_downloads files are already in flight or when memory is short.
+		 * 
+		 * @param feed
+		 * @param dropboxFile
+		 * @param checkpoint Checkpoint of the file delta page
+		 * @throws InterruptedException
+		 */
+		private void downloadAsync(final DropBoxRiverFeedDefinition feed,
+				final DropboxFile dropboxFile, final CheckpointTracker.Page checkpoint) throws InterruptedException {
+			// The raw content stays in memory until it is encoded
+			final long size = dropboxFile.getMeta().bytes;
+			final long reserved = MemoryBudget.estimateBase64Size(size) + size;
+
+			downloadPermits.acquire();
+			try {
+				memoryBudget.acquire(reserved);
+			} catch (InterruptedException e) {
+				downloadPermits.release();
+				throw e;
+			}
+			checkpoint.add();
+
+			final long start = System.nanoTime();
+			final ListenableFuture<DropboxInputStream> download;
+			try {
+				download = dropbox.getFileAsync("dropbox", dropboxFile.getFilename());
+			} catch (RuntimeException e) {
+				memoryBudget.release(reserved);
+				downloadPermits.release();
+				checkpoint.done();
+				throw e;
+			}
+
+			download.addListener(new Runnable() {
+				@Override
+				public void run() {
+					final long downloadTime = System.nanoTime() - start;
+					try {
+						workerPool.submit(DropBoxParser.this, new Runnable() {
+							@Override
+							public void run() {
+								try {
+									indexDownloaded(feed, dropboxFile, checkpoint, download, downloadTime, reserved);
+								} finally {
+									downloadPermits.release();
+									checkpoint.done();
+								}
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						// We are closing the river
+						memoryBudget.release(reserved);
+						downloadPermits.release();
+						checkpoint.done();
+					}
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		}
+
+		/**
+		 * Index a file downloaded by the asynchronous transport
+		 * 
+		 * @param feed
+		 * @param dropboxFile
+		 * @param checkpoint Checkpoint of the file delta page
+		 * @param download Completed download
+		 * @param downloadTime Time spent downloading in nanoseconds
+		 * @param reserved Memory reserved for the raw and the encoded content
+		 */
+		private void indexDownloaded(DropBoxRiverFeedDefinition feed, DropboxFile dropboxFile, CheckpointTracker.Page checkpoint,
+				ListenableFuture<DropboxInputStream> download, long downloadTime, long reserved) {
+			Phase phase = Phase.DOWNLOAD;
+			try {
+				DropboxInputStream file = download.get();
+				phase = Phase.ENCODE;
+				long start = System.nanoTime();
+				XContentBuilder xb = buildDocument(feed, dropboxFile, file);
+				long encodeTime = System.nanoTime() - start;
+
+				// The raw content is not needed anymore
+				memoryBudget.release(dropboxFile.getMeta().bytes);
+				reserved -= dropboxFile.getMeta().bytes;
+
+				metrics.phase(Phase.DOWNLOAD).record(1, file.getTotalRead(), downloadTime);
+				metrics.phase(Phase.ENCODE).record(1, xb.bytes().length(), encodeTime);
+				phase = Phase.BULK;
+
+				esIndex(indexOf(feed),
+						typeOf(feed),
+						idStrategy.id(dropboxFile.getFilename()),
+						xb, reserved, checkpoint);
+				reserved = 0;
+				statistics.increment(Counter.FILES);
+				statistics.add(Counter.BYTES, file.getTotalRead());
+
+				if (logger.isDebugEnabled()) logger.debug("Index " + dropboxFile.getFilename() + " : success");
+			} catch (Exception e) {
+				metrics.phase(phase).failed(1);
+				statistics.increment(Counter.FAILURES);
+				Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+				// Files we could not download now are not lost: the checkpoint stays before their page
+				if (isDownloadFailure(cause)) checkpoint.fail();
+				logger.warn("Can not index " + dropboxFile.getFilename() + " : " + cause.getMessage());
+			} finally {
+				memoryBudget.release(reserved);
+			}
 		}
 
 		/**
 		 * Index a file
 		 * 
-		 * @param stats
+		 * @param feed
 		 * @param dropboxFile
+		 * @param checkpoint Checkpoint of the file delta page
 		 * @throws Exception
 		 */
-		private void indexFile(ScanStatistic stats, DropboxFile dropboxFile) throws Exception {
+		private void indexFile(DropBoxRiverFeedDefinition feed, DropboxFile dropboxFile,
+				CheckpointTracker.Page checkpoint) throws Exception {
 			if (logger.isDebugEnabled()) logger.debug("Trying to index " + dropboxFile.getFilename());
 			
+			// Downloads wait here while too much content is waiting to be indexed
+			long reserved = MemoryBudget.estimateBase64Size(dropboxFile.getMeta().bytes);
+			memoryBudget.acquire(reserved);
+
+			Phase phase = Phase.DOWNLOAD;
 			try {
-				byte[] file = dropbox.getFiles("dropbox", dropboxFile.getFilename());
-				
-				esIndex(indexName,
-						typeName,
-						SignTool.sign(dropboxFile.getFilename()),
-						jsonBuilder()
-								.startObject()
-								.field(DropBoxRiverUtil.DOC_FIELD_NAME, dropboxFile.getFilename())
-								.field(DropBoxRiverUtil.DOC_FIELD_DATE,	convertToEsDate(dropboxFile.getMeta().modified))
-								.field(DropBoxRiverUtil.DOC_FIELD_PATH_ENCODED,	SignTool.sign(dropboxFile.getMeta().path))
-								.field(DropBoxRiverUtil.DOC_FIELD_ROOT_PATH, stats.getRootPathId())
-								.startObject("file").field("_name", dropboxFile.getFilename())
-								.field("content", Base64.encodeBytes(file))
-								.endObject().endObject());
+				// Content is encoded chunk by chunk from the network right into the document
+				long start = System.nanoTime();
+				DropboxInputStream file = dropbox.getFileStream("dropbox", dropboxFile.getFilename(), dropboxFile.getMeta());
+				long opened = System.nanoTime();
+				XContentBuilder xb;
+				try {
+					xb = buildDocument(feed, dropboxFile, file);
+				} finally {
+					file.close();
+				}
+
+				// Time spent waiting for Dropbox is not encoding time
+				long encodeTime = System.nanoTime() - opened - file.getReadTime();
+				metrics.phase(Phase.DOWNLOAD).record(1, file.getTotalRead(), opened - start + file.getReadTime());
+				metrics.phase(Phase.ENCODE).record(1, xb.bytes().length(), encodeTime);
+				phase = Phase.BULK;
+
+				// Memory is released once the bulk is done
+				esIndex(indexOf(feed),
+						typeOf(feed),
+						idStrategy.id(dropboxFile.getFilename()),
+						xb, reserved, checkpoint);
+				reserved = 0;
+				statistics.increment(Counter.FILES);
+				statistics.add(Counter.BYTES, file.getTotalRead());
 				
 				if (logger.isDebugEnabled()) logger.debug("Index " + dropboxFile.getFilename() + " : success");
-				if (logger.isTraceEnabled()) logger.trace("   - " + dropboxFile.getFilename() + " was " + file.length + " bytes");
+				if (logger.isTraceEnabled()) logger.trace("   - " + dropboxFile.getFilename() + " was " + file.getTotalRead() + " bytes");
 
 			} catch (Exception e) {
+				metrics.phase(phase).failed(1);
+				statistics.increment(Counter.FAILURES);
+				// Files we could not download now are not lost: the checkpoint stays before their page
+				if (isDownloadFailure(e)) checkpoint.fail();
 				logger.warn("Can not index " + dropboxFile.getFilename() + " : " + e.getMessage());
+			} finally {
+				memoryBudget.release(reserved);
 			}
 
 		}
 		
+		/**
+		 * Build the document of a file. Content is base64 encoded while it is read.
+		 */
+		private XContentBuilder buildDocument(DropBoxRiverFeedDefinition feed, DropboxFile dropboxFile,
+				DropboxInputStream file) throws IOException {
+			return jsonBuilder()
+					.startObject()
+					.field(DropBoxRiverUtil.DOC_FIELD_NAME, dropboxFile.getFilename())
+					.field(DropBoxRiverUtil.DOC_FIELD_DATE,	convertToEsDate(dropboxFile.getMeta().modified))
+					.field(DropBoxRiverUtil.DOC_FIELD_PATH_ENCODED,	idStrategy.id(dropboxFile.getMeta().path))
+					.field(DropBoxRiverUtil.DOC_FIELD_ROOT_PATH, feed.getRootPathId())
+					.field(DropBoxRiverUtil.DOC_FIELD_REV, dropboxFile.getMeta().rev)
+					.field(DropBoxRiverUtil.DOC_FIELD_BYTES, dropboxFile.getMeta().bytes)
+					.startObject("file").field("_name", dropboxFile.getFilename())
+					.rawField("content", new JsonBase64InputStream(file))
+					.endObject().endObject();
+		}
+
 		private Long convertToEsDate(String date) {
-			try {
-				Date dbdate = dropboxDateFormat.parse(date);
-				return dbdate.getTime();
-			} catch (ParseException e) {
-				logger.warn("Can not parse date {}. Returning null.", date);
-			}
-			return null;
+			Long esDate = DropBoxRiverUtil.convertToEsDate(date);
+			if (esDate == null) logger.warn("Can not parse date {}. Returning null.", date);
+			return esDate;
 		}
 
 		/**
-		 * Add to bulk an IndexRequest
+		 * Add to bulk an IndexRequest holding some reserved memory
 		 * 
 		 * @param index
 		 * @param type
 		 * @param id
 		 * @param xb
+		 * @param reserved Bytes released from the memory budget once the bulk is done
+		 * @param checkpoint Checkpoint of the document delta page
 		 * @throws Exception 
 		 */
 		private void esIndex(String index, String type, String id,
-				XContentBuilder xb) throws Exception {
+				XContentBuilder xb, long reserved, CheckpointTracker.Page checkpoint) throws Exception {
 			if (logger.isDebugEnabled()) logger.debug("Indexing in ES " + index + ", " + type + ", " + id);
 			if (logger.isTraceEnabled()) logger.trace("JSon indexed : {}", xb.string());
 			
-			bulk.add(client.prepareIndex(index, type, id).setSource(xb));
-			commitBulkIfNeeded();
+			checkpoint.add();
+			try {
+				bulkProcessor.add(new IndexRequest(index, type, id).source(xb), new BulkPayload(this, checkpoint, reserved));
+			} catch (RuntimeException e) {
+				checkpoint.done();
+				throw e;
+			}
 		}
 
 		/**
@@ -502,12 +1480,18 @@ public class DropboxRiver extends AbstractRiverComponent implements River {
 		 * @param index
 		 * @param type
 		 * @param id
+		 * @param checkpoint Checkpoint of the document delta page
 		 * @throws Exception 
 		 */
-		private void esDelete(String index, String type, String id) throws Exception {
+		private void esDelete(String index, String type, String id, CheckpointTracker.Page checkpoint) throws Exception {
 			if (logger.isDebugEnabled()) logger.debug("Deleting from ES " + index + ", " + type + ", " + id);
-			bulk.add(client.prepareDelete(index, type, id));
-			commitBulkIfNeeded();
+			checkpoint.add();
+			try {
+				bulkProcessor.add(new DeleteRequest(index, type, id), new BulkPayload(this, checkpoint, 0));
+			} catch (RuntimeException e) {
+				checkpoint.done();
+				throw e;
+			}
 		}
 	}
 	
@@ -0,0 +1,87 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.river;
+
+/**
+ * Bounds the content held in memory by a river: downloaded files waiting
+ * in the bulk processor or being sent to elasticsearch.
+ * <br>When the budget is exhausted, {@link #acquire(long)} blocks until
+ * enough content has been released. A single file larger than the whole
+ * budget is accepted when nothing else is in memory, so it can not block
+ * the river forever.
+ */
+public class MemoryBudget {
+	private final long limit;
+	private long used = 0;
+
+	/**
+	 * @param limit Maximum number of bytes, <= 0 means unlimited
+	 */
+	public MemoryBudget(long limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * Reserve some bytes. Blocks while the budget is exhausted.
+	 * @param bytes Number of bytes we need
+	 * @throws InterruptedException
+	 */
+	public synchronized void acquire(long bytes) throws InterruptedException {
+		if (limit > 0) {
+			while (used > 0 && used + bytes > limit) {
+				wait();
+			}
+		}
+		used += bytes;
+	}
+
+	/**
+	 * Give back some bytes previously acquired
+	 * @param bytes Number of bytes to release
+	 */
+	public synchronized void release(long bytes) {
+		if (bytes <= 0) return;
+		used = Math.max(0, used - bytes);
+		notifyAll();
+	}
+
+	/**
+	 * @return the number of bytes currently reserved
+	 */
+	public synchronized long getUsed() {
+		return used;
+	}
+
+	/**
+	 * @return the maximum number of bytes, <= 0 means unlimited
+	 */
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Estimate how many bytes a file will need once Base64 encoded in a document
+	 * @param fileSize File size in bytes
+	 * @return Base64 size in bytes
+	 */
+	public static long estimateBase64Size(long fileSize) {
+		return ((Math.max(0, fileSize) + 2) / 3) * 4;
+	}
+}
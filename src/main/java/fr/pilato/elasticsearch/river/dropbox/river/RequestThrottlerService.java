@@ -0,0 +1,92 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package fr.pilato.elasticsearch.river.dropbox.river;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+import fr.pilato.elasticsearch.river.dropbox.connector.RequestThrottler;
+
+/**
+ * Node level registry of the {@link RequestThrottler}s of running Dropbox rivers.
+ * <br>Dropbox limits calls per application: all the rivers of the node using the same
+ * app key share the same throttler. It is forgotten once the last of them is closed.
+ * <br>Node settings:
+ * <ul>
+ * <li><code>dropbox.throttle.max_rate</code>: max number of calls per second and app key
+ * <li><code>dropbox.throttle.min_rate</code>: min number of calls per second and app key
+ * <li><code>dropbox.throttle.max_retries</code>: number of times a throttled call is sent again
+ * </ul>
+ */
+public class RequestThrottlerService extends AbstractComponent {
+
+	private final double maxRate;
+	private final double minRate;
+	private final int maxRetries;
+
+	private final Map<String, Entry> throttlers = new HashMap<String, Entry>();
+
+	@Inject
+	public RequestThrottlerService(Settings settings) {
+		super(settings);
+		this.maxRate = settings.getAsDouble("dropbox.throttle.max_rate", RequestThrottler.DEFAULT_MAX_RATE);
+		this.minRate = settings.getAsDouble("dropbox.throttle.min_rate", RequestThrottler.DEFAULT_MIN_RATE);
+		this.maxRetries = settings.getAsInt("dropbox.throttle.max_retries", RequestThrottler.DEFAULT_MAX_RETRIES);
+	}
+
+	/**
+	 * Get the throttler of an app key. Call {@link #release(String)} when done.
+	 * @param appkey Dropbox app key
+	 * @return the throttler shared by all the users of this app key
+	 */
+	public synchronized RequestThrottler acquire(String appkey) {
+		Entry entry = throttlers.get(appkey);
+		if (entry == null) {
+			entry = new Entry(new RequestThrottler(maxRate, minRate, maxRetries));
+			throttlers.put(appkey, entry);
+			if (logger.isDebugEnabled()) logger.debug("throttling app [{}] up to [{}] calls per second", appkey, maxRate);
+		}
+		entry.users++;
+		return entry.throttler;
+	}
+
+	/**
+	 * A user of an app key does not need its throttler anymore
+	 * @param appkey Dropbox app key
+	 */
+	public synchronized void release(String appkey) {
+		Entry entry = throttlers.get(appkey);
+		if (entry != null && --entry.users <= 0) throttlers.remove(appkey);
+	}
+
+	private static class Entry {
+		private final RequestThrottler throttler;
+		private int users = 0;
+
+		private Entry(RequestThrottler throttler) {
+			this.throttler = throttler;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.river;
+
+import fr.pilato.elasticsearch.river.dropbox.util.LatencyHistogram;
+import fr.pilato.elasticsearch.river.dropbox.util.StripedCounter;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Where a river spends its time. Each phase of the indexing pipeline counts its operations,
+ * the items and bytes they handled, their failures and their latency.
+ * <br>It also holds the {@link AccountStatistics} of every account of the river.
+ * Phase metrics are never reset and live in memory only.
+ */
+public class RiverMetrics implements ToXContent {
+
+	/**
+	 * Indexing pipeline phases
+	 */
+	public static enum Phase {
+		/** Sending a /delta request until Dropbox answers. One operation per page. */
+		DELTA("delta"),
+		/** Reading the entries of a /delta page. One operation per page, one item per entry. */
+		PARSE("parse"),
+		/** Matching entries against feeds includes and excludes. One operation per page, one item per entry. */
+		FILTER("filter"),
+		/** Asking elasticsearch which files are already indexed with the same revision. One operation per multi-get, one item per file. */
+		CHECK("check"),
+		/** Reading a file from Dropbox. One operation per file. */
+		DOWNLOAD("download"),
+		/** Building the document of a file, without the time spent waiting for Dropbox. One operation per file. */
+		ENCODE("encode"),
+		/** Sending documents to elasticsearch. One operation per bulk, one item per document. */
+		BULK("bulk");
+
+		private final String name;
+
+		private Phase(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Metrics of one phase
+	 */
+	public static class PhaseMetrics {
+		private final StripedCounter count = new StripedCounter();
+		private final StripedCounter items = new StripedCounter();
+		private final StripedCounter bytes = new StripedCounter();
+		private final StripedCounter failures = new StripedCounter();
+		private final StripedCounter time = new StripedCounter();
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		/**
+		 * Record a successful operation
+		 * @param items Number of items handled
+		 * @param bytes Number of bytes handled
+		 * @param nanos Duration in nanoseconds
+		 */
+		public void record(long items, long bytes, long nanos) {
+			count.increment();
+			if (items != 0) this.items.add(items);
+			if (bytes != 0) this.bytes.add(bytes);
+			time.add(nanos);
+			latency.record(nanos);
+		}
+
+		/**
+		 * Record failed items
+		 * @param failures Number of failed items
+		 */
+		public void failed(long failures) {
+			this.failures.add(failures);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getItems() {
+			return items.sum();
+		}
+
+		public long getBytes() {
+			return bytes.sum();
+		}
+
+		public long getFailures() {
+			return failures.sum();
+		}
+
+		/**
+		 * @return the total time in nanoseconds
+		 */
+		public long getTime() {
+			return time.sum();
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+	}
+
+	private final String riverName;
+	private final long startTime = System.currentTimeMillis();
+	private final PhaseMetrics[] phases;
+	private final ConcurrentMap<String, AccountStatistics> accounts = ConcurrentCollections.newConcurrentMap();
+
+	public RiverMetrics(String riverName) {
+		this.riverName = riverName;
+		this.phases = new PhaseMetrics[Phase.values().length];
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = new PhaseMetrics();
+		}
+	}
+
+	public String getRiverName() {
+		return riverName;
+	}
+
+	/**
+	 * @param phase Pipeline phase
+	 * @return the metrics of this phase
+	 */
+	public PhaseMetrics phase(Phase phase) {
+		return phases[phase.ordinal()];
+	}
+
+	/**
+	 * @param account Account name
+	 * @return the statistics of this account
+	 */
+	public AccountStatistics account(String account) {
+		AccountStatistics statistics = accounts.get(account);
+		if (statistics == null) {
+			AccountStatistics created = new AccountStatistics(account);
+			statistics = accounts.putIfAbsent(account, created);
+			if (statistics == null) statistics = created;
+		}
+		return statistics;
+	}
+
+	@Override
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+		builder.field("river", riverName);
+		builder.field("started", startTime);
+		builder.startObject("phases");
+		for (Phase phase : Phase.values()) {
+			PhaseMetrics metrics = phase(phase);
+			builder.startObject(phase.getName());
+			builder.field("count", metrics.getCount());
+			builder.field("items", metrics.getItems());
+			builder.field("bytes", metrics.getBytes());
+			builder.field("failures", metrics.getFailures());
+			builder.field("time_in_millis", metrics.getTime() / 1000000);
+
+			LatencyHistogram latency = metrics.getLatency();
+			builder.startObject("latency_in_millis");
+			builder.field("p50", millis(latency.percentile(50)));
+			builder.field("p90", millis(latency.percentile(90)));
+			builder.field("p99", millis(latency.percentile(99)));
+			builder.field("max", millis(latency.getMax()));
+			builder.endObject();
+
+			// Only buckets holding something
+			builder.startArray("histogram");
+			for (int i = 0; i < latency.getBuckets(); i++) {
+				long count = latency.getCount(i);
+				if (count == 0) continue;
+				builder.startObject()
+					.field("lt_millis", LatencyHistogram.upperBound(i) / 1000.0)
+					.field("count", count)
+					.endObject();
+			}
+			builder.endArray();
+			builder.endObject();
+		}
+		builder.endObject();
+
+		builder.startArray("accounts");
+		for (AccountStatistics statistics : accounts.values()) {
+			builder.startObject();
+			statistics.toXContent(builder, params);
+			builder.endObject();
+		}
+		builder.endArray();
+		return builder;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+}
@@ -0,0 +1,260 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.river;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.BaseTransportRequestHandler;
+import org.elasticsearch.transport.BaseTransportResponseHandler;
+import org.elasticsearch.transport.TransportChannel;
+import org.elasticsearch.transport.TransportException;
+import org.elasticsearch.transport.TransportRequest;
+import org.elasticsearch.transport.TransportResponse;
+import org.elasticsearch.transport.TransportService;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Node level registry of the {@link RiverMetrics} of running Dropbox rivers.
+ * <br>A river runs on one node only: we find it in the river <code>_status</code> and
+ * ask this node for its metrics, so stats can be read from any node of the cluster.
+ */
+public class RiverMetricsService extends AbstractComponent {
+
+	public static final String ACTION = "dropbox/river/stats";
+
+	private final Client client;
+	private final ClusterService clusterService;
+	private final TransportService transportService;
+
+	private final ConcurrentMap<String, RiverMetrics> rivers = ConcurrentCollections.newConcurrentMap();
+
+	@Inject
+	public RiverMetricsService(Settings settings, Client client, ClusterService clusterService,
+			TransportService transportService) {
+		super(settings);
+		this.client = client;
+		this.clusterService = clusterService;
+		this.transportService = transportService;
+		transportService.registerHandler(ACTION, new StatsRequestHandler());
+	}
+
+	/**
+	 * Create the metrics of a river starting on this node
+	 * @param riverName River name
+	 * @return new metrics
+	 */
+	public RiverMetrics register(String riverName) {
+		RiverMetrics metrics = new RiverMetrics(riverName);
+		rivers.put(riverName, metrics);
+		return metrics;
+	}
+
+	/**
+	 * Forget the metrics of a closed river
+	 * @param metrics River metrics
+	 */
+	public void unregister(RiverMetrics metrics) {
+		rivers.remove(metrics.getRiverName(), metrics);
+	}
+
+	/**
+	 * @param riverName River name
+	 * @return metrics of the river if it runs on this node, null otherwise
+	 */
+	public RiverMetrics get(String riverName) {
+		return rivers.get(riverName);
+	}
+
+	/**
+	 * Get river metrics, wherever the river runs
+	 * @param riverName River name
+	 * @param listener Gets metrics as JSON, or null when the river does not run
+	 */
+	public void stats(final String riverName, final ActionListener<BytesReference> listener) {
+		try {
+			BytesReference stats = localStats(riverName);
+			if (stats != null) {
+				listener.onResponse(stats);
+				return;
+			}
+		} catch (IOException e) {
+			listener.onFailure(e);
+			return;
+		}
+
+		// The river runs somewhere else
+		client.prepareGet("_river", riverName, "_status").execute(new ActionListener<GetResponse>() {
+			@Override
+			public void onResponse(GetResponse response) {
+				DiscoveryNode node = null;
+				if (response.isExists()) {
+					Object nodeStatus = response.getSourceAsMap().get("node");
+					if (nodeStatus instanceof Map) {
+						String nodeId = XContentMapValues.nodeStringValue(((Map<?, ?>) nodeStatus).get("id"), null);
+						if (nodeId != null) node = clusterService.state().nodes().get(nodeId);
+					}
+				}
+				if (node == null || node.equals(clusterService.localNode())) {
+					listener.onResponse(null);
+					return;
+				}
+				remoteStats(node, riverName, listener);
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				if (ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException) {
+					listener.onResponse(null);
+				} else {
+					listener.onFailure(e);
+				}
+			}
+		});
+	}
+
+	private void remoteStats(DiscoveryNode node, String riverName, final ActionListener<BytesReference> listener) {
+		if (logger.isDebugEnabled()) logger.debug("asking [{}] for [{}] stats", node, riverName);
+		transportService.sendRequest(node, ACTION, new StatsRequest(riverName), new BaseTransportResponseHandler<StatsResponse>() {
+			@Override
+			public StatsResponse newInstance() {
+				return new StatsResponse();
+			}
+
+			@Override
+			public void handleResponse(StatsResponse response) {
+				listener.onResponse(response.stats);
+			}
+
+			@Override
+			public void handleException(TransportException e) {
+				listener.onFailure(e);
+			}
+
+			@Override
+			public String executor() {
+				return ThreadPool.Names.SAME;
+			}
+		});
+	}
+
+	/**
+	 * @param riverName River name
+	 * @return metrics of the river as JSON if it runs on this node, null otherwise
+	 * @throws IOException
+	 */
+	private BytesReference localStats(String riverName) throws IOException {
+		RiverMetrics metrics = rivers.get(riverName);
+		if (metrics == null) return null;
+
+		DiscoveryNode node = clusterService.localNode();
+		XContentBuilder builder = jsonBuilder().startObject();
+		metrics.toXContent(builder, ToXContent.EMPTY_PARAMS);
+		builder.startObject("node")
+				.field("id", node.id())
+				.field("name", node.name())
+				.endObject();
+		return builder.endObject().bytes();
+	}
+
+	private class StatsRequestHandler extends BaseTransportRequestHandler<StatsRequest> {
+		@Override
+		public StatsRequest newInstance() {
+			return new StatsRequest();
+		}
+
+		@Override
+		public void messageReceived(StatsRequest request, TransportChannel channel) throws Exception {
+			channel.sendResponse(new StatsResponse(localStats(request.riverName)));
+		}
+
+		@Override
+		public String executor() {
+			return ThreadPool.Names.SAME;
+		}
+	}
+
+	static class StatsRequest extends TransportRequest {
+		private String riverName;
+
+		StatsRequest() {
+		}
+
+		StatsRequest(String riverName) {
+			this.riverName = riverName;
+		}
+
+		@Override
+		public void readFrom(StreamInput in) throws IOException {
+			super.readFrom(in);
+			riverName = in.readString();
+		}
+
+		@Override
+		public void writeTo(StreamOutput out) throws IOException {
+			super.writeTo(out);
+			out.writeString(riverName);
+		}
+	}
+
+	static class StatsResponse extends TransportResponse {
+		private BytesReference stats;
+
+		StatsResponse() {
+		}
+
+		StatsResponse(BytesReference stats) {
+			this.stats = stats;
+		}
+
+		@Override
+		public void readFrom(StreamInput in) throws IOException {
+			super.readFrom(in);
+			if (in.readBoolean()) stats = in.readBytesReference();
+		}
+
+		@Override
+		public void writeTo(StreamOutput out) throws IOException {
+			super.writeTo(out);
+			out.writeBoolean(stats != null);
+			if (stats != null) out.writeBytesReference(stats);
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.river;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.index.engine.DocumentAlreadyExistsException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.indices.IndexMissingException;
+
+/**
+ * River state (cursor and statistics) saved in the <code>_river</code> index.
+ * <br>States are read with a realtime GET, so we never need to refresh <code>_river</code>, and are
+ * then kept in memory. {@link #revalidate(String)} only asks elasticsearch for the version of the document
+ * to know if the state in memory is still the stored one.
+ * <br>Writes are versioned against the state we know. If someone else changed or removed the document
+ * (a user resetting the cursor for example), the write is refused and the state is read again next time.
+ */
+public class RiverStateStore {
+
+	private static final String INDEX = "_river";
+
+	private final Client client;
+	private final String type;
+	private final ConcurrentMap<String, State> states = ConcurrentCollections.newConcurrentMap();
+
+	/**
+	 * @param client Elasticsearch client
+	 * @param riverName River name, used as the type in <code>_river</code>
+	 */
+	public RiverStateStore(Client client, String riverName) {
+		this.client = client;
+		this.type = riverName;
+	}
+
+	/**
+	 * Get a state, from memory if we already know it
+	 * @param id State document id
+	 * @return the state. Use {@link State#exists()} to know if it was ever saved.
+	 */
+	@SuppressWarnings("unchecked")
+	public State get(String id) {
+		State state = states.get(id);
+		if (state != null) return state;
+
+		state = State.MISSING;
+		try {
+			GetResponse response = client.prepareGet(INDEX, type, id).setRealtime(true).execute().actionGet();
+			if (response.isExists()) {
+				state = new State((Map<String, Object>) response.getSourceAsMap().get("dropbox"),
+						response.getVersion());
+			}
+		} catch (IndexMissingException e) {
+			// Nothing saved yet
+		}
+		states.put(id, state);
+		return state;
+	}
+
+	/**
+	 * Get a state, reading it again if the stored document was changed or removed since we read it
+	 * @param id State document id
+	 * @return the stored state
+	 */
+	public State revalidate(String id) {
+		State known = states.get(id);
+		if (known == null) return get(id);
+
+		long version = -1;
+		try {
+			// No source: the version is all we need to know if the document changed
+			GetResponse response = client.prepareGet(INDEX, type, id).setRealtime(true).setFields().execute().actionGet();
+			if (response.isExists()) version = response.getVersion();
+		} catch (IndexMissingException e) {
+			// Nothing saved
+		}
+		if (version == known.getVersion()) return known;
+
+		states.remove(id, known);
+		return get(id);
+	}
+
+	/**
+	 * Save a state if the stored one is still the one we know
+	 * @param id State document id
+	 * @param source State content
+	 * @return false if the stored state changed since we read it: nothing was saved and the
+	 * state will be read again on the next {@link #get(String)}.
+	 */
+	public boolean put(String id, Map<String, Object> source) {
+		State known = states.get(id);
+		if (known == null) return false;
+
+		IndexRequestBuilder request = client.prepareIndex(INDEX, type, id)
+				.setSource(Collections.<String, Object>singletonMap("dropbox", source));
+		if (known.exists()) {
+			request.setVersion(known.getVersion());
+		} else {
+			request.setCreate(true);
+		}
+
+		try {
+			IndexResponse response = request.execute().actionGet();
+			states.replace(id, known, new State(source, response.getVersion()));
+			return true;
+		} catch (RuntimeException e) {
+			Throwable cause = ExceptionsHelper.unwrapCause(e);
+			if (cause instanceof VersionConflictEngineException || cause instanceof DocumentAlreadyExistsException) {
+				states.remove(id, known);
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Forget a state. It will be read again from elasticsearch on the next {@link #get(String)}.
+	 * @param id State document id
+	 */
+	public void invalidate(String id) {
+		states.remove(id);
+	}
+
+	/**
+	 * A state as saved in <code>_river</code>
+	 */
+	public static class State {
+		private static final State MISSING = new State(null, -1);
+
+		private final Map<String, Object> source;
+		private final long version;
+
+		private State(Map<String, Object> source, long version) {
+			this.source = source;
+			this.version = version;
+		}
+
+		/**
+		 * @return true if the state was saved in elasticsearch
+		 */
+		public boolean exists() {
+			return version >= 0;
+		}
+
+		/**
+		 * @return the document version, -1 if it does not exist
+		 */
+		public long getVersion() {
+			return version;
+		}
+
+		/**
+		 * @return the Dropbox cursor or null
+		 */
+		public String getCursor() {
+			return XContentMapValues.nodeStringValue(get("cursor"), null);
+		}
+
+		/**
+		 * @return the path prefix the cursor was built with or null
+		 */
+		public String getPathPrefix() {
+			return XContentMapValues.nodeStringValue(get("path_prefix"), null);
+		}
+
+		/**
+		 * @param field Field name
+		 * @return the saved value or null
+		 */
+		public Object get(String field) {
+			return source == null ? null : source.get(field);
+		}
+	}
+}
@@ -25,7 +25,9 @@ import java.security.NoSuchAlgorithmException;
 /**
  * Utility class to sign *things*
  * @author David Pilato (aka dadoonet)
+ * @deprecated Use {@link DocumentIdStrategies#LEGACY} which gives the same signatures
  */
+@Deprecated
 public class SignTool {
 
 	public static String sign(String toSign) throws NoSuchAlgorithmException {
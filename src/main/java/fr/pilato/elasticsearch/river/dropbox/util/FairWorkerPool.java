@@ -0,0 +1,179 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A fixed pool of workers shared by many keys (Dropbox accounts for example).
+ * <br>Each key has its own queue. Workers pick the next task with a smooth weighted
+ * round-robin between keys having pending tasks. The weight of a key grows with the
+ * log of its pending tasks, so a key with a lot of work gets more turns but can not
+ * starve keys with only a few tasks.
+ */
+public class FairWorkerPool {
+
+	private final Map<Object, KeyQueue> queues = new LinkedHashMap<Object, KeyQueue>();
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private boolean shutdown = false;
+
+	/**
+	 * @param threads Number of workers
+	 * @param threadFactory Build worker threads
+	 */
+	public FairWorkerPool(int threads, ThreadFactory threadFactory) {
+		for (int i = 0; i < Math.max(1, threads); i++) {
+			Thread worker = threadFactory.newThread(new Worker());
+			workers.add(worker);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Queue a task for a key
+	 * @param key Who the task is working for
+	 * @param task The task
+	 * @return the pending result
+	 */
+	public <T> Future<T> submit(Object key, Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task);
+		enqueue(key, future);
+		return future;
+	}
+
+	/**
+	 * Queue a task for a key
+	 * @param key Who the task is working for
+	 * @param task The task
+	 * @return the pending task
+	 */
+	public Future<?> submit(Object key, Runnable task) {
+		FutureTask<Object> future = new FutureTask<Object>(task, null);
+		enqueue(key, future);
+		return future;
+	}
+
+	/**
+	 * @param key Who tasks are working for
+	 * @return the number of tasks waiting for a worker
+	 */
+	public synchronized int pending(Object key) {
+		KeyQueue queue = queues.get(key);
+		return queue == null ? 0 : queue.tasks.size();
+	}
+
+	/**
+	 * Stop workers. Waiting tasks are cancelled.
+	 */
+	public void shutdownNow() {
+		synchronized (this) {
+			shutdown = true;
+			for (KeyQueue queue : queues.values()) {
+				for (FutureTask<?> task : queue.tasks) {
+					task.cancel(false);
+				}
+				queue.tasks.clear();
+			}
+			notifyAll();
+		}
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	private synchronized void enqueue(Object key, FutureTask<?> task) {
+		if (shutdown) throw new RejectedExecutionException("Pool is shut down");
+		KeyQueue queue = queues.get(key);
+		if (queue == null) {
+			queue = new KeyQueue();
+			queues.put(key, queue);
+		}
+		queue.tasks.add(task);
+		notify();
+	}
+
+	/**
+	 * Smooth weighted round-robin: every key with pending tasks earns its weight,
+	 * the richest key runs and pays back the total of the weights.
+	 * @return the next task, null if we are shutting down
+	 * @throws InterruptedException
+	 */
+	private synchronized FutureTask<?> next() throws InterruptedException {
+		while (true) {
+			if (shutdown) return null;
+
+			KeyQueue selected = null;
+			int total = 0;
+			for (KeyQueue queue : queues.values()) {
+				if (queue.tasks.isEmpty()) {
+					queue.current = 0;
+					continue;
+				}
+				int weight = weight(queue.tasks.size());
+				queue.current += weight;
+				total += weight;
+				if (selected == null || queue.current > selected.current) selected = queue;
+			}
+
+			if (selected != null) {
+				selected.current -= total;
+				return selected.tasks.removeFirst();
+			}
+
+			wait();
+		}
+	}
+
+	/**
+	 * @return 1 + log2(1 + pending)
+	 */
+	static int weight(int pending) {
+		return 32 - Integer.numberOfLeadingZeros(pending + 1);
+	}
+
+	private static class KeyQueue {
+		private final LinkedList<FutureTask<?>> tasks = new LinkedList<FutureTask<?>>();
+		private int current = 0;
+	}
+
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			try {
+				FutureTask<?> task;
+				while ((task = next()) != null) {
+					// FutureTask keeps any exception for the caller
+					task.run();
+				}
+			} catch (InterruptedException e) {
+				// We are shutting down
+			}
+		}
+	}
+}
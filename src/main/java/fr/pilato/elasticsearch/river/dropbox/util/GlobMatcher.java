@@ -0,0 +1,288 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A set of include or exclude rules compiled once and matched against file paths.
+ * <br>In rules, <code>*</code> matches any sequence of characters and <code>?</code> matches
+ * zero or one character. Other characters are matched as is.
+ * <br>Rules are dispatched by shape so most paths are matched without walking every rule:
+ * <ul>
+ * <li><code>*.ext</code> rules are looked up in a set of extensions</li>
+ * <li><code>/dir/*</code> rules are looked up in a prefix tree</li>
+ * <li>rules without wildcard are looked up in a set of paths</li>
+ * <li>other rules are run together in a single automaton</li>
+ * </ul>
+ * Rules holding regular expression characters (<code>[a-z]</code> for example) are still
+ * supported as regular expressions, compiled once.
+ */
+public class GlobMatcher {
+
+	private static final String REGEX_CHARS = "\\[](){}+^$|";
+
+	private final Set<String> extensions = new HashSet<String>();
+	private final Set<String> exacts = new HashSet<String>();
+	private final PrefixNode prefixes = new PrefixNode();
+	private final Automaton automaton;
+	private final List<Pattern> regexes = new ArrayList<Pattern>();
+	private final boolean empty;
+
+	public GlobMatcher(Collection<String> rules) {
+		List<String> globs = new ArrayList<String>();
+		boolean hasPrefix = false;
+
+		if (rules != null) {
+			for (String rule : rules) {
+				if (rule == null) continue;
+				if (isRegex(rule)) {
+					regexes.add(Pattern.compile(rule.replace("?", ".?").replace("*", ".*?")));
+				} else if (rule.indexOf('*') < 0 && rule.indexOf('?') < 0) {
+					exacts.add(rule);
+				} else if (isExtension(rule)) {
+					extensions.add(rule.substring(2));
+				} else if (isPrefix(rule)) {
+					prefixes.add(rule.substring(0, rule.length() - 1));
+					hasPrefix = true;
+				} else {
+					globs.add(rule);
+				}
+			}
+		}
+
+		this.automaton = globs.isEmpty() ? null : new Automaton(globs);
+		this.empty = extensions.isEmpty() && exacts.isEmpty() && !hasPrefix
+				&& automaton == null && regexes.isEmpty();
+	}
+
+	/**
+	 * @return true if there is no rule at all
+	 */
+	public boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * @param path Path to check
+	 * @return true if at least one rule matches the whole path
+	 */
+	public boolean matches(String path) {
+		if (empty || path == null) return false;
+
+		if (!exacts.isEmpty() && exacts.contains(path)) return true;
+
+		if (!extensions.isEmpty()) {
+			int dot = path.lastIndexOf('.');
+			if (dot >= 0 && extensions.contains(path.substring(dot + 1))) return true;
+		}
+
+		if (prefixes.startsOf(path)) return true;
+
+		if (automaton != null && automaton.matches(path)) return true;
+
+		for (int i = 0; i < regexes.size(); i++) {
+			if (regexes.get(i).matcher(path).matches()) return true;
+		}
+
+		return false;
+	}
+
+	private static boolean isRegex(String rule) {
+		for (int i = 0; i < rule.length(); i++) {
+			if (REGEX_CHARS.indexOf(rule.charAt(i)) >= 0) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true for <code>*.ext</code> rules where ext has no dot nor wildcard
+	 */
+	private static boolean isExtension(String rule) {
+		if (rule.length() < 3 || !rule.startsWith("*.")) return false;
+		for (int i = 2; i < rule.length(); i++) {
+			char c = rule.charAt(i);
+			if (c == '*' || c == '?' || c == '.') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true for <code>prefix*</code> rules where prefix has no wildcard
+	 */
+	private static boolean isPrefix(String rule) {
+		int last = rule.length() - 1;
+		if (last < 0 || rule.charAt(last) != '*') return false;
+		for (int i = 0; i < last; i++) {
+			char c = rule.charAt(i);
+			if (c == '*' || c == '?') return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Prefix tree: children are kept in small parallel arrays
+	 */
+	private static class PrefixNode {
+		private char[] keys = new char[0];
+		private PrefixNode[] children = new PrefixNode[0];
+		private boolean terminal = false;
+
+		void add(String prefix) {
+			PrefixNode node = this;
+			for (int i = 0; i < prefix.length(); i++) {
+				char c = prefix.charAt(i);
+				PrefixNode child = node.child(c);
+				if (child == null) {
+					child = new PrefixNode();
+					int size = node.keys.length;
+					char[] keys = new char[size + 1];
+					PrefixNode[] children = new PrefixNode[size + 1];
+					System.arraycopy(node.keys, 0, keys, 0, size);
+					System.arraycopy(node.children, 0, children, 0, size);
+					keys[size] = c;
+					children[size] = child;
+					node.keys = keys;
+					node.children = children;
+				}
+				node = child;
+			}
+			node.terminal = true;
+		}
+
+		PrefixNode child(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) return children[i];
+			}
+			return null;
+		}
+
+		/**
+		 * @return true if one of the prefixes starts the path
+		 */
+		boolean startsOf(String path) {
+			PrefixNode node = this;
+			if (node.terminal) return true;
+			for (int i = 0; i < path.length(); i++) {
+				node = node.child(path.charAt(i));
+				if (node == null) return false;
+				if (node.terminal) return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * All remaining rules run as one non deterministic automaton. A state is a position
+	 * in a rule: every rule is stored one after the other in a single char array,
+	 * each one followed by an accepting state.
+	 */
+	private static class Automaton {
+		private static final char ACCEPT = '\0';
+
+		private final char[] states;
+		private final boolean[] accepting;
+
+		Automaton(List<String> rules) {
+			StringBuilder sb = new StringBuilder();
+			List<Integer> accepts = new ArrayList<Integer>();
+			for (String rule : rules) {
+				char previous = ACCEPT;
+				for (int i = 0; i < rule.length(); i++) {
+					char c = rule.charAt(i);
+					// "**" is the same as "*"
+					if (c == '*' && previous == '*') continue;
+					sb.append(c);
+					previous = c;
+				}
+				accepts.add(sb.length());
+				sb.append(ACCEPT);
+			}
+			this.states = sb.toString().toCharArray();
+			this.accepting = new boolean[states.length];
+			for (Integer accept : accepts) {
+				accepting[accept] = true;
+			}
+		}
+
+		boolean matches(String path) {
+			int[] current = new int[states.length];
+			int[] next = new int[states.length];
+			// Last step where a state was added, to avoid duplicates
+			int[] seen = new int[states.length];
+			int step = 1;
+
+			int size = 0;
+			int start = 0;
+			while (start < states.length) {
+				size = add(current, size, start, seen, step);
+				while (!accepting[start]) start++;
+				start++;
+			}
+
+			for (int i = 0; i < path.length() && size > 0; i++) {
+				char c = path.charAt(i);
+				step++;
+				int nextSize = 0;
+				for (int j = 0; j < size; j++) {
+					int state = current[j];
+					char expected = states[state];
+					if (accepting[state]) continue;
+					if (expected == '*') {
+						nextSize = add(next, nextSize, state, seen, step);
+					} else if (expected == '?' || expected == c) {
+						nextSize = add(next, nextSize, state + 1, seen, step);
+					}
+				}
+				int[] swap = current;
+				current = next;
+				next = swap;
+				size = nextSize;
+			}
+
+			for (int j = 0; j < size; j++) {
+				if (accepting[current[j]]) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Add a state and the states we can reach without reading any char
+		 * (<code>*</code> and <code>?</code> may match nothing)
+		 */
+		private int add(int[] set, int size, int state, int[] seen, int step) {
+			while (true) {
+				if (seen[state] != step) {
+					seen[state] = step;
+					set[size++] = state;
+				}
+				if (accepting[state]) return size;
+				char c = states[state];
+				if (c != '*' && c != '?') return size;
+				state++;
+			}
+		}
+	}
+}
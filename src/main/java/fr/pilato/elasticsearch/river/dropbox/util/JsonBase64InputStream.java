@@ -0,0 +1,148 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.elasticsearch.common.jackson.core.Base64Variant;
+import org.elasticsearch.common.jackson.core.Base64Variants;
+
+/**
+ * Serve a binary stream as a JSON string holding its Base64 value (quotes included).
+ * <br>The source is read and encoded chunk by chunk, so it can be given to
+ * {@link org.elasticsearch.common.xcontent.XContentBuilder#rawField(String, InputStream)}
+ * without loading the raw binary content in memory. The builder still holds the encoded
+ * content, about 4/3 of the raw size, until the document is sent.
+ * <br>Chunks are encoded with the Base64 variant the JSON generator uses for binary values.
+ * <br>Closing this stream closes the source.
+ */
+public class JsonBase64InputStream extends InputStream {
+
+	/**
+	 * Default raw chunk size. Must be a multiple of 3 so that we never get Base64 padding
+	 * in the middle of the content.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 3 * 16 * 1024;
+
+	private static final byte QUOTE = '"';
+
+	/** What JsonGenerator.writeBinary() uses */
+	private static final Base64Variant BASE64 = Base64Variants.getDefaultVariant();
+
+	private final InputStream source;
+	private final byte[] raw;
+	private final byte[] encoded;
+	/** Encoded bytes not read yet, from position to limit */
+	private int position = 0;
+	private int limit;
+	private boolean sourceEnded = false;
+
+	public JsonBase64InputStream(InputStream source) {
+		this(source, DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param source Binary content
+	 * @param chunkSize Raw chunk size, rounded down to a multiple of 3
+	 */
+	public JsonBase64InputStream(InputStream source, int chunkSize) {
+		if (source == null) throw new IllegalArgumentException("source can not be null");
+		int size = Math.max(3, chunkSize - chunkSize % 3);
+		this.source = source;
+		this.raw = new byte[size];
+		// Encoded chunk and the closing quote
+		this.encoded = new byte[size / 3 * 4 + 1];
+		this.encoded[0] = QUOTE;
+		this.limit = 1;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) return -1;
+		return encoded[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!fill()) return -1;
+		int read = Math.min(len, limit - position);
+		System.arraycopy(encoded, position, b, off, read);
+		position += read;
+		return read;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return limit - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+
+	/**
+	 * Encode the next chunk if the current one has been consumed
+	 * @return false when there is nothing more to read
+	 */
+	private boolean fill() throws IOException {
+		if (position < limit) return true;
+		if (sourceEnded) return false;
+
+		int length = 0;
+		while (length < raw.length) {
+			int read = source.read(raw, length, raw.length - length);
+			if (read < 0) {
+				sourceEnded = true;
+				break;
+			}
+			length += read;
+		}
+
+		position = 0;
+		limit = encode(raw, length, encoded);
+		if (sourceEnded) encoded[limit++] = QUOTE;
+
+		return position < limit;
+	}
+
+	/**
+	 * Encode 3 bytes at a time, like the JSON generator does
+	 * @return the number of encoded bytes
+	 */
+	private static int encode(byte[] raw, int length, byte[] encoded) {
+		int ptr = 0;
+		int safe = length - length % 3;
+		for (int i = 0; i < safe; i += 3) {
+			int b24 = ((raw[i] & 0xff) << 16) | ((raw[i + 1] & 0xff) << 8) | (raw[i + 2] & 0xff);
+			ptr = BASE64.encodeBase64Chunk(b24, encoded, ptr);
+		}
+
+		int left = length - safe;
+		if (left > 0) {
+			int b24 = (raw[safe] & 0xff) << 16;
+			if (left == 2) b24 |= (raw[safe + 1] & 0xff) << 8;
+			ptr = BASE64.encodeBase64Partial(b24, left, encoded, ptr);
+		}
+		return ptr;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.util;
+
+/**
+ * MurmurHash3 x64 128 bits (public domain algorithm by Austin Appleby).
+ * <br>Fast and well distributed, but not a cryptographic hash.
+ */
+public class MurmurHash3 {
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private MurmurHash3() {
+	}
+
+	/**
+	 * Hash bytes
+	 * @param data Bytes to hash
+	 * @param offset First byte
+	 * @param length Number of bytes
+	 * @param seed Seed
+	 * @param out Receives the two 64 bits halves of the hash
+	 */
+	public static void hash128(byte[] data, int offset, int length, long seed, long[] out) {
+		long h1 = seed;
+		long h2 = seed;
+		int blocks = length >>> 4;
+
+		for (int i = 0; i < blocks; i++) {
+			int pos = offset + (i << 4);
+			long k1 = getLong(data, pos);
+			long k2 = getLong(data, pos + 8);
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		// Tail
+		long k1 = 0;
+		long k2 = 0;
+		int tail = offset + (blocks << 4);
+		switch (length & 15) {
+		case 15: k2 ^= (data[tail + 14] & 0xffL) << 48;
+		case 14: k2 ^= (data[tail + 13] & 0xffL) << 40;
+		case 13: k2 ^= (data[tail + 12] & 0xffL) << 32;
+		case 12: k2 ^= (data[tail + 11] & 0xffL) << 24;
+		case 11: k2 ^= (data[tail + 10] & 0xffL) << 16;
+		case 10: k2 ^= (data[tail + 9] & 0xffL) << 8;
+		case 9: k2 ^= (data[tail + 8] & 0xffL);
+			h2 ^= mixK2(k2);
+		case 8: k1 ^= (data[tail + 7] & 0xffL) << 56;
+		case 7: k1 ^= (data[tail + 6] & 0xffL) << 48;
+		case 6: k1 ^= (data[tail + 5] & 0xffL) << 40;
+		case 5: k1 ^= (data[tail + 4] & 0xffL) << 32;
+		case 4: k1 ^= (data[tail + 3] & 0xffL) << 24;
+		case 3: k1 ^= (data[tail + 2] & 0xffL) << 16;
+		case 2: k1 ^= (data[tail + 1] & 0xffL) << 8;
+		case 1: k1 ^= (data[tail] & 0xffL);
+			h1 ^= mixK1(k1);
+		default:
+			break;
+		}
+
+		// Finalization
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+
+		out[0] = h1;
+		out[1] = h2;
+	}
+
+	private static long getLong(byte[] data, int pos) {
+		return (data[pos] & 0xffL)
+				| (data[pos + 1] & 0xffL) << 8
+				| (data[pos + 2] & 0xffL) << 16
+				| (data[pos + 3] & 0xffL) << 24
+				| (data[pos + 4] & 0xffL) << 32
+				| (data[pos + 5] & 0xffL) << 40
+				| (data[pos + 6] & 0xffL) << 48
+				| (data[pos + 7] & 0xffL) << 56;
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		return k1 * C2;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		return k2 * C1;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
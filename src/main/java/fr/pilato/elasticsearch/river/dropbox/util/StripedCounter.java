@@ -0,0 +1,85 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package fr.pilato.elasticsearch.river.dropbox.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter many threads can update without fighting for the same cache line,
+ * like <code>LongAdder</code> which we can not use with Java 6.
+ * <br>Each thread adds to one of a few cells, picked from its id. Cells are 64 bytes apart.
+ * Reading sums every cell, so it is slower than updating: use it for counters updated a lot and read rarely.
+ */
+public class StripedCounter {
+
+	/** 8 longs: one cell per cache line */
+	private static final int PADDING = 8;
+
+	private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * @return a power of two, at least twice the number of processors, at most 64
+	 */
+	static int stripes(int processors) {
+		int stripes = 1;
+		while (stripes < processors * 2 && stripes < 64) stripes <<= 1;
+		return stripes;
+	}
+
+	/**
+	 * Add to the counter
+	 * @param value Value to add
+	 */
+	public void add(long value) {
+		cells.addAndGet(cell(), value);
+	}
+
+	/**
+	 * Add 1 to the counter
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * @return the counter value. Updates made while reading may be missed.
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	private static int cell() {
+		long id = Thread.currentThread().getId();
+		// Thread ids are often consecutive: spread them a bit
+		int hash = (int) (id ^ (id >>> 16)) * 0x9E3779B9;
+		return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(sum());
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.river.AccountStatistics;
+import fr.pilato.elasticsearch.river.dropbox.river.AccountStatistics.Counter;
+import fr.pilato.elasticsearch.river.dropbox.river.AccountStatistics.Snapshot;
+import fr.pilato.elasticsearch.river.dropbox.util.StripedCounter;
+
+public class AccountStatisticsTest {
+
+	@Test
+	public void striped_counter_does_not_lose_updates() throws Exception {
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100000; j++) counter.increment();
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) thread.join();
+		Assert.assertEquals(800000, counter.sum());
+	}
+
+	@Test
+	public void cycles_and_lifetime() {
+		AccountStatistics statistics = new AccountStatistics("account");
+		Assert.assertNull(statistics.lastCycle());
+
+		Assert.assertEquals(1, statistics.startCycle());
+		statistics.increment(Counter.FILES);
+		statistics.add(Counter.BYTES, 100);
+		Snapshot first = statistics.endCycle();
+		Assert.assertEquals(1, first.getCycle());
+		Assert.assertEquals(1, first.get(Counter.FILES));
+
+		Assert.assertEquals(2, statistics.startCycle());
+		statistics.increment(Counter.FILES);
+		statistics.increment(Counter.SKIPPED);
+		Assert.assertEquals(1, statistics.cycle().get(Counter.FILES));
+		Assert.assertSame(first, statistics.lastCycle());
+
+		Snapshot lifetime = statistics.lifetime();
+		Assert.assertEquals(2, lifetime.getCycle());
+		Assert.assertEquals(2, lifetime.get(Counter.FILES));
+		Assert.assertEquals(100, lifetime.get(Counter.BYTES));
+		Assert.assertEquals(1, lifetime.get(Counter.SKIPPED));
+	}
+
+	@Test
+	public void lifetime_survives_restarts() {
+		AccountStatistics before = new AccountStatistics("account");
+		before.startCycle();
+		before.add(Counter.FILES, 10);
+		before.add(Counter.FAILURES, 2);
+		before.endCycle();
+		Map<String, Object> saved = before.toLifetimeMap();
+
+		// A new river run
+		AccountStatistics after = new AccountStatistics("account");
+		after.restore(saved);
+		Assert.assertEquals(2, after.startCycle());
+		after.add(Counter.FILES, 5);
+
+		Snapshot lifetime = after.lifetime();
+		Assert.assertEquals(15, lifetime.get(Counter.FILES));
+		Assert.assertEquals(2, lifetime.get(Counter.FAILURES));
+		Assert.assertEquals(before.lifetime().getStart(), lifetime.getStart());
+		Assert.assertEquals(5, after.cycle().get(Counter.FILES));
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.river.CheckpointTracker;
+
+public class CheckpointTrackerTest {
+
+	@Test
+	public void checkpoint_follows_acknowledged_pages_in_order() throws Exception {
+		final AtomicInteger notifications = new AtomicInteger();
+		CheckpointTracker tracker = new CheckpointTracker("c0", new CheckpointTracker.Listener() {
+			@Override
+			public void onCheckpoint() {
+				notifications.incrementAndGet();
+			}
+		});
+
+		CheckpointTracker.Page page1 = tracker.open("c1");
+		page1.add();
+		page1.seal();
+		CheckpointTracker.Page page2 = tracker.open("c2");
+		page2.add();
+		page2.add();
+		page2.seal();
+
+		// Page 2 is done before page 1: we can't move yet
+		page2.done();
+		page2.done();
+		Assert.assertEquals("c0", tracker.getCheckpoint());
+		Assert.assertEquals(0, notifications.get());
+
+		page1.done();
+		Assert.assertEquals("c2", tracker.getCheckpoint());
+		Assert.assertEquals(1, notifications.get());
+		Assert.assertTrue(tracker.awaitAll(0));
+	}
+
+	@Test
+	public void page_is_not_acknowledged_before_sealed() throws Exception {
+		CheckpointTracker tracker = new CheckpointTracker(null, null);
+		CheckpointTracker.Page page = tracker.open("c1");
+		page.add();
+		page.done();
+		Assert.assertNull(tracker.getCheckpoint());
+		Assert.assertFalse(tracker.awaitAll(10));
+
+		page.seal();
+		Assert.assertEquals("c1", tracker.getCheckpoint());
+	}
+
+	@Test
+	public void abandoned_pages_are_never_acknowledged() throws Exception {
+		CheckpointTracker tracker = new CheckpointTracker("c0", null);
+		CheckpointTracker.Page page1 = tracker.open("c1");
+		page1.add();
+		page1.seal();
+		CheckpointTracker.Page page2 = tracker.open("c2");
+		page2.add();
+		CheckpointTracker.Page page3 = tracker.open("c3");
+		page3.seal();
+
+		tracker.abandon(page2);
+		page2.done();
+		Assert.assertEquals("c0", tracker.getCheckpoint());
+
+		page1.done();
+		Assert.assertEquals("c1", tracker.getCheckpoint());
+		Assert.assertTrue(tracker.awaitAll(0));
+	}
+
+	@Test
+	public void failed_page_stops_the_checkpoint() throws Exception {
+		CheckpointTracker tracker = new CheckpointTracker("c0", null);
+		CheckpointTracker.Page page1 = tracker.open("c1");
+		page1.add();
+		page1.seal();
+		CheckpointTracker.Page page2 = tracker.open("c2");
+		page2.add();
+		page2.seal();
+		CheckpointTracker.Page page3 = tracker.open("c3");
+		page3.seal();
+
+		page1.done();
+		page2.fail();
+		page2.done();
+		Assert.assertEquals("c1", tracker.getCheckpoint());
+		Assert.assertTrue(tracker.isStuck());
+
+		// Later pages are acknowledged but the checkpoint does not move
+		CheckpointTracker.Page page4 = tracker.open("c4");
+		page4.seal();
+		Assert.assertEquals("c1", tracker.getCheckpoint());
+		Assert.assertTrue(tracker.awaitAll(0));
+	}
+}
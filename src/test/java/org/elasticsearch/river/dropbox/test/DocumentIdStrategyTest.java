@@ -0,0 +1,93 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.security.MessageDigest;
+
+import org.elasticsearch.common.Hex;
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.river.DocumentIdStrategies;
+import fr.pilato.elasticsearch.river.dropbox.river.DocumentIdStrategy;
+
+public class DocumentIdStrategyTest {
+
+	private static final String[] PATHS = { "/", "/tmp/file.txt", "/photos/\u00e9t\u00e9 2013/IMG_0001.JPG",
+		"/a/much/longer/path/with/many/directories/to/cover/more/than/one/block/document.pdf", "/emoji/\ud83d\ude00.txt", "" };
+
+	@SuppressWarnings("deprecation")
+	@Test
+	public void legacy_ids_do_not_change() throws Exception {
+		for (String path : PATHS) {
+			// Imports of deprecated classes can not be silenced on Java 6
+			Assert.assertEquals(fr.pilato.elasticsearch.river.dropbox.river.SignTool.sign(path), DocumentIdStrategies.LEGACY.id(path));
+		}
+		Assert.assertEquals(DocumentIdStrategies.LEGACY, DocumentIdStrategies.forName(null));
+	}
+
+	@Test
+	public void digests_keep_leading_zeros() throws Exception {
+		for (String path : PATHS) {
+			byte[] bytes = path.getBytes("UTF-8");
+			Assert.assertEquals(Hex.encodeHexString(MessageDigest.getInstance("MD5").digest(bytes)),
+					DocumentIdStrategies.MD5.id(path));
+			Assert.assertEquals(Hex.encodeHexString(MessageDigest.getInstance("SHA-1").digest(bytes)),
+					DocumentIdStrategies.SHA1.id(path));
+		}
+		Assert.assertEquals(32, DocumentIdStrategies.forName("md5").id("/tmp").length());
+		Assert.assertEquals(40, DocumentIdStrategies.forName("sha1").id("/tmp").length());
+	}
+
+	@Test
+	public void murmur3_is_stable() throws Exception {
+		// Reference values from the C++ implementation (MurmurHash3_x64_128, seed 0)
+		Assert.assertEquals("00000000000000000000000000000000", DocumentIdStrategies.MURMUR3.id(""));
+		Assert.assertEquals("cbd8a7b341bd9b025b1e906a48ae1d19", DocumentIdStrategies.MURMUR3.id("hello"));
+
+		DocumentIdStrategy murmur3 = DocumentIdStrategies.forName("murmur3");
+		for (String path : PATHS) {
+			Assert.assertEquals(32, murmur3.id(path).length());
+			Assert.assertEquals(murmur3.id(path), murmur3.id(new String(path)));
+		}
+		Assert.assertFalse(murmur3.id("/tmp/a").equals(murmur3.id("/tmp/b")));
+	}
+
+	@Test
+	public void custom_strategy() throws Exception {
+		Assert.assertEquals("/tmp/file.txt", DocumentIdStrategies.forName("path").id("/tmp/file.txt"));
+		DocumentIdStrategy custom = DocumentIdStrategies.forName(UpperCaseStrategy.class.getName());
+		Assert.assertEquals("/TMP", custom.id("/tmp"));
+
+		try {
+			DocumentIdStrategies.forName("unknown");
+			Assert.fail("unknown strategy should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public static class UpperCaseStrategy implements DocumentIdStrategy {
+		@Override
+		public String id(String path) {
+			return path.toUpperCase();
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.river.dropbox.test.utils.FakeDropboxServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxChanges;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxConnector;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxFile;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxRequest;
+
+/**
+ * Test the connector against a local fake Dropbox server
+ */
+public class DropboxConnectorTest {
+
+	private FakeDropboxServer server;
+	private FakeDropboxServer.Account account;
+
+	@Before
+	public void startServer() throws Exception {
+		account = new FakeDropboxServer.Account("token").files(250).pageSize(100)
+				.sizes(FakeDropboxServer.uniform(0, 20000));
+		server = new FakeDropboxServer()
+				.account(account)
+				.account(new FakeDropboxServer.Account("other").files(3))
+				.longpollWait(10)
+				.start();
+	}
+
+	@After
+	public void stopServer() {
+		server.stop();
+	}
+
+	private DropboxConnector connector(String token) {
+		return new DropboxConnector("appkey", "appsecret", token, "secret").setBaseUrl(server.getUrl());
+	}
+
+	@Test
+	public void user_info() throws Exception {
+		Assert.assertEquals("token@fake.dropbox.local", connector("token").getUserInfo().getEmail());
+		Assert.assertEquals("other@fake.dropbox.local", connector("other").getUserInfo().getEmail());
+	}
+
+	@Test
+	public void delta_pages() throws Exception {
+		DropboxConnector dropbox = connector("token");
+
+		DropboxChanges page = dropbox.getDeltaPage(null);
+		Assert.assertTrue(page.isReset());
+		Assert.assertTrue(page.isHasMore());
+		Assert.assertEquals(100, page.getFiles().size());
+
+		page = dropbox.getDeltaPage(page.getCursor());
+		Assert.assertFalse(page.isReset());
+		Assert.assertEquals(100, page.getFiles().size());
+
+		page = dropbox.getDeltaPage(page.getCursor());
+		Assert.assertFalse(page.isHasMore());
+		Assert.assertEquals(50, page.getFiles().size());
+
+		// Nothing new
+		String cursor = page.getCursor();
+		Assert.assertEquals(0, dropbox.getDeltaPage(cursor).getFiles().size());
+		Assert.assertFalse(dropbox.longpollDelta(cursor, 30).isChanges());
+
+		account.addFiles(5);
+		Assert.assertTrue(dropbox.longpollDelta(cursor, 30).isChanges());
+		Assert.assertEquals(5, dropbox.getDelta(cursor).getFiles().size());
+	}
+
+	@Test
+	public void delta_under_path_prefix() throws Exception {
+		DropboxChanges changes = connector("token").getDelta(null, "/Folder3");
+		Assert.assertEquals(25, changes.getFiles().size());
+		Set<String> paths = new HashSet<String>();
+		for (DropboxFile file : changes.getFiles()) {
+			Assert.assertTrue(file.getFilename().startsWith("/folder3/"));
+			paths.add(file.getFilename());
+		}
+		Assert.assertEquals(25, paths.size());
+	}
+
+	@Test
+	public void download() throws Exception {
+		DropboxConnector dropbox = connector("token");
+		for (int i = 0; i < 5; i++) {
+			byte[] content = dropbox.getFiles("dropbox", account.path(i));
+			Assert.assertArrayEquals(FakeDropboxServer.content(account, i), content);
+		}
+		Assert.assertEquals(5, server.getDownloads());
+	}
+
+	@Test
+	public void broken_downloads_are_resumed() throws Exception {
+		server.dropAfter(3000);
+		final AtomicInteger retries = new AtomicInteger();
+		DropboxConnector dropbox = connector("token")
+				.setDownloadRetries(3, 1)
+				.setRetryListener(new DropboxConnector.RetryListener() {
+					@Override
+					public void onRetry(DropboxRequest request, int code, long delay) {
+						retries.incrementAndGet();
+					}
+				});
+
+		long bytes = 0;
+		int breaks = 0;
+		for (int i = 0; i < 10; i++) {
+			Assert.assertArrayEquals(FakeDropboxServer.content(account, i), dropbox.getFiles("dropbox", account.path(i)));
+			bytes += account.size(i);
+			if (account.size(i) > 3000) breaks += (account.size(i) - 1) / 3000;
+		}
+		Assert.assertTrue(breaks > 0);
+		Assert.assertEquals(breaks, retries.get());
+		// Nothing is sent twice
+		Assert.assertEquals(bytes, server.getBytesSent());
+		Assert.assertEquals(10, server.getDownloads());
+	}
+
+	@Test
+	public void broken_download_fails_without_retries() throws Exception {
+		server.dropAfter(100);
+		int i = 0;
+		while (account.size(i) <= 100) i++;
+		try {
+			connector("token").setDownloadRetries(0, 1).getFiles("dropbox", account.path(i));
+			Assert.fail("download should break");
+		} catch (RuntimeException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void errors() throws Exception {
+		server.errorRate(1);
+		try {
+			connector("token").getUserInfo();
+			Assert.fail("fake server should fail");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getMessage().contains("503"));
+		}
+		Assert.assertEquals(1, server.getErrors());
+
+		server.errorRate(0);
+		try {
+			connector("token").getFiles("dropbox", "/folder1/unknown.txt");
+			Assert.fail("unknown file should fail");
+		} catch (RuntimeException e) {
+			Assert.assertTrue(e.getMessage().contains("404"));
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxDeltaListener;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxDeltaPage;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxDeltaParser;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxEntry;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxFile;
+
+public class DropboxDeltaParserTest {
+
+	private static final String DELTA = "{" +
+			"\"reset\": true," +
+			"\"entries\": [" +
+				"[\"/test-es/premierspas.pdf\", {" +
+					"\"revision\": 12, \"rev\": \"c0b7a3b9e\", \"thumb_exists\": false, \"bytes\": 230783," +
+					"\"modified\": \"Tue, 19 Jul 2011 21:55:38 +0000\", \"client_mtime\": \"Mon, 18 Jul 2011 18:04:35 +0000\"," +
+					"\"path\": \"/test-es/PremiersPas.pdf\", \"is_dir\": false, \"icon\": \"page_white_acrobat\"," +
+					"\"root\": \"dropbox\", \"mime_type\": \"application/pdf\", \"size\": \"225.4 KB\"," +
+					"\"photo_info\": { \"lat_long\": [ 1.5, 2.5 ], \"time_taken\": null }" +
+				"}]," +
+				"[\"/test-es\", {\"bytes\": 0, \"path\": \"/test-es\", \"is_dir\": true, \"rev\": \"1\"}]," +
+				"[\"/test-es/removed.doc\", null]" +
+			"]," +
+			"\"cursor\": \"AAGvtIBYmF\"," +
+			"\"has_more\": true" +
+			"}";
+
+	private static DropboxDeltaPage parse(String json, final List<DropboxFile> files) throws Exception {
+		return DropboxDeltaParser.parse(new ByteArrayInputStream(json.getBytes("UTF-8")), new DropboxDeltaListener() {
+			@Override
+			public void onEntry(String path, DropboxEntry entry) {
+				files.add(new DropboxFile(entry, path));
+			}
+		});
+	}
+
+	@Test
+	public void parse_delta_page() throws Exception {
+		List<DropboxFile> files = new ArrayList<DropboxFile>();
+		DropboxDeltaPage page = parse(DELTA, files);
+
+		Assert.assertEquals("AAGvtIBYmF", page.getCursor());
+		Assert.assertTrue(page.isHasMore());
+		Assert.assertTrue(page.isReset());
+		Assert.assertEquals(3, page.getEntries());
+		Assert.assertEquals(3, files.size());
+
+		DropboxFile file = files.get(0);
+		Assert.assertEquals("/test-es/premierspas.pdf", file.getFilename());
+		Assert.assertEquals("/test-es/PremiersPas.pdf", file.getMeta().getPath());
+		Assert.assertEquals(230783, file.getMeta().getBytes());
+		Assert.assertEquals("c0b7a3b9e", file.getMeta().getRev());
+		Assert.assertEquals("Tue, 19 Jul 2011 21:55:38 +0000", file.getMeta().getModified());
+		Assert.assertEquals("application/pdf", file.getMeta().getMimeType());
+		Assert.assertFalse(file.getMeta().isDir());
+		Assert.assertFalse(file.getMeta().isDeleted());
+
+		Assert.assertTrue(files.get(1).getMeta().isDir());
+
+		Assert.assertEquals("/test-es/removed.doc", files.get(2).getFilename());
+		Assert.assertTrue(files.get(2).getMeta().isDeleted());
+	}
+
+	@Test
+	public void parse_empty_delta() throws Exception {
+		List<DropboxFile> files = new ArrayList<DropboxFile>();
+		DropboxDeltaPage page = parse("{\"entries\": [], \"cursor\": \"ABC\", \"has_more\": false, \"reset\": false}", files);
+
+		Assert.assertEquals("ABC", page.getCursor());
+		Assert.assertFalse(page.isHasMore());
+		Assert.assertFalse(page.isReset());
+		Assert.assertEquals(0, files.size());
+	}
+
+	@Test
+	public void parse_metadata_first() throws Exception {
+		List<DropboxFile> files = new ArrayList<DropboxFile>();
+		parse("{\"entries\": [[{\"bytes\": 12, \"path\": \"/A.txt\"}, \"/a.txt\"]], \"cursor\": \"ABC\"}", files);
+
+		Assert.assertEquals(1, files.size());
+		Assert.assertEquals("/a.txt", files.get(0).getFilename());
+		Assert.assertEquals(12, files.get(0).getMeta().getBytes());
+	}
+}
@@ -22,6 +22,11 @@ package org.elasticsearch.river.dropbox.test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -58,4 +63,53 @@ public class DropboxMatchFilesTest {
 		Assert.assertTrue(DropBoxRiverUtil.isIndexable("my.douc.xls", Arrays.asList("*.xls"), Arrays.asList("my.d?c*.xls")));
 	}
 
+	@Test
+	public void in_path() throws Exception {
+		Assert.assertTrue(DropBoxRiverUtil.isInPath("/projects/legal/contract.doc", "/Projects/Legal"));
+		Assert.assertTrue(DropBoxRiverUtil.isInPath("/projects/legal", "/Projects/Legal/"));
+		Assert.assertFalse(DropBoxRiverUtil.isInPath("/projects/legally/contract.doc", "/Projects/Legal"));
+		Assert.assertFalse(DropBoxRiverUtil.isInPath("/projects/contract.doc", "/Projects/Legal"));
+		Assert.assertTrue(DropBoxRiverUtil.isInPath("/projects/contract.doc", "/"));
+	}
+
+	@Test
+	public void common_path() throws Exception {
+		Assert.assertEquals("/Projects", DropBoxRiverUtil.commonPath(Arrays.asList("/Projects/Legal", "/projects/Sales/2013")));
+		Assert.assertEquals("/Projects/Legal", DropBoxRiverUtil.commonPath(Arrays.asList("/Projects/Legal/", "/Projects/Legal/Old")));
+		Assert.assertEquals("/", DropBoxRiverUtil.commonPath(Arrays.asList("/Projects/Legal", "/Photos")));
+		Assert.assertEquals("/", DropBoxRiverUtil.commonPath(Arrays.asList("/Projects", "/")));
+		Assert.assertEquals("/", DropBoxRiverUtil.commonPath(new ArrayList<String>()));
+	}
+
+	@Test
+	public void dropbox_date() throws Exception {
+		Assert.assertEquals(Long.valueOf(1311112538000L), DropBoxRiverUtil.convertToEsDate("Tue, 19 Jul 2011 21:55:38 +0000"));
+		Assert.assertEquals(Long.valueOf(1311112538000L), DropBoxRiverUtil.convertToEsDate("Tue, 19 Jul 2011 23:55:38 +0200"));
+		Assert.assertNull(DropBoxRiverUtil.convertToEsDate("2011-07-19"));
+		Assert.assertNull(DropBoxRiverUtil.convertToEsDate(null));
+	}
+
+	@Test
+	public void dropbox_dates_from_many_threads() throws Exception {
+		ExecutorService workers = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Long>> dates = new ArrayList<Future<Long>>();
+			for (int i = 0; i < 2000; i++) {
+				final String date = "Tue, 19 Jul 2011 " + (10 + i % 10) + ":55:38 +0000";
+				dates.add(workers.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						return DropBoxRiverUtil.convertToEsDate(date);
+					}
+				}));
+			}
+			for (int i = 0; i < dates.size(); i++) {
+				long expected = 1311112538000L + (i % 10 - 11) * 3600000L;
+				Assert.assertEquals(Long.valueOf(expected), dates.get(i).get());
+			}
+		} finally {
+			workers.shutdown();
+		}
+	}
+
 }
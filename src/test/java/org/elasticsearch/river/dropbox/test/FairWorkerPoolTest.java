@@ -0,0 +1,106 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.util.FairWorkerPool;
+
+public class FairWorkerPoolTest {
+
+	@Test
+	public void returns_results() throws Exception {
+		FairWorkerPool pool = new FairWorkerPool(2, Executors.defaultThreadFactory());
+		try {
+			Future<String> result = pool.submit("account", new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return "done";
+				}
+			});
+			Assert.assertEquals("done", result.get(5, TimeUnit.SECONDS));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void big_account_does_not_starve_others() throws Exception {
+		FairWorkerPool pool = new FairWorkerPool(1, Executors.defaultThreadFactory());
+		try {
+			// We hold the only worker while we fill the queues
+			final CountDownLatch started = new CountDownLatch(1);
+			final CountDownLatch hold = new CountDownLatch(1);
+			pool.submit("blocker", new Runnable() {
+				@Override
+				public void run() {
+					try {
+						started.countDown();
+						hold.await();
+					} catch (InterruptedException e) {
+					}
+				}
+			});
+			Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+			final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+			List<Future<?>> tasks = new ArrayList<Future<?>>();
+			for (int i = 0; i < 1000; i++) {
+				tasks.add(pool.submit("big", record(order, "big")));
+			}
+			for (int i = 0; i < 3; i++) {
+				tasks.add(pool.submit("small", record(order, "small")));
+			}
+			Assert.assertEquals(1000, pool.pending("big"));
+			Assert.assertEquals(3, pool.pending("small"));
+
+			hold.countDown();
+			for (Future<?> task : tasks) {
+				task.get(5, TimeUnit.SECONDS);
+			}
+
+			// Small account tasks are run among the first ones
+			int lastSmall = order.lastIndexOf("small");
+			Assert.assertTrue("small tasks ran at " + lastSmall, lastSmall < 50);
+			Assert.assertEquals(1003, order.size());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static Runnable record(final List<String> order, final String key) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				order.add(key);
+			}
+		};
+	}
+}
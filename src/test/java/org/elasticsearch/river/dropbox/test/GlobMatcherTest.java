@@ -0,0 +1,109 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.util.GlobMatcher;
+
+public class GlobMatcherTest {
+
+	@Test
+	public void no_rule() {
+		GlobMatcher matcher = new GlobMatcher(new ArrayList<String>());
+		Assert.assertTrue(matcher.isEmpty());
+		Assert.assertFalse(matcher.matches("/tmp/test.doc"));
+	}
+
+	@Test
+	public void rules_by_shape() {
+		GlobMatcher matcher = new GlobMatcher(Arrays.asList("*.doc", "/tmp/private/*", "/tmp/exact.txt", "/tmp/*/draft?.xls"));
+		Assert.assertFalse(matcher.isEmpty());
+
+		Assert.assertTrue(matcher.matches("/tmp/test.doc"));
+		Assert.assertTrue(matcher.matches(".doc"));
+		Assert.assertFalse(matcher.matches("/tmp/testdoc"));
+		Assert.assertFalse(matcher.matches("/tmp.doc/test"));
+
+		Assert.assertTrue(matcher.matches("/tmp/private/"));
+		Assert.assertTrue(matcher.matches("/tmp/private/a/b.txt"));
+		Assert.assertFalse(matcher.matches("/tmp/privat"));
+
+		Assert.assertTrue(matcher.matches("/tmp/exact.txt"));
+		Assert.assertFalse(matcher.matches("/tmp/exact.txt2"));
+
+		Assert.assertTrue(matcher.matches("/tmp/a/draft.xls"));
+		Assert.assertTrue(matcher.matches("/tmp/a/b/draft1.xls"));
+		Assert.assertFalse(matcher.matches("/tmp/a/draft12.xls"));
+	}
+
+	@Test
+	public void regex_rules_are_still_supported() {
+		GlobMatcher matcher = new GlobMatcher(Arrays.asList("*[0-9].txt"));
+		Assert.assertTrue(matcher.matches("/tmp/file1.txt"));
+		Assert.assertFalse(matcher.matches("/tmp/file.txt"));
+	}
+
+	@Test
+	public void same_as_regex() {
+		Random random = new Random(0);
+		String alphabet = "ab./";
+		for (int round = 0; round < 200; round++) {
+			List<String> rules = new ArrayList<String>();
+			for (int i = 0; i < 1 + random.nextInt(4); i++) {
+				rules.add(randomString(random, alphabet + "*?", 1 + random.nextInt(6)));
+			}
+			GlobMatcher matcher = new GlobMatcher(rules);
+
+			for (int i = 0; i < 50; i++) {
+				String path = randomString(random, alphabet, random.nextInt(10));
+				Assert.assertEquals("rules " + rules + " on " + path, matchesRegex(rules, path), matcher.matches(path));
+			}
+		}
+	}
+
+	private static boolean matchesRegex(List<String> rules, String path) {
+		for (String rule : rules) {
+			StringBuilder regex = new StringBuilder();
+			for (char c : rule.toCharArray()) {
+				if (c == '*') regex.append(".*");
+				else if (c == '?') regex.append(".?");
+				else regex.append(Pattern.quote(String.valueOf(c)));
+			}
+			if (path.matches(regex.toString())) return true;
+		}
+		return false;
+	}
+
+	private static String randomString(Random random, String alphabet, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < length; i++) {
+			sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return sb.toString();
+	}
+}
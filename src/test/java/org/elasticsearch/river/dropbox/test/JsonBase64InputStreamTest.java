@@ -0,0 +1,96 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.Random;
+
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.util.JsonBase64InputStream;
+
+public class JsonBase64InputStreamTest {
+
+	private static byte[] randomBytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static String readAll(JsonBase64InputStream is) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[7];
+		int read;
+		while ((read = is.read(buffer)) >= 0) {
+			bos.write(buffer, 0, read);
+		}
+		is.close();
+		return new String(bos.toByteArray(), "US-ASCII");
+	}
+
+	@Test
+	public void encode_like_base64() throws Exception {
+		int[] sizes = { 0, 1, 2, 3, 4, 5, 6, 11, 12, 13, 1000 };
+		for (int size : sizes) {
+			byte[] content = randomBytes(size);
+			String json = readAll(new JsonBase64InputStream(new ByteArrayInputStream(content), 6));
+			Assert.assertEquals("size " + size, "\"" + Base64.encodeBytes(content) + "\"", json);
+		}
+
+		// Many default chunks, with a partial one at the end
+		byte[] content = randomBytes(3 * JsonBase64InputStream.DEFAULT_CHUNK_SIZE + 1);
+		Assert.assertEquals("\"" + Base64.encodeBytes(content) + "\"", readAll(new JsonBase64InputStream(new ByteArrayInputStream(content))));
+	}
+
+	@Test
+	public void chunk_size_is_rounded_to_a_multiple_of_3() throws Exception {
+		byte[] content = randomBytes(100);
+		String json = readAll(new JsonBase64InputStream(new ByteArrayInputStream(content), 10));
+		Assert.assertEquals("\"" + Base64.encodeBytes(content) + "\"", json);
+	}
+
+	@Test
+	public void write_in_a_document() throws Exception {
+		byte[] content = randomBytes(200000);
+		XContentBuilder xb = jsonBuilder()
+				.startObject()
+					.field("name", "/test/file.pdf")
+					.startObject("file")
+						.field("_name", "file.pdf")
+						.rawField("content", new JsonBase64InputStream(new ByteArrayInputStream(content)))
+					.endObject()
+				.endObject();
+
+		byte[] json = xb.bytes().toBytes();
+		Map<String, Object> map = XContentHelper.convertToMap(json, 0, json.length, false).v2();
+		Assert.assertEquals("/test/file.pdf", XContentMapValues.extractValue("name", map));
+		Assert.assertEquals("file.pdf", XContentMapValues.extractValue("file._name", map));
+		Assert.assertArrayEquals(content, Base64.decode((String) XContentMapValues.extractValue("file.content", map)));
+	}
+}
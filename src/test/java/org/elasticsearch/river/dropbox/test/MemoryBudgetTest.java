@@ -0,0 +1,72 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.river.MemoryBudget;
+
+public class MemoryBudgetTest {
+
+	@Test
+	public void estimate_base64_size() {
+		Assert.assertEquals(0, MemoryBudget.estimateBase64Size(0));
+		Assert.assertEquals(4, MemoryBudget.estimateBase64Size(1));
+		Assert.assertEquals(4, MemoryBudget.estimateBase64Size(3));
+		Assert.assertEquals(8, MemoryBudget.estimateBase64Size(4));
+	}
+
+	@Test
+	public void oversized_content_is_accepted_when_empty() throws Exception {
+		MemoryBudget budget = new MemoryBudget(10);
+		budget.acquire(100);
+		Assert.assertEquals(100, budget.getUsed());
+		budget.release(100);
+		Assert.assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void acquire_blocks_until_release() throws Exception {
+		final MemoryBudget budget = new MemoryBudget(10);
+		budget.acquire(8);
+
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					budget.acquire(5);
+					acquired.countDown();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		thread.start();
+
+		Assert.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+		budget.release(8);
+		Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		Assert.assertEquals(5, budget.getUsed());
+	}
+}
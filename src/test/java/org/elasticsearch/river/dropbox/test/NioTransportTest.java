@@ -0,0 +1,243 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.common.util.concurrent.ListenableFuture;
+import org.elasticsearch.river.dropbox.test.utils.FakeDropboxServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxConnector;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxInputStream;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxRequest;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxResponse;
+import fr.pilato.elasticsearch.river.dropbox.connector.NioTransport;
+
+/**
+ * Test the non-blocking transport against the fake Dropbox server and a raw socket server
+ */
+public class NioTransportTest {
+
+	private FakeDropboxServer server;
+	private FakeDropboxServer.Account account;
+	private NioTransport transport;
+
+	@Before
+	public void startServer() throws Exception {
+		account = new FakeDropboxServer.Account("token").files(300).pageSize(100)
+				.sizes(FakeDropboxServer.uniform(0, 20000));
+		server = new FakeDropboxServer().account(account).start();
+		transport = new NioTransport(2, 300);
+	}
+
+	@After
+	public void stopServer() {
+		transport.close();
+		server.stop();
+	}
+
+	private DropboxConnector connector() {
+		return new DropboxConnector("appkey", "appsecret", "token", "secret")
+				.setBaseUrl(server.getUrl())
+				.setTransport(transport);
+	}
+
+	private static byte[] read(InputStream is) throws IOException {
+		List<Byte> bytes = new ArrayList<Byte>();
+		int b;
+		while ((b = is.read()) >= 0) bytes.add((byte) b);
+		byte[] content = new byte[bytes.size()];
+		for (int i = 0; i < content.length; i++) content[i] = bytes.get(i);
+		return content;
+	}
+
+	@Test
+	public void blocking_calls() throws Exception {
+		DropboxConnector dropbox = connector();
+		Assert.assertTrue(dropbox.isAsync());
+		Assert.assertEquals("token@fake.dropbox.local", dropbox.getUserInfo().getEmail());
+		Assert.assertEquals(300, dropbox.getDelta(null).getFiles().size());
+		for (int i = 0; i < 5; i++) {
+			Assert.assertArrayEquals(FakeDropboxServer.content(account, i), dropbox.getFiles("dropbox", account.path(i)));
+		}
+	}
+
+	@Test
+	public void many_downloads_in_flight() throws Exception {
+		// One by one, it would take 30 seconds
+		server.latency(100, 0);
+		DropboxConnector dropbox = connector();
+
+		long start = System.nanoTime();
+		List<ListenableFuture<DropboxInputStream>> downloads = new ArrayList<ListenableFuture<DropboxInputStream>>();
+		for (int i = 0; i < account.getFiles(); i++) {
+			downloads.add(dropbox.getFileAsync("dropbox", account.path(i)));
+		}
+		for (int i = 0; i < downloads.size(); i++) {
+			DropboxInputStream file = downloads.get(i).get(30, TimeUnit.SECONDS);
+			Assert.assertArrayEquals(FakeDropboxServer.content(account, i), read(file));
+			Assert.assertEquals(account.size(i), file.getTotalRead());
+		}
+		Assert.assertTrue("downloads took too long", System.nanoTime() - start < TimeUnit.SECONDS.toNanos(15));
+		Assert.assertEquals(300, server.getDownloads());
+
+		int threads = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("dropbox_nio[")) threads++;
+		}
+		Assert.assertEquals(2, threads);
+	}
+
+	@Test
+	public void errors() throws Exception {
+		try {
+			connector().getFileAsync("dropbox", "/folder1/unknown.txt").get();
+			Assert.fail("unknown file should fail");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause().getMessage().contains("404"));
+		}
+
+		DropboxConnector unreachable = new DropboxConnector("appkey", "appsecret", "token", "secret")
+				.setBaseUrl("http://localhost:1")
+				.setTransport(transport);
+		try {
+			unreachable.getFileAsync("dropbox", account.path(0)).get();
+			Assert.fail("nobody listens on port 1");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause().getMessage().contains("Can not reach Dropbox"));
+		}
+
+		DropboxConnector unknown = new DropboxConnector("appkey", "appsecret", "token", "secret")
+				.setBaseUrl("http://unknown.host.invalid")
+				.setTransport(transport);
+		try {
+			unknown.getFileAsync("dropbox", account.path(0)).get();
+			Assert.fail("unknown host should fail");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(e.getCause().getCause() instanceof UnknownHostException);
+		}
+	}
+
+	@Test
+	public void async_transport_for_downloads_only() throws Exception {
+		// API calls and streamed downloads keep the blocking transport
+		DropboxConnector dropbox = new DropboxConnector("appkey", "appsecret", "token", "secret")
+				.setBaseUrl(server.getUrl())
+				.setAsyncTransport(transport);
+		Assert.assertTrue(dropbox.isAsync());
+		Assert.assertEquals(300, dropbox.getDelta(null).getFiles().size());
+		Assert.assertArrayEquals(FakeDropboxServer.content(account, 1), read(dropbox.getFileStream("dropbox", account.path(1))));
+		Assert.assertArrayEquals(FakeDropboxServer.content(account, 2), read(dropbox.getFileAsync("dropbox", account.path(2)).get()));
+	}
+
+	@Test
+	public void chunked_responses_and_keep_alive() throws Exception {
+		final AtomicInteger connections = new AtomicInteger();
+		final ServerSocket socket = new ServerSocket(0);
+		Thread raw = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// The first connection gets two responses, then the server drops it
+					Socket first = socket.accept();
+					connections.incrementAndGet();
+					readRequest(first.getInputStream());
+					write(first, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\n\r\n");
+					readRequest(first.getInputStream());
+					write(first, "HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\nbye");
+					first.close();
+
+					Socket second = socket.accept();
+					connections.incrementAndGet();
+					readRequest(second.getInputStream());
+					write(second, "HTTP/1.0 200 OK\r\n\r\nuntil close");
+					second.close();
+				} catch (IOException e) {
+					// Test will fail
+				}
+			}
+		});
+		raw.setDaemon(true);
+		raw.start();
+
+		// One event loop and one connection: every request goes to the same connection
+		NioTransport single = new NioTransport(1, 1);
+		try {
+			String url = "http://localhost:" + socket.getLocalPort() + "/";
+			Assert.assertEquals("hello world", single.execute(new DropboxRequest("GET", url)).getBody());
+			Assert.assertEquals("bye", single.execute(new DropboxRequest("GET", url)).getBody());
+			// A dropped kept alive connection is replaced
+			DropboxResponse last = single.execute(new DropboxRequest("GET", url));
+			Assert.assertEquals(200, last.getCode());
+			Assert.assertEquals("until close", last.getBody());
+			Assert.assertEquals(2, connections.get());
+		} finally {
+			single.close();
+			socket.close();
+		}
+	}
+
+	@Test
+	public void read_timeout() throws Exception {
+		final ServerSocket socket = new ServerSocket(0);
+		try {
+			// Nobody answers
+			DropboxRequest request = new DropboxRequest("GET", "http://localhost:" + socket.getLocalPort() + "/")
+					.setReadTimeout(500);
+			transport.execute(request);
+			Assert.fail("request should time out");
+		} catch (SocketTimeoutException e) {
+			Assert.assertTrue(e.getMessage().contains("Read timed out"));
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void readRequest(InputStream is) throws IOException {
+		int matched = 0;
+		byte[] end = "\r\n\r\n".getBytes("ISO-8859-1");
+		while (matched < end.length) {
+			int b = is.read();
+			if (b < 0) throw new IOException("Request not complete");
+			matched = b == end[matched] ? matched + 1 : (b == end[0] ? 1 : 0);
+		}
+	}
+
+	private static void write(Socket socket, String response) throws IOException {
+		OutputStream os = socket.getOutputStream();
+		os.write(response.getBytes("ISO-8859-1"));
+		os.flush();
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxRequest;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxResponse;
+import fr.pilato.elasticsearch.river.dropbox.connector.NioTransport;
+
+/**
+ * Test the non-blocking transport over HTTPS against a server using a self-signed certificate for localhost
+ */
+public class NioTransportTlsTest {
+
+	private SSLContext context;
+	private SSLServerSocket socket;
+	private NioTransport transport;
+	private final AtomicInteger connections = new AtomicInteger();
+
+	@Before
+	public void loadCertificate() throws Exception {
+		KeyStore keystore = KeyStore.getInstance("JKS");
+		InputStream is = NioTransportTlsTest.class.getResourceAsStream("/localhost.jks");
+		try {
+			keystore.load(is, "changeit".toCharArray());
+		} finally {
+			is.close();
+		}
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(keystore, "changeit".toCharArray());
+		TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trust.init(keystore);
+		context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+
+		socket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+		// One event loop and one connection: every request goes to the same connection
+		transport = new NioTransport(1, 1, context);
+	}
+
+	@After
+	public void stopServer() throws IOException {
+		transport.close();
+		socket.close();
+	}
+
+	@Test
+	public void full_download() throws Exception {
+		// Much larger than a TLS record: the body comes in many reads, records split between them
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; body.length() < 1024 * 1024; i++) body.append(i).append(',');
+		serve("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body);
+
+		DropboxResponse response = transport.execute(request("localhost"));
+		Assert.assertEquals(200, response.getCode());
+		Assert.assertEquals(body.toString(), response.getBody());
+	}
+
+	@Test
+	public void chunked_body_and_reused_connection() throws Exception {
+		serve("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n",
+				"HTTP/1.1 200 OK\r\nContent-Length: 3\r\n\r\nbye");
+
+		Assert.assertEquals("hello world", transport.execute(request("localhost")).getBody());
+		Assert.assertEquals("bye", transport.execute(request("localhost")).getBody());
+		Assert.assertEquals(1, connections.get());
+	}
+
+	@Test
+	public void body_ending_with_close_notify() throws Exception {
+		serve("HTTP/1.0 200 OK\r\n\r\nuntil close");
+
+		Assert.assertEquals("until close", transport.execute(request("localhost")).getBody());
+	}
+
+	@Test
+	public void wrong_host_certificate() throws Exception {
+		serve("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+
+		// Same server, but the certificate is for localhost only
+		try {
+			transport.execute(request("127.0.0.1"));
+			Assert.fail("the certificate does not match the host name");
+		} catch (IOException e) {
+			Throwable cause = e;
+			while (cause != null && !(cause instanceof SSLException)) cause = cause.getCause();
+			Assert.assertNotNull("not a TLS failure: " + e, cause);
+		}
+	}
+
+	private DropboxRequest request(String host) {
+		return new DropboxRequest("GET", "https://" + host + ":" + socket.getLocalPort() + "/").setReadTimeout(10000);
+	}
+
+	/**
+	 * Answer requests with the responses, in order. HTTP/1.0 responses end with the connection.
+	 */
+	private void serve(final String... responses) {
+		Thread server = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int next = 0;
+				try {
+					while (next < responses.length) {
+						Socket client = socket.accept();
+						connections.incrementAndGet();
+						try {
+							while (next < responses.length) {
+								readRequest(client.getInputStream());
+								String response = responses[next++];
+								write(client, response);
+								if (response.startsWith("HTTP/1.0")) break;
+							}
+						} catch (IOException e) {
+							// Handshake failed, the client may try again
+						} finally {
+							client.close();
+						}
+					}
+				} catch (IOException e) {
+					// Server socket closed
+				}
+			}
+		});
+		server.setDaemon(true);
+		server.start();
+	}
+
+	private static void readRequest(InputStream is) throws IOException {
+		int matched = 0;
+		byte[] end = "\r\n\r\n".getBytes("ISO-8859-1");
+		while (matched < end.length) {
+			int b = is.read();
+			if (b < 0) throw new IOException("Request not complete");
+			matched = b == end[matched] ? matched + 1 : (b == end[0] ? 1 : 0);
+		}
+	}
+
+	private static void write(Socket socket, String response) throws IOException {
+		OutputStream os = socket.getOutputStream();
+		os.write(response.getBytes("ISO-8859-1"));
+		os.flush();
+	}
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.scribe.extractors.BaseStringExtractorImpl;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+import org.scribe.services.HMACSha1SignatureService;
+
+import fr.pilato.elasticsearch.river.dropbox.connector.OAuthSigner;
+
+/**
+ * Our signatures must be the ones scribe computes
+ */
+public class OAuthSignerTest {
+
+	private static final Pattern SIGNATURE = Pattern.compile("oauth_signature=\"([^\"]*)\"");
+
+	private static String scribeSignature(Verb verb, String url, Map<String, String> form, long timestamp, String nonce) {
+		OAuthRequest request = new OAuthRequest(verb, url);
+		if (form != null) {
+			for (Map.Entry<String, String> parameter : form.entrySet()) {
+				request.addBodyParameter(parameter.getKey(), parameter.getValue());
+			}
+		}
+		request.addOAuthParameter("oauth_consumer_key", "appkey");
+		request.addOAuthParameter("oauth_nonce", nonce);
+		request.addOAuthParameter("oauth_signature_method", "HMAC-SHA1");
+		request.addOAuthParameter("oauth_timestamp", String.valueOf(timestamp));
+		request.addOAuthParameter("oauth_token", "token");
+		request.addOAuthParameter("oauth_version", "1.0");
+		String baseString = new BaseStringExtractorImpl().extract(request);
+		return new HMACSha1SignatureService().getSignature(baseString, "app secret", "token/secret");
+	}
+
+	private static String signature(String header) throws Exception {
+		Matcher matcher = SIGNATURE.matcher(header);
+		Assert.assertTrue(header, matcher.find());
+		return URLDecoder.decode(matcher.group(1), "UTF-8");
+	}
+
+	@Test
+	public void post_with_form_parameters() throws Exception {
+		OAuthSigner signer = new OAuthSigner("appkey", "app secret", "token", "token/secret");
+		Map<String, String> form = new LinkedHashMap<String, String>();
+		form.put("path_prefix", "/My Documents/\u00e9t\u00e9");
+		form.put("cursor", "AAF~x*y+z");
+
+		String header = signer.sign("POST", "https://api.dropbox.com/1/delta", form, 1380000000L, "1380001234");
+		Assert.assertTrue(header.startsWith("OAuth "));
+		Assert.assertTrue(header.contains("oauth_token=\"token\""));
+		Assert.assertEquals(scribeSignature(Verb.POST, "https://api.dropbox.com/1/delta", form, 1380000000L, "1380001234"),
+				signature(header));
+	}
+
+	@Test
+	public void get_with_query_string() throws Exception {
+		OAuthSigner signer = new OAuthSigner("appkey", "app secret", "token", "token/secret");
+		String url = "https://api-notify.dropbox.com/1/longpoll_delta?cursor=AAF%7Ex&timeout=30";
+
+		String header = signer.sign("GET", url, null, 1380000000L, "42");
+		Assert.assertEquals(scribeSignature(Verb.GET, url, null, 1380000000L, "42"), signature(header));
+	}
+
+	@Test
+	public void get_with_encoded_path() throws Exception {
+		OAuthSigner signer = new OAuthSigner("appkey", "app secret", "token", "token/secret");
+		String url = "https://api-content.dropbox.com/1/files/dropbox/My%20Documents/r%C3%A9sum%C3%A9.pdf";
+
+		String header = signer.sign("GET", url, null, 1380000000L, "42");
+		Assert.assertEquals(scribeSignature(Verb.GET, url, null, 1380000000L, "42"), signature(header));
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.river.dropbox.test.utils.FakeDropboxServer;
+import org.elasticsearch.river.dropbox.test.utils.LocalNodes;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.river.AccountStatistics;
+import fr.pilato.elasticsearch.river.dropbox.river.AccountStatistics.Counter;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Test that documents elasticsearch will never accept do not keep the cursor back
+ */
+public class RejectedDocumentsTest {
+
+	private static final int FILES = 30;
+
+	private Node node;
+	private FakeDropboxServer server;
+
+	@Before
+	public void start() throws Exception {
+		FakeDropboxServer.Account account = new FakeDropboxServer.Account("token").files(FILES).pageSize(10)
+				.sizes(FakeDropboxServer.uniform(10, 2000));
+		server = new FakeDropboxServer().account(account).start();
+		node = LocalNodes.start("dropbox-rejected-test", null, "./target/es-rejected");
+	}
+
+	@After
+	public void stop() {
+		LocalNodes.stop(node);
+		if (server != null) server.stop();
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void mapping_conflicts_are_acknowledged() throws Exception {
+		// File names are not numbers: every document fails, whatever the cycle
+		Client client = node.client();
+		client.admin().indices().prepareCreate("docs").addMapping("doc", jsonBuilder().startObject()
+				.startObject("doc").startObject("properties")
+					.startObject("name").field("type", "long").endObject()
+				.endObject().endObject()
+			.endObject()).execute().actionGet();
+
+		client.prepareIndex("_river", "rejected", "_meta").setSource(jsonBuilder().startObject()
+				.field("type", "dropbox")
+				.startObject("dropbox")
+					.field("appkey", "appkey").field("appsecret", "appsecret")
+					.field("token", "token").field("secret", "secret")
+					.field("base_url", server.getUrl())
+					.field("update_rate", 3600000)
+				.endObject()
+				.startObject("index")
+					.field("index", "docs")
+					.field("flush_interval", "100ms")
+				.endObject()
+			.endObject()).execute().actionGet();
+
+		AccountStatistics.Snapshot scan = LocalNodes.awaitScan(node, "rejected");
+		Assert.assertEquals(FILES, scan.get(Counter.BULK_FAILED));
+		Assert.assertEquals(0, scan.get(Counter.BULK_SUCCEEDED));
+
+		// The cursor moves past the rejected files
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		Object cursor = null;
+		while (cursor == null && System.nanoTime() < deadline) {
+			GetResponse state = client.prepareGet("_river", "rejected", "_cursor").setRealtime(true).execute().actionGet();
+			if (state.isExists()) cursor = ((Map<String, Object>) state.getSourceAsMap().get("dropbox")).get("cursor");
+			if (cursor == null) Thread.sleep(100);
+		}
+		Assert.assertNotNull("cursor was not saved", cursor);
+	}
+}
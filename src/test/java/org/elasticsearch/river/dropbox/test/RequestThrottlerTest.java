@@ -0,0 +1,214 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.util.concurrent.ListenableFuture;
+import org.elasticsearch.river.dropbox.test.utils.FakeDropboxServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxConnector;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxInputStream;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxRequest;
+import fr.pilato.elasticsearch.river.dropbox.connector.DropboxThrottledException;
+import fr.pilato.elasticsearch.river.dropbox.connector.NioTransport;
+import fr.pilato.elasticsearch.river.dropbox.connector.RequestThrottler;
+import fr.pilato.elasticsearch.river.dropbox.river.RequestThrottlerService;
+
+/**
+ * Test that we slow down when Dropbox asks us to, and that throttled calls are not lost
+ */
+public class RequestThrottlerTest {
+
+	private FakeDropboxServer server;
+	private FakeDropboxServer.Account account;
+	private final AtomicInteger retries = new AtomicInteger();
+
+	@Before
+	public void startServer() throws Exception {
+		account = new FakeDropboxServer.Account("token").files(60).sizes(FakeDropboxServer.uniform(0, 5000));
+		server = new FakeDropboxServer().account(account).start();
+	}
+
+	@After
+	public void stopServer() {
+		server.stop();
+	}
+
+	private DropboxConnector connector(RequestThrottler throttler) {
+		return new DropboxConnector("appkey", "appsecret", "token", "secret")
+				.setBaseUrl(server.getUrl())
+				.setThrottler(throttler)
+				.setRetryListener(new DropboxConnector.RetryListener() {
+					@Override
+					public void onRetry(DropboxRequest request, int code, long delay) {
+						retries.incrementAndGet();
+					}
+				});
+	}
+
+	@Test
+	public void calls_are_spaced() throws Exception {
+		RequestThrottler throttler = new RequestThrottler(50, 1, 0);
+		long start = System.nanoTime();
+		for (int i = 0; i < 26; i++) {
+			throttler.acquire();
+		}
+		Assert.assertTrue("26 calls at 50 per second take half a second", System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(450));
+	}
+
+	@Test
+	public void retry_after_delays_everybody_and_cuts_the_rate() throws Exception {
+		RequestThrottler throttler = new RequestThrottler(100, 1, 3);
+		throttler.reserve();
+		throttler.onThrottled(300);
+		Assert.assertTrue(throttler.reserve() >= TimeUnit.MILLISECONDS.toNanos(250));
+		Assert.assertTrue(throttler.getRate() <= 50);
+		Assert.assertEquals(1, throttler.getThrottled());
+
+		// Successful calls raise the rate up to the max
+		for (int i = 0; i < 10000; i++) {
+			throttler.onSuccess();
+		}
+		Assert.assertEquals(100, throttler.getRate(), 0.001);
+	}
+
+	@Test
+	public void throttled_calls_are_sent_again() throws Exception {
+		server.rateLimit(20);
+		final RequestThrottler throttler = new RequestThrottler();
+		final DropboxConnector dropbox = connector(throttler);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<byte[]>> downloads = new ArrayList<Future<byte[]>>();
+			for (int i = 0; i < account.getFiles(); i++) {
+				final String path = account.path(i);
+				downloads.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						return dropbox.getFiles("dropbox", path);
+					}
+				}));
+			}
+			for (int i = 0; i < downloads.size(); i++) {
+				Assert.assertArrayEquals(FakeDropboxServer.content(account, i), downloads.get(i).get(60, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		Assert.assertTrue(server.getThrottled() > 0);
+		Assert.assertEquals(server.getThrottled(), retries.get());
+		Assert.assertEquals(server.getThrottled(), throttler.getThrottled());
+		Assert.assertTrue(throttler.getRate() < RequestThrottler.DEFAULT_MAX_RATE);
+	}
+
+	@Test
+	public void throttled_async_downloads_are_sent_again() throws Exception {
+		server.rateLimit(20);
+		NioTransport transport = new NioTransport(1, 100);
+		try {
+			DropboxConnector dropbox = connector(new RequestThrottler()).setTransport(transport);
+			List<ListenableFuture<DropboxInputStream>> downloads = new ArrayList<ListenableFuture<DropboxInputStream>>();
+			for (int i = 0; i < account.getFiles(); i++) {
+				downloads.add(dropbox.getFileAsync("dropbox", account.path(i)));
+			}
+			for (int i = 0; i < downloads.size(); i++) {
+				Assert.assertEquals(account.size(i), downloads.get(i).get(60, TimeUnit.SECONDS).getLength());
+			}
+			Assert.assertEquals(server.getThrottled(), retries.get());
+		} finally {
+			transport.close();
+		}
+	}
+
+	@Test
+	public void long_retry_after_is_honoured() throws Exception {
+		// Longer than the exponential backoff ever waits
+		Assert.assertTrue(retryAfterWait(120) >= TimeUnit.SECONDS.toNanos(110));
+		Assert.assertTrue(retryAfterWait(120) <= TimeUnit.SECONDS.toNanos(120));
+		// Up to 10 minutes
+		Assert.assertTrue(retryAfterWait(86400) >= TimeUnit.MINUTES.toNanos(9));
+		Assert.assertTrue(retryAfterWait(86400) <= TimeUnit.MINUTES.toNanos(10));
+	}
+
+	/**
+	 * @return how long the next call waits once Dropbox answered with this Retry-After, in nanoseconds
+	 */
+	private long retryAfterWait(int seconds) throws Exception {
+		server.rateLimit(1).retryAfter(seconds);
+		RequestThrottler throttler = new RequestThrottler(100, 1, 0);
+		DropboxConnector dropbox = connector(throttler);
+		try {
+			for (int i = 0; i < 2; i++) {
+				dropbox.getUserInfo();
+			}
+			Assert.fail("second call in the same second is throttled");
+		} catch (DropboxThrottledException e) {
+			Assert.assertEquals(429, e.getCode());
+		}
+		// Next window of the fake server
+		Thread.sleep(1000);
+		return throttler.reserve();
+	}
+
+	@Test
+	public void we_give_up_after_max_retries() throws Exception {
+		server.errorRate(1);
+		try {
+			connector(new RequestThrottler(100, 1, 1)).getUserInfo();
+			Assert.fail("Dropbox always fails");
+		} catch (DropboxThrottledException e) {
+			Assert.assertEquals(503, e.getCode());
+		}
+		Assert.assertEquals(2, server.getErrors());
+		Assert.assertEquals(1, retries.get());
+	}
+
+	@Test
+	public void rivers_share_throttlers_by_app_key() {
+		RequestThrottlerService service = new RequestThrottlerService(ImmutableSettings.settingsBuilder()
+				.put("dropbox.throttle.max_rate", 10).build());
+		RequestThrottler throttler = service.acquire("app1");
+		Assert.assertSame(throttler, service.acquire("app1"));
+		Assert.assertNotSame(throttler, service.acquire("app2"));
+		Assert.assertEquals(10, throttler.getMaxRate(), 0.001);
+
+		service.release("app1");
+		Assert.assertSame(throttler, service.acquire("app1"));
+		service.release("app1");
+		service.release("app1");
+		Assert.assertNotSame(throttler, service.acquire("app1"));
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.internal.InternalNode;
+import org.elasticsearch.river.dropbox.test.utils.LocalNodes;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.river.RiverMetrics;
+import fr.pilato.elasticsearch.river.dropbox.river.RiverMetrics.Phase;
+import fr.pilato.elasticsearch.river.dropbox.river.RiverMetricsService;
+import fr.pilato.elasticsearch.river.dropbox.util.LatencyHistogram;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+public class RiverMetricsTest {
+
+	private static Node node1;
+	private static Node node2;
+
+	@BeforeClass
+	public static void startNodes() {
+		node1 = LocalNodes.start("dropbox-metrics-test", "node1", "./target/es-metrics");
+		node2 = LocalNodes.start("dropbox-metrics-test", "node2", "./target/es-metrics");
+		node1.client().admin().cluster().prepareHealth().setWaitForNodes("2").setWaitForYellowStatus().execute().actionGet();
+	}
+
+	@AfterClass
+	public static void stopNodes() {
+		LocalNodes.stop(node1, node2);
+	}
+
+	private static RiverMetricsService service(Node node) {
+		return ((InternalNode) node).injector().getInstance(RiverMetricsService.class);
+	}
+
+	private static Map<String, Object> stats(Node node, String river) throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicReference<Object> result = new AtomicReference<Object>();
+		service(node).stats(river, new ActionListener<BytesReference>() {
+			@Override
+			public void onResponse(BytesReference stats) {
+				result.set(stats);
+				latch.countDown();
+			}
+
+			@Override
+			public void onFailure(Throwable e) {
+				result.set(e);
+				latch.countDown();
+			}
+		});
+		Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+		if (result.get() instanceof Throwable) throw new Exception((Throwable) result.get());
+		if (result.get() == null) return null;
+		return XContentHelper.convertToMap((BytesReference) result.get(), true).v2();
+	}
+
+	@Test
+	public void histogram_percentiles_are_upper_bounds() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		Assert.assertEquals(0, histogram.percentile(99));
+
+		for (int i = 0; i < 90; i++) histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+		for (int i = 0; i < 10; i++) histogram.record(TimeUnit.MILLISECONDS.toNanos(50));
+
+		Assert.assertEquals(100, histogram.getCount());
+		Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(50), histogram.getMax());
+		// 100 micros are in the [64, 128[ bucket
+		Assert.assertEquals(TimeUnit.MICROSECONDS.toNanos(128), histogram.percentile(50));
+		Assert.assertEquals(TimeUnit.MICROSECONDS.toNanos(128), histogram.percentile(90));
+		// Never more than the max
+		Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(50), histogram.percentile(99));
+	}
+
+	@Test
+	public void phases_are_rendered() throws Exception {
+		RiverMetrics metrics = new RiverMetrics("render");
+		metrics.phase(Phase.DOWNLOAD).record(1, 1024, TimeUnit.MILLISECONDS.toNanos(3));
+		metrics.phase(Phase.DOWNLOAD).record(1, 2048, TimeUnit.MILLISECONDS.toNanos(5));
+		metrics.phase(Phase.DOWNLOAD).failed(1);
+
+		Map<String, Object> map = XContentHelper.convertToMap(
+				metrics.toXContent(jsonBuilder().startObject(), null).endObject().bytes(), true).v2();
+		Assert.assertEquals("render", map.get("river"));
+		Assert.assertEquals(2, XContentMapValues.extractValue("phases.download.count", map));
+		Assert.assertEquals(3072, XContentMapValues.extractValue("phases.download.bytes", map));
+		Assert.assertEquals(1, XContentMapValues.extractValue("phases.download.failures", map));
+		Assert.assertEquals(8, XContentMapValues.extractValue("phases.download.time_in_millis", map));
+		Assert.assertEquals(5.0, XContentMapValues.extractValue("phases.download.latency_in_millis.max", map));
+		Assert.assertEquals(0, XContentMapValues.extractValue("phases.bulk.count", map));
+	}
+
+	@Test
+	public void unknown_river_has_no_stats() throws Exception {
+		Assert.assertNull(stats(node1, "unknown"));
+	}
+
+	@Test
+	public void stats_are_read_from_the_node_running_the_river() throws Exception {
+		// The river runs on node2, as rivers service would say in _status
+		RiverMetrics metrics = service(node2).register("remote");
+		metrics.phase(Phase.BULK).record(100, 4096, TimeUnit.MILLISECONDS.toNanos(20));
+		String nodeId = ((InternalNode) node2).injector()
+				.getInstance(ClusterService.class).localNode().id();
+		node1.client().prepareIndex("_river", "remote", "_status")
+				.setSource(jsonBuilder().startObject().startObject("node").field("id", nodeId).endObject().endObject())
+				.execute().actionGet();
+
+		Assert.assertNull(service(node1).get("remote"));
+		Map<String, Object> stats = stats(node1, "remote");
+		Assert.assertNotNull(stats);
+		Assert.assertEquals("node2", XContentMapValues.extractValue("node.name", stats));
+		Assert.assertEquals(100, XContentMapValues.extractValue("phases.bulk.items", stats));
+
+		// Once the river is closed, we have nothing to say
+		service(node2).unregister(metrics);
+		Assert.assertNull(stats(node1, "remote"));
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.river.dropbox.test.utils.LocalNodes;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.river.RiverStateStore;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+public class RiverStateStoreTest {
+
+	private static Node node;
+
+	@BeforeClass
+	public static void startNode() {
+		node = LocalNodes.start("dropbox-state-test", null, "./target/es-state");
+	}
+
+	@AfterClass
+	public static void stopNode() {
+		LocalNodes.stop(node);
+	}
+
+	private static Map<String, Object> state(String cursor) {
+		Map<String, Object> state = new HashMap<String, Object>();
+		state.put("cursor", cursor);
+		state.put("path_prefix", "/tmp");
+		return state;
+	}
+
+	@Test
+	public void state_is_saved_and_cached() throws Exception {
+		Client client = node.client();
+		RiverStateStore store = new RiverStateStore(client, "cached");
+
+		Assert.assertFalse(store.get("_cursor").exists());
+		Assert.assertTrue(store.put("_cursor", state("c1")));
+		Assert.assertTrue(store.put("_cursor", state("c2")));
+
+		// A new store reads it with a realtime get: no refresh needed
+		RiverStateStore other = new RiverStateStore(client, "cached");
+		RiverStateStore.State state = other.get("_cursor");
+		Assert.assertTrue(state.exists());
+		Assert.assertEquals("c2", state.getCursor());
+		Assert.assertEquals("/tmp", state.getPathPrefix());
+		Assert.assertEquals(2, state.getVersion());
+
+		// Next reads come from memory
+		client.prepareDelete("_river", "cached", "_cursor").execute().actionGet();
+		Assert.assertEquals("c2", store.get("_cursor").getCursor());
+	}
+
+	@Test
+	public void external_changes_are_never_overwritten() throws Exception {
+		Client client = node.client();
+		RiverStateStore store = new RiverStateStore(client, "external");
+		store.get("_cursor");
+		Assert.assertTrue(store.put("_cursor", state("c1")));
+
+		// Someone resets the cursor
+		client.prepareIndex("_river", "external", "_cursor")
+				.setSource(jsonBuilder().startObject().startObject("dropbox").field("cursor", "reset").endObject().endObject())
+				.execute().actionGet();
+
+		Assert.assertFalse(store.put("_cursor", state("c2")));
+		Assert.assertFalse(store.put("_cursor", state("c3")));
+		Assert.assertEquals("reset", store.get("_cursor").getCursor());
+
+		// Once read again, we can save it
+		Assert.assertTrue(store.put("_cursor", state("c4")));
+		Assert.assertEquals("c4", new RiverStateStore(client, "external").get("_cursor").getCursor());
+	}
+
+	@Test
+	public void external_changes_are_seen_on_revalidate() throws Exception {
+		Client client = node.client();
+		RiverStateStore store = new RiverStateStore(client, "revalidated");
+		store.get("_cursor");
+		Assert.assertTrue(store.put("_cursor", state("c1")));
+		RiverStateStore.State known = store.revalidate("_cursor");
+		Assert.assertEquals("c1", known.getCursor());
+		Assert.assertSame(known, store.revalidate("_cursor"));
+
+		// Someone resets the cursor
+		client.prepareDelete("_river", "revalidated", "_cursor").execute().actionGet();
+		Assert.assertFalse(store.revalidate("_cursor").exists());
+		Assert.assertTrue(store.put("_cursor", state("c2")));
+
+		// Or changes it
+		client.prepareIndex("_river", "revalidated", "_cursor")
+				.setSource(jsonBuilder().startObject().startObject("dropbox").field("cursor", "edited").endObject().endObject())
+				.execute().actionGet();
+		Assert.assertEquals("edited", store.revalidate("_cursor").getCursor());
+		Assert.assertTrue(store.put("_cursor", state("c3")));
+		Assert.assertEquals("c3", new RiverStateStore(client, "revalidated").get("_cursor").getCursor());
+	}
+
+	@Test
+	public void removed_state_is_not_created_again() throws Exception {
+		Client client = node.client();
+		RiverStateStore store = new RiverStateStore(client, "removed");
+		store.get("_cursor");
+		Assert.assertTrue(store.put("_cursor", state("c1")));
+
+		client.prepareDelete("_river", "removed", "_cursor").execute().actionGet();
+
+		Assert.assertFalse(store.put("_cursor", state("c2")));
+		Assert.assertFalse(new RiverStateStore(client, "removed").get("_cursor").exists());
+		Assert.assertFalse(store.get("_cursor").exists());
+	}
+}
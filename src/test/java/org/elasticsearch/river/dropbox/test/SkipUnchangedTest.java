@@ -0,0 +1,125 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.dropbox.test;
+
+import java.util.Map;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.river.dropbox.test.utils.FakeDropboxServer;
+import org.elasticsearch.river.dropbox.test.utils.LocalNodes;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import fr.pilato.elasticsearch.river.dropbox.river.AccountStatistics;
+import fr.pilato.elasticsearch.river.dropbox.river.AccountStatistics.Counter;
+import fr.pilato.elasticsearch.river.dropbox.river.DocumentIdStrategies;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Test that a full scan of an account already indexed downloads nothing
+ */
+public class SkipUnchangedTest {
+
+	private static final int FILES = 50;
+
+	private Node node;
+	private FakeDropboxServer server;
+	private FakeDropboxServer.Account account;
+
+	@Before
+	public void start() throws Exception {
+		account = new FakeDropboxServer.Account("token").files(FILES).pageSize(20).sizes(FakeDropboxServer.uniform(10, 2000));
+		server = new FakeDropboxServer().account(account).start();
+		node = LocalNodes.start("dropbox-skip-test", null, "./target/es-skip");
+	}
+
+	@After
+	public void stop() {
+		LocalNodes.stop(node);
+		if (server != null) server.stop();
+	}
+
+	private XContentBuilder river() throws Exception {
+		return jsonBuilder().startObject()
+				.field("type", "dropbox")
+				.startObject("dropbox")
+					.field("appkey", "appkey").field("appsecret", "appsecret")
+					.field("token", "token").field("secret", "secret")
+					.field("base_url", server.getUrl())
+					.field("update_rate", 3600000)
+				.endObject()
+				.startObject("index")
+					.field("index", "docs")
+					.field("flush_interval", "100ms")
+				.endObject()
+			.endObject();
+	}
+
+	private AccountStatistics.Snapshot awaitScan(String river) throws Exception {
+		return LocalNodes.awaitScan(node, river);
+	}
+
+	@Test
+	public void unchanged_files_are_not_downloaded_again() throws Exception {
+		Client client = node.client();
+		client.prepareIndex("_river", "first", "_meta").setSource(river()).execute().actionGet();
+		Assert.assertEquals(FILES, awaitScan("first").get(Counter.FILES));
+		Assert.assertEquals(FILES, server.getDownloads());
+
+		String id = DocumentIdStrategies.forName(null).id(account.path(1));
+		GetResponse doc = client.prepareGet("docs", "doc", id).setFields("rev", "bytes").execute().actionGet();
+		Assert.assertEquals(account.rev(1), doc.getField("rev").getValue());
+		Assert.assertEquals(account.size(1), ((Number) doc.getField("bytes").getValue()).longValue());
+
+		// Another river starts from scratch on the same index
+		client.prepareIndex("_river", "second", "_meta").setSource(river()).execute().actionGet();
+		AccountStatistics.Snapshot scan = awaitScan("second");
+		Assert.assertEquals(FILES, scan.get(Counter.UNCHANGED));
+		Assert.assertEquals(0, scan.get(Counter.FILES));
+		Assert.assertEquals(FILES, server.getDownloads());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void existing_mappings_get_stored_fields() throws Exception {
+		// Mapping created by an older version of the river
+		Client client = node.client();
+		client.admin().indices().prepareCreate("docs").addMapping("doc", jsonBuilder().startObject()
+				.startObject("doc").startObject("properties")
+					.startObject("name").field("type", "string").field("analyzer", "keyword").endObject()
+				.endObject().endObject()
+			.endObject()).execute().actionGet();
+
+		client.prepareIndex("_river", "first", "_meta").setSource(river()).execute().actionGet();
+		Assert.assertEquals(FILES, awaitScan("first").get(Counter.FILES));
+
+		Map<String, Object> properties = (Map<String, Object>) client.admin().cluster().prepareState().execute().actionGet()
+				.getState().getMetaData().index("docs").mapping("doc").sourceAsMap().get("properties");
+		Assert.assertEquals(true, ((Map<String, Object>) properties.get("rev")).get("store"));
+		Assert.assertEquals(true, ((Map<String, Object>) properties.get("bytes")).get("store"));
+	}
+}
@@ -0,0 +1,674 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.dropbox.test.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Local stand-in for the Dropbox API, to test or load test the river without a Dropbox account.
+ * <br>Serves <code>/1/account/info</code>, <code>/1/delta</code>, <code>/1/longpoll_delta</code> and
+ * <code>/1/files/dropbox/...</code> for generated accounts. Files are never stored: paths, sizes and
+ * contents are computed from the file number, so an account can hold millions of files.
+ * <br>Give {@link #getUrl()} to {@link fr.pilato.elasticsearch.river.dropbox.connector.DropboxConnector#setBaseUrl(String)}
+ * or to the river <code>base_url</code> setting.
+ * <pre>
+ * FakeDropboxServer server = new FakeDropboxServer()
+ *     .account(new FakeDropboxServer.Account("token").files(100000).sizes(FakeDropboxServer.logNormal(100 * 1024, 1.5)))
+ *     .latency(20, 10)
+ *     .errorRate(0.01)
+ *     .start();
+ * </pre>
+ */
+public class FakeDropboxServer {
+
+	/**
+	 * How big generated files are
+	 */
+	public interface FileSizes {
+		long size(Random random);
+	}
+
+	public static FileSizes fixed(final long bytes) {
+		return new FileSizes() {
+			@Override
+			public long size(Random random) {
+				return bytes;
+			}
+		};
+	}
+
+	public static FileSizes uniform(final long min, final long max) {
+		return new FileSizes() {
+			@Override
+			public long size(Random random) {
+				return min + (long) (random.nextDouble() * (max - min));
+			}
+		};
+	}
+
+	/**
+	 * Many small files and a few big ones, like a real account
+	 * @param median Median size in bytes
+	 * @param sigma Spread, 1.5 to 2 looks like real life
+	 */
+	public static FileSizes logNormal(final long median, final double sigma) {
+		final double mu = Math.log(median);
+		return new FileSizes() {
+			@Override
+			public long size(Random random) {
+				return (long) Math.exp(mu + sigma * random.nextGaussian());
+			}
+		};
+	}
+
+	/**
+	 * Notified when a file download starts
+	 */
+	public interface DownloadListener {
+		void onDownload(String path, long bytes);
+	}
+
+	/**
+	 * A generated Dropbox account. File <code>i</code> is <code>/folder{i % folders}/file-{i}.{ext}</code>.
+	 */
+	public static class Account {
+		// Content is text, so every file can be parsed by the attachment mapper
+		private static final String[] EXTENSIONS = { "txt", "csv", "log", "html" };
+		private static final String[] MIME_TYPES = { "text/plain", "text/csv", "text/plain", "text/html" };
+		private static final int TEXT_SIZE = 64 * 1024;
+
+		private final String token;
+		private volatile int files = 100;
+		private int pageSize = 2000;
+		private int folders = 10;
+		private long seed = 0;
+		private FileSizes sizes = fixed(1024);
+		private byte[] text;
+
+		/**
+		 * @param token OAuth token of this account, null for the account used with unknown tokens
+		 */
+		public Account(String token) {
+			this.token = token;
+		}
+
+		public Account files(int files) {
+			this.files = files;
+			return this;
+		}
+
+		/**
+		 * Number of entries per /delta page. Dropbox sends about 2000.
+		 */
+		public Account pageSize(int pageSize) {
+			this.pageSize = pageSize;
+			return this;
+		}
+
+		public Account folders(int folders) {
+			this.folders = folders;
+			return this;
+		}
+
+		public Account seed(long seed) {
+			this.seed = seed;
+			this.text = null;
+			return this;
+		}
+
+		public Account sizes(FileSizes sizes) {
+			this.sizes = sizes;
+			return this;
+		}
+
+		/**
+		 * Create new files: next /delta calls will send them
+		 */
+		public synchronized Account addFiles(int count) {
+			files += count;
+			return this;
+		}
+
+		public int getFiles() {
+			return files;
+		}
+
+		public String path(int i) {
+			return "/folder" + (i % folders) + "/file-" + i + "." + EXTENSIONS[i % EXTENSIONS.length];
+		}
+
+		public String rev(int i) {
+			return Integer.toHexString(i + 1) + "0b7a3b9e";
+		}
+
+		public long size(int i) {
+			return Math.max(0, sizes.size(new Random(seed * 31 + i)));
+		}
+
+		/**
+		 * @return total size of the account files in bytes
+		 */
+		public long totalSize() {
+			long total = 0;
+			for (int i = 0; i < files; i++) total += size(i);
+			return total;
+		}
+
+		/**
+		 * Write the content of a file
+		 * @param i File number
+		 * @param os Where to write
+		 * @return number of bytes written
+		 */
+		public long writeContent(int i, OutputStream os) throws IOException {
+			return writeContent(i, os, 0, size(i));
+		}
+
+		/**
+		 * Write a part of the content of a file
+		 * @param i File number
+		 * @param os Where to write
+		 * @param from First byte
+		 * @param to Byte after the last one
+		 * @return number of bytes written
+		 */
+		public long writeContent(int i, OutputStream os, long from, long to) throws IOException {
+			byte[] text = text();
+			long remaining = to - from;
+			int offset = (int) ((i * 7919L + from) % text.length);
+			while (remaining > 0) {
+				int length = (int) Math.min(text.length - offset, remaining);
+				os.write(text, offset, length);
+				remaining -= length;
+				offset = 0;
+			}
+			return Math.max(0, to - from);
+		}
+
+		/**
+		 * Files are made of random words, read from a text block built once
+		 */
+		private synchronized byte[] text() {
+			if (text == null) {
+				Random random = new Random(seed);
+				byte[] block = new byte[TEXT_SIZE];
+				for (int j = 0; j < block.length; j++) {
+					int r = random.nextInt(34);
+					block[j] = (byte) (r < 26 ? 'a' + r : r < 33 ? ' ' : '\n');
+				}
+				text = block;
+			}
+			return text;
+		}
+
+		private int fileNumber(String path) {
+			Matcher matcher = FILE.matcher(path);
+			if (!matcher.matches()) return -1;
+			int i = Integer.parseInt(matcher.group(1));
+			return i < files && path(i).equalsIgnoreCase(path) ? i : -1;
+		}
+	}
+
+	private static final Pattern FILE = Pattern.compile(".*/file-(\\d+)\\.[a-z]+");
+	private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-");
+	private static final Pattern TOKEN = Pattern.compile("oauth_token=\"([^\"]*)\"");
+	private static final String CURSOR_PREFIX = "fake-";
+
+	private final Map<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+	private volatile Account defaultAccount = new Account(null);
+	private final Random random = new Random();
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private volatile long latency = 0;
+	private volatile long jitter = 0;
+	private volatile double errorRate = 0;
+	private volatile int rateLimit = 0;
+	private volatile int retryAfter = 1;
+	private volatile long dropAfter = 0;
+	private long windowStart = System.nanoTime();
+	private int windowRequests = 0;
+	private volatile long longpollWait = 1000;
+	private volatile DownloadListener downloadListener;
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong downloads = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	/**
+	 * Listen on a free port of localhost
+	 */
+	public FakeDropboxServer() throws IOException {
+		this(0);
+	}
+
+	public FakeDropboxServer(int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 128);
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "fake_dropbox");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		server.setExecutor(executor);
+		server.createContext("/1/account/info", new Handler() {
+			@Override
+			void handle(HttpExchange exchange, Account account) throws IOException {
+				accountInfo(exchange, account);
+			}
+		});
+		server.createContext("/1/delta", new Handler() {
+			@Override
+			void handle(HttpExchange exchange, Account account) throws IOException {
+				delta(exchange, account);
+			}
+		});
+		server.createContext("/1/longpoll_delta", new Handler() {
+			@Override
+			void handle(HttpExchange exchange, Account account) throws IOException {
+				longpollDelta(exchange, account);
+			}
+		});
+		server.createContext("/1/files/", new Handler() {
+			@Override
+			void handle(HttpExchange exchange, Account account) throws IOException {
+				file(exchange, account);
+			}
+		});
+	}
+
+	/**
+	 * Add an account. An account without token is used for unknown tokens.
+	 */
+	public FakeDropboxServer account(Account account) {
+		if (account.token == null) {
+			defaultAccount = account;
+		} else {
+			accounts.put(account.token, account);
+		}
+		return this;
+	}
+
+	/**
+	 * Delay added to every response
+	 * @param millis Fixed delay in ms
+	 * @param jitter Random delay added in ms
+	 */
+	public FakeDropboxServer latency(long millis, long jitter) {
+		this.latency = millis;
+		this.jitter = jitter;
+		return this;
+	}
+
+	/**
+	 * @param errorRate Part of the requests, from 0 to 1, answered with a 503 error
+	 */
+	public FakeDropboxServer errorRate(double errorRate) {
+		this.errorRate = errorRate;
+		return this;
+	}
+
+	/**
+	 * @param requestsPerSecond Requests over this number in a one second window are answered
+	 * with a 429 error and a <code>Retry-After</code> header. 0 for no limit.
+	 */
+	public FakeDropboxServer rateLimit(int requestsPerSecond) {
+		this.rateLimit = requestsPerSecond;
+		return this;
+	}
+
+	/**
+	 * @param seconds Retry-After sent with 429 errors, 1 by default
+	 */
+	public FakeDropboxServer retryAfter(int seconds) {
+		this.retryAfter = seconds;
+		return this;
+	}
+
+	/**
+	 * @param bytes Downloads are cut after sending this number of bytes, like a flaky link. 0 to send files in one go.
+	 */
+	public FakeDropboxServer dropAfter(long bytes) {
+		this.dropAfter = bytes;
+		return this;
+	}
+
+	/**
+	 * @param millis How long /longpoll_delta waits when there is no change
+	 */
+	public FakeDropboxServer longpollWait(long millis) {
+		this.longpollWait = millis;
+		return this;
+	}
+
+	public FakeDropboxServer downloadListener(DownloadListener downloadListener) {
+		this.downloadListener = downloadListener;
+		return this;
+	}
+
+	public FakeDropboxServer start() {
+		server.start();
+		return this;
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the URL to use as base URL, like <code>http://localhost:54321</code>
+	 */
+	public String getUrl() {
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public long getThrottled() {
+		return throttled.get();
+	}
+
+	public long getDownloads() {
+		return downloads.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	private abstract class Handler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				requests.incrementAndGet();
+				if (throttleNow()) {
+					throttled.incrementAndGet();
+					exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+					sendJson(exchange, 429, jsonBuilder().startObject().field("error", "Too many requests").endObject());
+					return;
+				}
+				delay();
+				if (failNow()) {
+					errors.incrementAndGet();
+					sendJson(exchange, 503, jsonBuilder().startObject().field("error", "Fake server error").endObject());
+					return;
+				}
+				handle(exchange, accountOf(exchange));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				exchange.close();
+			}
+		}
+
+		abstract void handle(HttpExchange exchange, Account account) throws IOException;
+	}
+
+	private Account accountOf(HttpExchange exchange) throws IOException {
+		String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+		if (authorization != null) {
+			Matcher matcher = TOKEN.matcher(authorization);
+			if (matcher.find()) {
+				Account account = accounts.get(URLDecoder.decode(matcher.group(1), "UTF-8"));
+				if (account != null) return account;
+			}
+		}
+		return defaultAccount;
+	}
+
+	private void delay() throws InterruptedException {
+		long delay = latency;
+		if (jitter > 0) {
+			synchronized (random) {
+				delay += (long) (random.nextDouble() * jitter);
+			}
+		}
+		if (delay > 0) Thread.sleep(delay);
+	}
+
+	private boolean throttleNow() {
+		if (rateLimit <= 0) return false;
+		synchronized (random) {
+			long now = System.nanoTime();
+			if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+				windowStart = now;
+				windowRequests = 0;
+			}
+			return ++windowRequests > rateLimit;
+		}
+	}
+
+	private boolean failNow() {
+		if (errorRate <= 0) return false;
+		synchronized (random) {
+			return random.nextDouble() < errorRate;
+		}
+	}
+
+	private void accountInfo(HttpExchange exchange, Account account) throws IOException {
+		sendJson(exchange, 200, jsonBuilder().startObject()
+				.field("referral_link", "https://www.dropbox.com/referrals/fake")
+				.field("display_name", "Fake account")
+				.field("uid", 12345678)
+				.field("country", "FR")
+				.field("email", (account.token == null ? "default" : account.token) + "@fake.dropbox.local")
+				.startObject("quota_info")
+					.field("shared", 0)
+					.field("quota", 2L * 1024 * 1024 * 1024 * 1024)
+					.field("normal", account.totalSize())
+				.endObject()
+				.endObject());
+	}
+
+	private void delta(HttpExchange exchange, Account account) throws IOException {
+		Map<String, String> params = formParameters(exchange);
+		String cursor = params.get("cursor");
+		String prefix = params.get("path_prefix");
+		if (prefix != null) prefix = prefix.toLowerCase(Locale.ROOT);
+
+		int offset = 0;
+		if (cursor != null) {
+			if (!cursor.startsWith(CURSOR_PREFIX)) {
+				sendJson(exchange, 400, jsonBuilder().startObject().field("error", "Invalid cursor").endObject());
+				return;
+			}
+			offset = Integer.parseInt(cursor.substring(CURSOR_PREFIX.length()));
+		}
+
+		int files = account.getFiles();
+		XContentBuilder xb = jsonBuilder().startObject()
+				.field("reset", cursor == null)
+				.startArray("entries");
+		int entries = 0;
+		int i = offset;
+		for (; i < files && entries < account.pageSize; i++) {
+			String path = account.path(i);
+			String lowerPath = path.toLowerCase(Locale.ROOT);
+			if (prefix != null && !lowerPath.startsWith(prefix + "/")) continue;
+
+			long bytes = account.size(i);
+			xb.startArray()
+				.value(lowerPath)
+				.startObject()
+					.field("revision", i + 1)
+					.field("rev", account.rev(i))
+					.field("thumb_exists", false)
+					.field("bytes", bytes)
+					.field("modified", "Tue, 19 Jul 2011 21:55:38 +0000")
+					.field("client_mtime", "Mon, 18 Jul 2011 18:04:35 +0000")
+					.field("path", path)
+					.field("is_dir", false)
+					.field("icon", "page_white")
+					.field("root", "dropbox")
+					.field("mime_type", Account.MIME_TYPES[i % Account.MIME_TYPES.length])
+					.field("size", bytes + " bytes")
+				.endObject()
+			.endArray();
+			entries++;
+		}
+		xb.endArray()
+			.field("cursor", CURSOR_PREFIX + i)
+			.field("has_more", i < files)
+			.endObject();
+		sendJson(exchange, 200, xb);
+	}
+
+	private void longpollDelta(HttpExchange exchange, Account account) throws IOException {
+		Map<String, String> params = queryParameters(exchange);
+		String cursor = params.get("cursor");
+		int offset = cursor != null && cursor.startsWith(CURSOR_PREFIX) ? Integer.parseInt(cursor.substring(CURSOR_PREFIX.length())) : 0;
+		boolean changes = offset < account.getFiles();
+
+		if (!changes) {
+			try {
+				Thread.sleep(longpollWait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			changes = offset < account.getFiles();
+		}
+		sendJson(exchange, 200, jsonBuilder().startObject().field("changes", changes).endObject());
+	}
+
+	private void file(HttpExchange exchange, Account account) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		String root = "/1/files/dropbox";
+		int i = path.startsWith(root) ? account.fileNumber(path.substring(root.length())) : -1;
+		String rev = queryParameters(exchange).get("rev");
+		if (i < 0 || (rev != null && !rev.equals(account.rev(i)))) {
+			sendJson(exchange, 404, jsonBuilder().startObject().field("error", "File not found").endObject());
+			return;
+		}
+
+		long size = account.size(i);
+		long from = 0;
+		Matcher range = RANGE.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+		if (range.matches()) {
+			from = Long.parseLong(range.group(1));
+			if (from >= size) {
+				sendJson(exchange, 416, jsonBuilder().startObject().field("error", "Range not satisfiable").endObject());
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + (size - 1) + "/" + size);
+		} else {
+			downloads.incrementAndGet();
+			DownloadListener listener = downloadListener;
+			if (listener != null) listener.onDownload(account.path(i), size);
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+		exchange.getResponseHeaders().set("x-dropbox-metadata", jsonBuilder().startObject()
+				.field("rev", account.rev(i)).field("bytes", size).field("path", account.path(i)).endObject().string());
+		exchange.sendResponseHeaders(range.matches() ? 206 : 200, size - from == 0 ? -1 : size - from);
+		if (size == from) return;
+
+		// Content is written chunk by chunk: big files never sit in memory
+		OutputStream os = exchange.getResponseBody();
+		long to = dropAfter > 0 ? Math.min(size, from + dropAfter) : size;
+		// Counted before writing: the client may be done reading before writeContent returns
+		bytesSent.addAndGet(to - from);
+		account.writeContent(i, os, from, to);
+		if (to < size) {
+			// The server closes a connection when a response is not complete
+			os.flush();
+			throw new IOException("Fake broken connection");
+		}
+		os.close();
+	}
+
+	/**
+	 * Content of a generated file, the same as the one sent by the server
+	 */
+	public static byte[] content(Account account, int i) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		account.writeContent(i, bos);
+		return bos.toByteArray();
+	}
+
+	private static void sendJson(HttpExchange exchange, int code, XContentBuilder xb) throws IOException {
+		byte[] body = xb.bytes().toBytes();
+		exchange.getResponseHeaders().set("Content-Type", "text/javascript");
+		exchange.sendResponseHeaders(code, body.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(body);
+		os.close();
+	}
+
+	private static Map<String, String> formParameters(HttpExchange exchange) throws IOException {
+		InputStream is = exchange.getRequestBody();
+		StringBuilder body = new StringBuilder();
+		byte[] buffer = new byte[1024];
+		int read;
+		while ((read = is.read(buffer)) != -1) {
+			body.append(new String(buffer, 0, read, "UTF-8"));
+		}
+		return parameters(body.toString());
+	}
+
+	private static Map<String, String> queryParameters(HttpExchange exchange) throws IOException {
+		return parameters(exchange.getRequestURI().getRawQuery());
+	}
+
+	private static Map<String, String> parameters(String encoded) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		if (encoded == null || encoded.isEmpty()) return params;
+		for (String param : encoded.split("&")) {
+			int eq = param.indexOf('=');
+			if (eq < 0) continue;
+			params.put(URLDecoder.decode(param.substring(0, eq), "UTF-8"), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to David Pilato (the "Author") under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. Author licenses this
+ * file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.dropbox.test.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.node.internal.InternalNode;
+import org.junit.Assert;
+
+import fr.pilato.elasticsearch.river.dropbox.river.AccountStatistics;
+import fr.pilato.elasticsearch.river.dropbox.river.RiverMetrics;
+import fr.pilato.elasticsearch.river.dropbox.river.RiverMetricsService;
+
+/**
+ * Embedded local nodes for tests: documents in memory, one shard, no replica and no http
+ */
+public class LocalNodes {
+
+	private LocalNodes() {
+	}
+
+	/**
+	 * Start a node and wait for it to be ready. Nodes of the same cluster name join each other.
+	 * @param clusterName Cluster name
+	 * @param nodeName Node name, null for a random one
+	 * @param path Where the node writes its data, logs and work files
+	 * @return the started node
+	 */
+	public static Node start(String clusterName, String nodeName, String path) {
+		ImmutableSettings.Builder settings = ImmutableSettings.settingsBuilder()
+				.put("cluster.name", clusterName)
+				.put("gateway.type", "none")
+				.put("index.store.type", "memory")
+				.put("index.number_of_shards", 1)
+				.put("index.number_of_replicas", 0)
+				.put("http.enabled", false)
+				.put("path.data", path + "/data")
+				.put("path.logs", path + "/logs")
+				.put("path.work", path + "/work");
+		if (nodeName != null) settings.put("name", nodeName);
+
+		Node node = NodeBuilder.nodeBuilder().local(true).settings(settings).node();
+		node.client().admin().cluster().prepareHealth().setWaitForYellowStatus().execute().actionGet();
+		return node;
+	}
+
+	/**
+	 * Wait until a river running on a node ends its first scan
+	 * @param node Node running the river
+	 * @param river River name
+	 * @return the statistics of the scan
+	 */
+	public static AccountStatistics.Snapshot awaitScan(Node node, String river) throws Exception {
+		RiverMetricsService metrics = ((InternalNode) node).injector().getInstance(RiverMetricsService.class);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (System.nanoTime() < deadline) {
+			RiverMetrics riverMetrics = metrics.get(river);
+			if (riverMetrics != null && riverMetrics.account(river).lastCycle() != null) {
+				return riverMetrics.account(river).lastCycle();
+			}
+			Thread.sleep(100);
+		}
+		Assert.fail(river + " did not end its scan");
+		return null;
+	}
+
+	/**
+	 * Stop nodes, last started first
+	 * @param nodes Nodes to stop. Nodes which did not start are null.
+	 */
+	public static void stop(Node... nodes) {
+		for (int i = nodes.length - 1; i >= 0; i--) {
+			if (nodes[i] != null) nodes[i].close();
+		}
+	}
+}